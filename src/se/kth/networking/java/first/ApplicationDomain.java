@@ -1,7 +1,10 @@
 package se.kth.networking.java.first;
 
 import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Created by victoraxelsson on 2016-11-18.
@@ -11,4 +14,86 @@ public interface ApplicationDomain {
     String getKey(BigInteger key);
     void foundKey(BigInteger key, String value);
     Map<BigInteger, String> getStore();
+
+    /**
+     * Called when the key has been handed over to another node. The default removes it from the map
+     * getStore returns, which works for applications that hand out their live map.
+     */
+    default void removeKey(BigInteger key) {
+        getStore().remove(key);
+    }
+
+    /**
+     * The entries with keys in the clockwise interval (from, to], the whole ring when from and to are the same.
+     * The default goes through all of getStore, applications that keep their keys in a RingStore should
+     * hand the call to it.
+     */
+    default Map<BigInteger, String> getRange(BigInteger from, BigInteger to) {
+        Map<BigInteger, String> range = new HashMap<>();
+        for (Map.Entry<BigInteger, String> entry : getStore().entrySet()) {
+            if (inRange(entry.getKey(), from, to)) {
+                range.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return range;
+    }
+
+    /**
+     * The first limit entries of the clockwise interval (from, to], in order going clockwise from from. A large
+     * range can be read a chunk at a time this way, the next chunk starts after the last key of this one. The
+     * default goes through all of getStore for every chunk, stores that keep their keys in order should
+     * override it.
+     */
+    default Map<BigInteger, String> getRange(BigInteger from, BigInteger to, int limit) {
+        TreeMap<BigInteger, String> first = new TreeMap<>(clockwiseFrom(from));
+        for (Map.Entry<BigInteger, String> entry : getStore().entrySet()) {
+            if (inRange(entry.getKey(), from, to)) {
+                first.put(entry.getKey(), entry.getValue());
+                if (first.size() > limit) {
+                    first.pollLastEntry();
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Removes the keys in the clockwise interval (from, to].
+     */
+    default void removeRange(BigInteger from, BigInteger to) {
+        for (BigInteger key : getRange(from, to).keySet()) {
+            removeKey(key);
+        }
+    }
+
+    /**
+     * Number of keys in the clockwise interval (from, to].
+     */
+    default int sizeOfRange(BigInteger from, BigInteger to) {
+        return getRange(from, to).size();
+    }
+
+    /**
+     * Orders keys by how far they are from the origin, going clockwise. The origin itself comes last.
+     */
+    static Comparator<BigInteger> clockwiseFrom(final BigInteger origin) {
+        return (a, b) -> {
+            boolean aAfter = a.compareTo(origin) > 0;
+            boolean bAfter = b.compareTo(origin) > 0;
+            if (aAfter != bAfter) {
+                return aAfter ? -1 : 1;
+            }
+            return a.compareTo(b);
+        };
+    }
+
+    static boolean inRange(BigInteger key, BigInteger from, BigInteger to) {
+        int order = from.compareTo(to);
+        if (order < 0) {
+            return key.compareTo(from) > 0 && key.compareTo(to) <= 0;
+        } else if (order > 0) {
+            return key.compareTo(from) > 0 || key.compareTo(to) <= 0;
+        }
+        return true;
+    }
 }
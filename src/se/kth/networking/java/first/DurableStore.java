@@ -0,0 +1,684 @@
+package se.kth.networking.java.first;
+
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An ApplicationDomain that survives a crash. The keys are kept in a RingStore and every change is appended
+ * to a log. One writer thread takes everything that was queued since its last write and writes it in one go
+ * (group commit), so under load many changes share one fsync. How often the log is forced to disk is up to
+ * the SyncPolicy. With ALWAYS a change only reaches the store once it is on disk, with the other policies
+ * it is in the store at once and the log follows. If the log can't be written the store takes no more
+ * changes, rather than keep changes that are not in it.
+ *
+ * Every snapshotInterval ms the log is rotated and the keys are written to a snapshot, in a few parts split
+ * by ring range, and the logs before it are deleted. On start the parts are loaded in parallel while
+ * another thread reads the log tail, which is applied once they are done. A record that was cut short by
+ * the crash ends the log.
+ */
+public class DurableStore implements ApplicationDomain, Closeable {
+
+    public enum SyncPolicy {
+        //storeKey returns once the change is on disk
+        ALWAYS,
+        //The log is forced every syncInterval ms, a crash loses at most that
+        INTERVAL,
+        //Left to the OS, a crash of the machine loses whatever it had not written yet
+        NEVER
+    }
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    //Flag, key high, key low, value length
+    private static final int HEADER = 1 + RingId.BYTES + 4;
+
+    //Snapshot parts, loaded by one thread each on recovery
+    private static final int SNAPSHOT_PARTS = 4;
+
+    private File directory;
+    private SyncPolicy policy;
+    private RingStore store;
+
+    private BlockingQueue<Pending> queue;
+    //Changes are applied and queued under it, so the log has them in the order the store saw them
+    private final Object appendLock = new Object();
+    //Writes and rotations of the log
+    private final Object logLock = new Object();
+    private FileChannel log;
+    private long logNumber;
+    private volatile long logBytes;
+    private boolean dirty;
+    private volatile boolean closed;
+    //The first write or sync of the log that failed
+    private volatile IOException failure;
+
+    private Thread writer;
+    private ScheduledExecutorService timer;
+
+    private long recoveryMillis;
+    private long recoveredKeys;
+    private long recoveredRecords;
+    private AtomicLong groups;
+    private AtomicLong records;
+
+    public DurableStore(File directory) throws IOException {
+        this(directory, SyncPolicy.INTERVAL, 100, 60000);
+    }
+
+    /**
+     * Opens the store in the directory and recovers what is there.
+     *
+     * @param syncInterval     how often the log is forced with SyncPolicy.INTERVAL (ms)
+     * @param snapshotInterval how often a snapshot is taken, if anything was logged since the last one (ms)
+     */
+    public DurableStore(File directory, SyncPolicy policy, long syncInterval, long snapshotInterval) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.store = new RingStore();
+        this.queue = new LinkedBlockingQueue<>();
+        this.groups = new AtomicLong();
+        this.records = new AtomicLong();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        recover();
+        openLog(logNumber + 1);
+
+        writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "wal-snapshots");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (policy == SyncPolicy.INTERVAL) {
+            timer.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (logBytes > 0) {
+                        snapshot();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Snapshot failed: " + e.getMessage());
+                }
+            }
+        }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void storeKey(BigInteger key, String value) {
+        Pending pending;
+        synchronized (appendLock) {
+            pending = enqueue(PUT, key, value.getBytes(StandardCharsets.UTF_8), () -> store.put(key, value));
+        }
+        await(pending);
+    }
+
+    @Override
+    public String getKey(BigInteger key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void removeKey(BigInteger key) {
+        Pending pending;
+        synchronized (appendLock) {
+            //With ALWAYS a put of the key may still be on its way to the store, the remove has to follow it
+            if (policy != SyncPolicy.ALWAYS && store.get(key) == null) {
+                return;
+            }
+            pending = enqueue(REMOVE, key, new byte[0], () -> store.remove(key));
+        }
+        await(pending);
+    }
+
+    @Override
+    public void foundKey(BigInteger key, String value) {
+    }
+
+    /**
+     * A read only view of the keys, changes go through storeKey and removeKey so they are logged.
+     */
+    @Override
+    public Map<BigInteger, String> getStore() {
+        return store.asMap();
+    }
+
+    @Override
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to) {
+        return store.getRange(from, to);
+    }
+
+    @Override
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to, int limit) {
+        return store.getRange(from, to, limit);
+    }
+
+    /**
+     * Queues the removes of all the keys at once, so they share the writes of the log, and waits for the
+     * last one.
+     */
+    @Override
+    public void removeRange(BigInteger from, BigInteger to) {
+        Pending last = null;
+        synchronized (appendLock) {
+            for (BigInteger key : store.getRange(from, to).keySet()) {
+                last = enqueue(REMOVE, key, new byte[0], () -> store.remove(key));
+            }
+        }
+        if (last != null) {
+            await(last);
+        }
+    }
+
+    @Override
+    public int sizeOfRange(BigInteger from, BigInteger to) {
+        return store.sizeOfRange(from, to);
+    }
+
+    /**
+     * How long the last start took to load the snapshot and replay the log (ms).
+     */
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    public long getRecoveredKeys() {
+        return recoveredKeys;
+    }
+
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * Changes written per write of the log, how well group commit is doing.
+     */
+    public double getAverageGroupSize() {
+        long count = groups.get();
+        return count == 0 ? 0 : records.get() / (double) count;
+    }
+
+    /**
+     * Queues the change for the log, and applies it to the store now or, with ALWAYS, once it has been
+     * written. Called holding appendLock, which close takes as well, so nothing is queued after the writer
+     * was told to stop.
+     */
+    private Pending enqueue(byte flag, BigInteger key, byte[] value, Runnable change) {
+        if (closed) {
+            throw new IllegalStateException("The store is closed");
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(new IOException("The log could not be written, the store takes no more changes", failure));
+        }
+
+        Pending pending;
+        if (policy == SyncPolicy.ALWAYS) {
+            pending = new Pending(encode(flag, RingId.fromBigInteger(key), value), change);
+        } else {
+            change.run();
+            pending = new Pending(encode(flag, RingId.fromBigInteger(key), value), null);
+        }
+        queue.add(pending);
+        return pending;
+    }
+
+    private void await(Pending pending) {
+        if (policy != SyncPolicy.ALWAYS) {
+            return;
+        }
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException(new IOException("Could not log the change", e.getCause()));
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> group = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                queue.drainTo(group);
+                write(group);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void write(List<Pending> group) {
+        if (failure != null) {
+            for (Pending pending : group) {
+                pending.done.completeExceptionally(failure);
+            }
+            return;
+        }
+
+        int size = 0;
+        for (Pending pending : group) {
+            size += pending.record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Pending pending : group) {
+            buffer.put(pending.record);
+        }
+        buffer.flip();
+
+        try {
+            synchronized (logLock) {
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                logBytes += size;
+                dirty = true;
+                if (policy == SyncPolicy.ALWAYS) {
+                    log.force(false);
+                    dirty = false;
+                }
+                //In the order they were queued, so the store ends up where the log does. Still under the lock,
+                //a snapshot that starts a new log right after this must find them in the store.
+                for (Pending pending : group) {
+                    if (pending.change != null) {
+                        pending.change.run();
+                    }
+                }
+            }
+            groups.incrementAndGet();
+            records.addAndGet(group.size());
+        } catch (IOException e) {
+            fail(e);
+            for (Pending pending : group) {
+                pending.done.completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (Pending pending : group) {
+            pending.done.complete(null);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            System.out.println("Could not write the log, the store takes no more changes: " + e.getMessage());
+        }
+    }
+
+    private void sync() {
+        synchronized (logLock) {
+            if (!dirty) {
+                return;
+            }
+            try {
+                log.force(false);
+                dirty = false;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Starts a new log and writes the keys to a snapshot, after that the older logs are not needed.
+     * Changes made while it runs may or may not be in the snapshot, they are in the new log either way.
+     */
+    public synchronized void snapshot() throws IOException {
+        long number;
+        synchronized (logLock) {
+            log.force(false);
+            log.close();
+            number = logNumber + 1;
+            openLog(number);
+        }
+
+        long start = System.currentTimeMillis();
+        int total = store.size();
+        int perPart = Math.max(1, (total + SNAPSHOT_PARTS - 1) / SNAPSHOT_PARTS);
+        Iterator<Map.Entry<BigInteger, String>> entries = store.asMap().entrySet().iterator();
+        long written = 0;
+        for (int part = 0; part < SNAPSHOT_PARTS; part++) {
+            File temp = new File(directory, "snapshot-" + number + "-" + part + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                //The store is in ring order, so every part is one range of the ring
+                for (int i = 0; (i < perPart || part == SNAPSHOT_PARTS - 1) && entries.hasNext(); i++) {
+                    Map.Entry<BigInteger, String> entry = entries.next();
+                    RingId id = RingId.fromBigInteger(entry.getKey());
+                    byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                    out.writeLong(id.getHigh());
+                    out.writeLong(id.getLow());
+                    out.writeInt(value.length);
+                    out.write(value);
+                    written++;
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(temp.toPath(), new File(directory, "snapshot-" + number + "-" + part).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        syncDirectory();
+
+        //The marker says the snapshot is complete, until it is there recovery uses the previous one. It has to
+        //be on disk before the logs it replaces go.
+        File temp = new File(directory, "snapshot-" + number + ".tmp");
+        try (FileOutputStream marker = new FileOutputStream(temp)) {
+            marker.write(Integer.toString(SNAPSHOT_PARTS).getBytes(StandardCharsets.UTF_8));
+            marker.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(directory, "snapshot-" + number).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        deleteBefore(number);
+
+        System.out.println("Snapshot " + number + " of " + written + " keys in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        //The newest snapshot whose marker is complete
+        long snapshot = -1;
+        int parts = 0;
+        List<Long> markers = numbers("snapshot-");
+        for (int i = markers.size() - 1; i >= 0 && snapshot < 0; i--) {
+            parts = readMarker(markers.get(i));
+            if (parts > 0) {
+                snapshot = markers.get(i);
+            }
+        }
+        List<Long> logNumbers = numbers("log-");
+        long lastLog = Math.max(snapshot, logNumbers.isEmpty() ? -1 : logNumbers.get(logNumbers.size() - 1));
+
+        List<File> logs = new ArrayList<>();
+        for (long number = Math.max(snapshot, 0); number <= lastLog; number++) {
+            File file = new File(directory, "log-" + number);
+            if (file.exists()) {
+                logs.add(file);
+            }
+        }
+
+        ExecutorService loaders = Executors.newFixedThreadPool(parts + 1);
+        try {
+            List<Future<Long>> loads = new ArrayList<>();
+            for (int part = 0; part < parts; part++) {
+                final File file = new File(directory, "snapshot-" + snapshot + "-" + part);
+                loads.add(loaders.submit(() -> loadSnapshot(file)));
+            }
+            Future<List<byte[]>> tail = loaders.submit(() -> readLogs(logs));
+
+            for (Future<Long> load : loads) {
+                recoveredKeys += load.get();
+            }
+            //The log goes on top of the snapshot, in order
+            for (byte[] record : tail.get()) {
+                apply(record);
+                recoveredRecords++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Recovery was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Recovery failed", e.getCause());
+        } finally {
+            loaders.shutdown();
+        }
+
+        logNumber = Math.max(lastLog, 0);
+        recoveryMillis = System.currentTimeMillis() - start;
+        System.out.println("Recovered " + store.size() + " keys in " + recoveryMillis + "ms, " + recoveredKeys
+                + " from snapshot " + snapshot + " and " + recoveredRecords + " log records");
+    }
+
+    private long loadSnapshot(File file) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                long high;
+                try {
+                    high = in.readLong();
+                } catch (EOFException e) {
+                    return count;
+                }
+                long low = in.readLong();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                store.put(new RingId(high, low).toBigInteger(), new String(value, StandardCharsets.UTF_8));
+                count++;
+            }
+        }
+    }
+
+    /**
+     * The records of the logs in order. A log ends at the first record that is cut short or doesn't match its
+     * checksum, that is where the node crashed, and the next log is from after the restart.
+     */
+    private List<byte[]> readLogs(List<File> logs) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (File file : logs) {
+            long left = file.length();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                while (left >= 8 + HEADER) {
+                    int length = in.readInt();
+                    long checksum = in.readInt() & 0xFFFFFFFFL;
+                    left -= 8;
+                    if (length < HEADER || length > left) {
+                        break;
+                    }
+
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    left -= length;
+                    if (checksum(record) != checksum) {
+                        break;
+                    }
+                    records.add(record);
+                }
+            }
+            if (left > 0) {
+                System.out.println("Log " + file.getName() + " ends with a damaged record, ignoring the rest of it");
+            }
+        }
+        return records;
+    }
+
+    private void apply(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        byte flag = buffer.get();
+        BigInteger key = new RingId(buffer.getLong(), buffer.getLong()).toBigInteger();
+        int length = buffer.getInt();
+        if (flag == PUT) {
+            store.put(key, new String(record, HEADER, length, StandardCharsets.UTF_8));
+        } else {
+            store.remove(key);
+        }
+    }
+
+    /**
+     * Length, checksum and the record itself.
+     */
+    private static byte[] encode(byte flag, RingId id, byte[] value) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + value.length);
+        record.put(flag);
+        record.putLong(id.getHigh());
+        record.putLong(id.getLow());
+        record.putInt(value.length);
+        record.put(value);
+
+        ByteBuffer framed = ByteBuffer.allocate(8 + record.capacity());
+        framed.putInt(record.capacity());
+        framed.putInt((int) checksum(record.array()));
+        framed.put(record.array());
+        return framed.array();
+    }
+
+    private static long checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return crc.getValue();
+    }
+
+    private void openLog(long number) throws IOException {
+        log = FileChannel.open(new File(directory, "log-" + number).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logNumber = number;
+        logBytes = 0;
+        dirty = false;
+    }
+
+    /**
+     * The numbers of the complete files with the prefix, lowest first.
+     */
+    private List<Long> numbers(String prefix) {
+        List<Long> numbers = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String rest = file.getName().substring(Math.min(prefix.length(), file.getName().length()));
+                if (file.getName().startsWith(prefix) && rest.matches("\\d+")) {
+                    numbers.add(Long.parseLong(rest));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * The number of parts the marker of the snapshot promises, 0 if it is empty or damaged or a part is missing.
+     * Such a snapshot is no snapshot, the logs from before it have not been deleted.
+     */
+    private int readMarker(long number) {
+        int parts;
+        try {
+            parts = Integer.parseInt(new String(Files.readAllBytes(new File(directory, "snapshot-" + number).toPath()),
+                    StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            parts = 0;
+        }
+        for (int part = 0; part < parts; part++) {
+            if (!new File(directory, "snapshot-" + number + "-" + part).exists()) {
+                parts = 0;
+            }
+        }
+        if (parts <= 0) {
+            System.out.println("Snapshot " + number + " is not complete, ignoring it");
+            return 0;
+        }
+        return parts;
+    }
+
+    /**
+     * Makes the renames in the directory durable.
+     */
+    private void syncDirectory() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            //Not every platform lets a directory be opened, there the rename is as durable as it gets
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void deleteBefore(long number) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            String[] parts = name.replace(".tmp", "").split("-");
+            if (parts.length >= 2 && parts[1].matches("\\d+") && Long.parseLong(parts[1]) < number) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            closed = true;
+        }
+        timer.shutdownNow();
+        try {
+            writer.join();
+            //Nothing is queued once closed is set, but nobody should wait forever if the writer died
+            Pending left;
+            while ((left = queue.poll()) != null) {
+                left.done.completeExceptionally(new IOException("The store was closed"));
+            }
+            synchronized (logLock) {
+                log.force(false);
+                log.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Pending {
+        final byte[] record;
+        //Applies the change to the store once it is written, null if it was applied when it was queued
+        final Runnable change;
+        final CompletableFuture<Void> done;
+
+        Pending(byte[] record, Runnable change) {
+            this.record = record;
+            this.change = change;
+            this.done = new CompletableFuture<>();
+        }
+    }
+}
@@ -1,11 +1,11 @@
 package se.kth.networking.java.first;
 
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import se.kth.networking.java.first.models.RingId;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
-import java.util.Random;
 
 /**
  * Created by victoraxelsson on 2016-11-08.
@@ -14,6 +14,17 @@ public class Helper {
 
     private static Helper instance;
 
+    //Direct mapped, a colliding address just replaces the entry. Entries are immutable, so racing threads at worst hash twice.
+    private static final int ID_CACHE_SIZE = 1024;
+    private static final CachedId[] idCache = new CachedId[ID_CACHE_SIZE];
+
+    private static final ThreadLocal<Hasher> HASHERS = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
     //Singelton, the ctor is private to restrict access
     private Helper(){}
 
@@ -28,53 +39,96 @@ public class Helper {
         return (int) (Math.random() * (max - min)) + min;
     }
 
-    public static BigInteger doHash(String ip, int port) {
-        return hash(ip + port);
+    /**
+     * The ring id of a node, the MD5 of ip + port. Ids are cached per (ip, port), a hit doesn't allocate.
+     */
+    public static RingId doHash(String ip, int port) {
+        int slot = (ip.hashCode() * 31 + port) & (ID_CACHE_SIZE - 1);
+        CachedId cached = idCache[slot];
+        if (cached != null && cached.port == port && cached.ip.equals(ip)) {
+            return cached.id;
+        }
+
+        RingId id = HASHERS.get().hash(ip, port);
+        idCache[slot] = new CachedId(ip, port, id);
+        return id;
     }
 
-    private static BigInteger hash(String toHash)
-    {
-        String sha1 = "";
-        try
-        {
-            MessageDigest crypt = MessageDigest.getInstance("MD5");
-            crypt.reset();
-            crypt.update(toHash.getBytes("UTF-8"));
-            sha1 = byteToHex(crypt.digest());
+    private static class CachedId {
+        final String ip;
+        final int port;
+        final RingId id;
+
+        CachedId(String ip, int port, RingId id) {
+            this.ip = ip;
+            this.port = port;
+            this.id = id;
         }
-        catch(NoSuchAlgorithmException e)
-        {
-            e.printStackTrace();
+    }
+
+    /**
+     * One per thread, MessageDigest is not thread safe and getInstance is slow. Writes ip + port into
+     * a reused buffer and reads the digest straight into a RingId, the same value the hex conversion gave.
+     */
+    private static class Hasher {
+        private MessageDigest md5;
+        private byte[] input = new byte[64];
+        private byte[] digest = new byte[RingId.BYTES];
+
+        Hasher() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is missing from this JVM", e);
+            }
         }
-        catch(UnsupportedEncodingException e)
-        {
-            e.printStackTrace();
+
+        RingId hash(String ip, int port) {
+            int length = ip.length();
+            if (port < 0 || length + 10 > input.length || !isAscii(ip)) {
+                md5.reset();
+                md5.update((ip + port).getBytes(StandardCharsets.UTF_8));
+                return RingId.fromBytes(md5.digest());
+            }
+
+            for (int i = 0; i < length; i++) {
+                input[i] = (byte) ip.charAt(i);
+            }
+            length = writeDecimal(port, length);
+
+            md5.reset();
+            md5.update(input, 0, length);
+            try {
+                md5.digest(digest, 0, digest.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return RingId.fromBytes(digest);
         }
 
-        return new BigInteger(String.valueOf(fromHexToDecimal(sha1.toUpperCase())));
-    }
+        private int writeDecimal(int value, int offset) {
+            int start = offset;
+            do {
+                input[offset++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
 
-    private static String byteToHex(final byte[] hash)
-    {
-        Formatter formatter = new Formatter();
-        for (byte b : hash)
-        {
-            formatter.format("%02x", b);
+            //Digits came out backwards
+            for (int i = start, j = offset - 1; i < j; i++, j--) {
+                byte tmp = input[i];
+                input[i] = input[j];
+                input[j] = tmp;
+            }
+            return offset;
         }
-        String result = formatter.toString();
-        formatter.close();
-        return result;
-    }
 
-    private static BigInteger fromHexToDecimal(String s) {
-        String digits = "0123456789ABCDEF";
-        s = s.toUpperCase();
-        BigInteger val = BigInteger.ZERO;
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            int d = digits.indexOf(c);
-            val = val.multiply(BigInteger.valueOf(16)).add(BigInteger.valueOf(d));
+        private static boolean isAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) > 0x7F) {
+                    return false;
+                }
+            }
+            return true;
         }
-        return val;
     }
 }
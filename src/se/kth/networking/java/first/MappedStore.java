@@ -0,0 +1,953 @@
+package se.kth.networking.java.first;
+
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An ApplicationDomain that keeps the keys and values off the heap, for nodes with millions of small values.
+ * The values are appended to memory mapped segment files and the heap only holds an index of three long
+ * arrays (key high, key low, location), open addressing, and the ids once more in two sorted arrays, so
+ * about 50 bytes per key and next to no objects the GC has to trace.
+ *
+ * The segments are the log of the store, opening the directory again replays them. Every record has a CRC
+ * and the replay stops at the first record that is cut short or damaged, the log ends there. They are not
+ * forced to disk on every write, close forces them.
+ *
+ * Overwritten and removed values stay in the segments until compaction cleans them out. Once more than half
+ * of what was written is dead, a background thread takes the oldest segment, copies its live values to the
+ * end of the log and deletes it, and goes on with the next one. The lock is only held to copy a few values
+ * at a time and move their index entries, reads and writes go on in between. Going from the oldest segment
+ * means the removals in it can be dropped, there is nothing older left for them to hide.
+ *
+ * Chunks of a range are read from the sorted ids, a binary search and then the keys of the chunk. New keys
+ * go to a small tree first and are merged into the arrays once it has grown, removed ones stay in the
+ * arrays until then and are skipped. Whole ranges go through the hash index. foundKey does nothing,
+ * override it to get the results of lookups.
+ */
+public class MappedStore implements ApplicationDomain, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    //Record: flag, CRC, key high, key low, value length, value bytes. A zero flag is the end of the segment.
+    private static final byte END = 0;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int CRC_AT = 1;
+    private static final int HIGH_AT = 5;
+    private static final int LOW_AT = 13;
+    private static final int LENGTH_AT = 21;
+    private static final int HEADER = 1 + 4 + RingId.BYTES + 4;
+
+    //Slots of the index that never held a key, and slots of removed keys the probing has to step over
+    private static final long EMPTY = -1;
+    private static final long REMOVED = -2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    //Records compaction copies per turn of the lock
+    private static final int COPY_BATCH = 256;
+
+    //New keys kept apart before they are merged into the sorted ids, at least this many
+    private static final int MIN_MERGE = 1024;
+
+    private static final Pattern SEGMENT = Pattern.compile("segment-(\\d+)");
+
+    //Compaction of every store in the JVM, one segment at a time
+    private static final ExecutorService COMPACTIONS = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mapped-store-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private File directory;
+    private int segmentSize;
+    //By segment number, the ones compaction deleted are null
+    private List<MappedByteBuffer> segments;
+    private int firstSegment;
+    private int writeOffset;
+
+    private long[] highs;
+    private long[] lows;
+    private long[] locations;
+    private int size;
+    private int removedSlots;
+
+    //The ids in ring order, with removed ones until the next merge, and the new ones not merged yet
+    private long[] orderHighs = new long[0];
+    private long[] orderLows = new long[0];
+    private int orderSize;
+    private TreeSet<RingId> recent = new TreeSet<>();
+
+    private long writtenBytes;
+    private long deadBytes;
+    private int compactions;
+    private boolean closed;
+    //The background compaction, null when none is running
+    private CompletableFuture<Void> compaction;
+
+    private ReadWriteLock lock;
+    //Held while segments are cleaned, so compact() and the background don't clean the same one
+    private final Object cleaner = new Object();
+
+    public MappedStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the directory, replaying the segments that are already there.
+     */
+    public MappedStore(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lock = new ReentrantReadWriteLock();
+        this.segments = new ArrayList<>();
+        newIndex(INITIAL_CAPACITY);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        open();
+        sortIds();
+    }
+
+    @Override
+    public void storeKey(BigInteger key, String value) {
+        RingId id = RingId.fromBigInteger(key);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        lock.writeLock().lock();
+        try {
+            long location = append(PUT, id, bytes);
+            long previous = indexPut(id.getHigh(), id.getLow(), location);
+            if (previous >= 0) {
+                deadBytes += recordSize(previous);
+            } else {
+                addToOrder(id);
+            }
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String getKey(BigInteger key) {
+        RingId id = RingId.fromBigInteger(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(id.getHigh(), id.getLow());
+            return slot < 0 ? null : read(locations[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeKey(BigInteger key) {
+        RingId id = RingId.fromBigInteger(key);
+        lock.writeLock().lock();
+        try {
+            remove(id.getHigh(), id.getLow());
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void foundKey(BigInteger key, String value) {
+    }
+
+    /**
+     * A copy of every key and value, on the heap. Prefer getRange.
+     */
+    @Override
+    public Map<BigInteger, String> getStore() {
+        return getRange(BigInteger.ZERO, BigInteger.ZERO);
+    }
+
+    @Override
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to) {
+        RingId start = RingId.fromBigInteger(from);
+        RingId end = RingId.fromBigInteger(to);
+
+        Map<BigInteger, String> range = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < locations.length; slot++) {
+                if (locations[slot] >= 0 && inRange(highs[slot], lows[slot], start, end)) {
+                    range.put(new RingId(highs[slot], lows[slot]).toBigInteger(), read(locations[slot]));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return range;
+    }
+
+    /**
+     * Goes clockwise through the sorted ids from the start, a chunk costs a binary search and its own keys.
+     */
+    @Override
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to, int limit) {
+        RingId start = RingId.fromBigInteger(from);
+        RingId end = RingId.fromBigInteger(to);
+
+        Map<BigInteger, String> range = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            //The ids after start, then round the ring from the lowest one up to start itself
+            int split = after(start.getHigh(), start.getLow());
+            if (walk(split, orderSize, recent.tailSet(start, false).iterator(), start, end, limit, range)) {
+                walk(0, split, recent.headSet(start, true).iterator(), start, end, limit, range);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return range;
+    }
+
+    @Override
+    public void removeRange(BigInteger from, BigInteger to) {
+        RingId start = RingId.fromBigInteger(from);
+        RingId end = RingId.fromBigInteger(to);
+
+        lock.writeLock().lock();
+        try {
+            for (int slot = 0; slot < locations.length; slot++) {
+                if (locations[slot] >= 0 && inRange(highs[slot], lows[slot], start, end)) {
+                    remove(highs[slot], lows[slot]);
+                }
+            }
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int sizeOfRange(BigInteger from, BigInteger to) {
+        RingId start = RingId.fromBigInteger(from);
+        RingId end = RingId.fromBigInteger(to);
+
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < locations.length; slot++) {
+                if (locations[slot] >= 0 && inRange(highs[slot], lows[slot], start, end)) {
+                    count++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return count;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes in the segments that belong to overwritten or removed values.
+     */
+    public long getDeadBytes() {
+        lock.readLock().lock();
+        try {
+            return deadBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Segments compaction has cleaned out and deleted.
+     */
+    public int getCompactions() {
+        lock.readLock().lock();
+        try {
+            return compactions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Cleans every segment but the one being written, on the calling thread. Reads and writes go on in
+     * between, like with the background compaction.
+     */
+    public void compact() {
+        synchronized (cleaner) {
+            int stop;
+            lock.readLock().lock();
+            try {
+                stop = segments.size() - 1;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            Integer next;
+            while ((next = nextToClean(stop, false)) != null) {
+                cleanSegment(next);
+            }
+        }
+    }
+
+    /**
+     * Stops the compaction and forces the segments to disk.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Void> running;
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            running = compaction;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (running != null) {
+            //It stops at the next batch, and has already logged what went wrong if anything did
+            running.exceptionally(e -> null).join();
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer segment : segments) {
+                if (segment != null) {
+                    segment.force();
+                }
+            }
+            //The mappings go away once the buffers are collected, Java 8 can't unmap them
+            segments = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isWasteful() {
+        return writtenBytes > segmentSize && deadBytes * 2 > writtenBytes;
+    }
+
+    /**
+     * Starts the background compaction if there is enough dead space and it isn't running. Called holding
+     * the write lock.
+     */
+    private void compactIfWasteful() {
+        if (closed || compaction != null || firstSegment >= segments.size() - 1 || !isWasteful()) {
+            return;
+        }
+
+        compaction = CompletableFuture.runAsync(() -> {
+            try {
+                synchronized (cleaner) {
+                    Integer next;
+                    while ((next = nextToClean(Integer.MAX_VALUE, true)) != null) {
+                        cleanSegment(next);
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Compaction of " + directory + " failed: " + e.getMessage());
+                throw e;
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    compaction = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }, COMPACTIONS);
+    }
+
+    /**
+     * The oldest segment if it is below stop and not the one being written, null when there is nothing to
+     * clean, the store is closed or, for the background, when there is not enough dead space any more.
+     */
+    private Integer nextToClean(int stop, boolean onlyIfWasteful) {
+        lock.readLock().lock();
+        try {
+            if (closed || firstSegment >= Math.min(stop, segments.size() - 1) || (onlyIfWasteful && !isWasteful())) {
+                return null;
+            }
+            return firstSegment;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the live values of the oldest segment to the end of the log, forces the copies to disk and
+     * deletes the segment. A value that is overwritten while this runs is simply not copied.
+     */
+    private void cleanSegment(int number) {
+        ByteBuffer segment;
+        int copiedFrom;
+        lock.readLock().lock();
+        try {
+            segment = segments.get(number).duplicate();
+            copiedFrom = segments.size() - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        //The segment is not written any more, it can be read without the lock
+        long live = 0;
+        int offset = 0;
+        List<Integer> batch = new ArrayList<>(COPY_BATCH);
+        while (offset + HEADER <= segmentSize && segment.get(offset) != END) {
+            if (segment.get(offset) == PUT) {
+                batch.add(offset);
+            }
+            offset += HEADER + segment.getInt(offset + LENGTH_AT);
+            if (batch.size() == COPY_BATCH) {
+                live += copyLive(number, segment, batch);
+                batch.clear();
+                if (isClosed()) {
+                    return;
+                }
+            }
+        }
+        live += copyLive(number, segment, batch);
+
+        List<MappedByteBuffer> written;
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            written = new ArrayList<>(segments.subList(copiedFrom, segments.size()));
+        } finally {
+            lock.readLock().unlock();
+        }
+        //The copies have to be on disk before the originals go
+        for (MappedByteBuffer copies : written) {
+            copies.force();
+        }
+
+        lock.writeLock().lock();
+        try {
+            segments.set(number, null);
+            firstSegment = number + 1;
+            writtenBytes -= offset;
+            deadBytes -= offset - live;
+            compactions++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            Files.deleteIfExists(segmentFile(number).toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies the records at the offsets that are still the live value of their key to the end of the log.
+     * The values are read before the lock is taken, under it they are only appended and their index entry
+     * moved.
+     *
+     * @return the bytes that were copied
+     */
+    private long copyLive(int number, ByteBuffer segment, List<Integer> offsets) {
+        if (offsets.isEmpty()) {
+            return 0;
+        }
+
+        List<byte[]> values = new ArrayList<>(offsets.size());
+        for (int offset : offsets) {
+            byte[] value = new byte[segment.getInt(offset + LENGTH_AT)];
+            ByteBuffer source = segment.duplicate();
+            source.position(offset + HEADER);
+            source.get(value);
+            values.add(value);
+        }
+
+        long copied = 0;
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            for (int i = 0; i < offsets.size(); i++) {
+                int offset = offsets.get(i);
+                long high = segment.getLong(offset + HIGH_AT);
+                long low = segment.getLong(offset + LOW_AT);
+                int slot = find(high, low);
+                if (slot >= 0 && locations[slot] == location(number, offset)) {
+                    locations[slot] = append(PUT, new RingId(high, low), values.get(i));
+                    copied += HEADER + values.get(i).length;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return copied;
+    }
+
+    private boolean isClosed() {
+        lock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        //Files of other names are left alone
+        int first = Integer.MAX_VALUE;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT.matcher(file.getName());
+                if (matcher.matches()) {
+                    first = Math.min(first, Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        if (first == Integer.MAX_VALUE) {
+            return;
+        }
+
+        firstSegment = first;
+        for (int number = 0; number < first; number++) {
+            segments.add(null);
+        }
+        for (int number = first; segmentFile(number).exists(); number++) {
+            segments.add(map(segmentFile(number)));
+        }
+
+        for (int number = first; number < segments.size(); number++) {
+            if (!replay(number)) {
+                //Whatever comes after a damaged record is not part of the log
+                for (int later = segments.size() - 1; later > number; later--) {
+                    segments.remove(later);
+                    Files.delete(segmentFile(later).toPath());
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Replays the records of the segment into the index.
+     *
+     * @return false if it stopped at a record that is cut short or damaged
+     */
+    private boolean replay(int number) {
+        ByteBuffer segment = segments.get(number);
+        int offset = 0;
+        while (offset + HEADER <= segmentSize && segment.get(offset) != END) {
+            byte flag = segment.get(offset);
+            long high = segment.getLong(offset + HIGH_AT);
+            long low = segment.getLong(offset + LOW_AT);
+            int length = segment.getInt(offset + LENGTH_AT);
+            if ((flag != PUT && flag != REMOVE) || length < 0 || length > segmentSize - offset - HEADER
+                    || crc(segment, offset, flag, length) != segment.getInt(offset + CRC_AT)) {
+                System.out.println("Bad record in " + segmentFile(number) + " at " + offset + ", the log ends there");
+                //Clear the rest, so what is appended from here on does not run into the old bytes
+                for (int i = offset; i < segmentSize; i++) {
+                    segment.put(i, END);
+                }
+                writeOffset = offset;
+                return false;
+            }
+            long location = location(number, offset);
+
+            if (flag == PUT) {
+                long previous = indexPut(high, low, location);
+                if (previous >= 0) {
+                    deadBytes += recordSize(previous);
+                }
+            } else {
+                int slot = find(high, low);
+                if (slot >= 0) {
+                    deadBytes += recordSize(locations[slot]);
+                    clearSlot(slot);
+                }
+                deadBytes += HEADER;
+            }
+            writtenBytes += HEADER + length;
+            offset += HEADER + length;
+        }
+        writeOffset = offset;
+        return true;
+    }
+
+    private void remove(long high, long low) {
+        int slot = find(high, low);
+        if (slot < 0) {
+            return;
+        }
+
+        //The removal goes into the log as well, so replaying the segments doesn't bring the value back
+        append(REMOVE, new RingId(high, low), new byte[0]);
+        deadBytes += recordSize(locations[slot]) + HEADER;
+        clearSlot(slot);
+        if (orderSize > 2 * size + MIN_MERGE) {
+            //Mostly removed ids, the chunks would step over more of them than they return
+            mergeOrder();
+        }
+    }
+
+    private long append(byte flag, RingId id, byte[] value) {
+        int length = HEADER + value.length;
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes does not fit in a segment of " + segmentSize);
+        }
+
+        try {
+            if (segments.size() == firstSegment || writeOffset + length > segmentSize) {
+                segments.add(map(segmentFile(segments.size())));
+                writeOffset = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        int number = segments.size() - 1;
+        ByteBuffer segment = segments.get(number).duplicate();
+        int offset = writeOffset;
+        segment.putLong(offset + HIGH_AT, id.getHigh());
+        segment.putLong(offset + LOW_AT, id.getLow());
+        segment.putInt(offset + LENGTH_AT, value.length);
+        segment.position(offset + HEADER);
+        segment.put(value);
+        segment.putInt(offset + CRC_AT, crc(segment, offset, flag, value.length));
+        //The flag goes last, so a record that was cut short reads as the end of the segment
+        segment.put(offset, flag);
+
+        writeOffset += length;
+        writtenBytes += length;
+        return location(number, offset);
+    }
+
+    /**
+     * The CRC of the flag and everything after the CRC field.
+     */
+    private static int crc(ByteBuffer segment, int offset, byte flag, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(flag);
+        ByteBuffer record = segment.duplicate();
+        record.limit(offset + HEADER + length);
+        record.position(offset + HIGH_AT);
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private String read(long location) {
+        ByteBuffer segment = segments.get(segmentOf(location)).duplicate();
+        int offset = offsetOf(location);
+        int length = segment.getInt(offset + LENGTH_AT);
+        if (length < 0 || length > segmentSize - offset - HEADER) {
+            throw new IllegalStateException("Damaged record in " + segmentFile(segmentOf(location)) + " at " + offset);
+        }
+        byte[] value = new byte[length];
+        segment.position(offset + HEADER);
+        segment.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private int recordSize(long location) {
+        return HEADER + segments.get(segmentOf(location)).getInt(offsetOf(location) + LENGTH_AT);
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, "segment-" + number);
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    //The index
+
+    private void newIndex(int capacity) {
+        highs = new long[capacity];
+        lows = new long[capacity];
+        locations = new long[capacity];
+        Arrays.fill(locations, EMPTY);
+        size = 0;
+        removedSlots = 0;
+    }
+
+    /**
+     * @return the location the key had, or a negative number if it is new
+     */
+    private long indexPut(long high, long low, long location) {
+        if (size + removedSlots + 1 > locations.length * MAX_LOAD) {
+            //Only grow if the live keys need it, otherwise clearing out the removed slots is enough
+            rehash(size + 1 > locations.length * MAX_LOAD / 2 ? locations.length * 2 : locations.length);
+        }
+
+        int mask = locations.length - 1;
+        int free = -1;
+        for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask) {
+            long current = locations[slot];
+            if (current == EMPTY) {
+                if (free < 0) {
+                    free = slot;
+                }
+                break;
+            }
+            if (current == REMOVED) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if (highs[slot] == high && lows[slot] == low) {
+                locations[slot] = location;
+                return current;
+            }
+        }
+
+        if (locations[free] == REMOVED) {
+            removedSlots--;
+        }
+        highs[free] = high;
+        lows[free] = low;
+        locations[free] = location;
+        size++;
+        return -1;
+    }
+
+    private int find(long high, long low) {
+        int mask = locations.length - 1;
+        for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask) {
+            long current = locations[slot];
+            if (current == EMPTY) {
+                return -1;
+            }
+            if (current != REMOVED && highs[slot] == high && lows[slot] == low) {
+                return slot;
+            }
+        }
+    }
+
+    private void clearSlot(int slot) {
+        locations[slot] = REMOVED;
+        size--;
+        removedSlots++;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        long[] oldLocations = locations;
+
+        newIndex(capacity);
+        for (int slot = 0; slot < oldLocations.length; slot++) {
+            if (oldLocations[slot] >= 0) {
+                indexPut(oldHighs[slot], oldLows[slot], oldLocations[slot]);
+            }
+        }
+    }
+
+    //The sorted ids
+
+    /**
+     * Sorts the ids of the index, once it has been replayed.
+     */
+    private void sortIds() {
+        RingId[] ids = new RingId[size];
+        int count = 0;
+        for (int slot = 0; slot < locations.length; slot++) {
+            if (locations[slot] >= 0) {
+                ids[count++] = new RingId(highs[slot], lows[slot]);
+            }
+        }
+        Arrays.sort(ids);
+
+        orderHighs = new long[count];
+        orderLows = new long[count];
+        for (int i = 0; i < count; i++) {
+            orderHighs[i] = ids[i].getHigh();
+            orderLows[i] = ids[i].getLow();
+        }
+        orderSize = count;
+        recent.clear();
+    }
+
+    /**
+     * A key that is new to the index. One that was removed since the last merge is still in the arrays.
+     */
+    private void addToOrder(RingId id) {
+        int at = after(id.getHigh(), id.getLow());
+        if (at > 0 && orderHighs[at - 1] == id.getHigh() && orderLows[at - 1] == id.getLow()) {
+            return;
+        }
+        recent.add(id);
+        if (recent.size() > Math.max(MIN_MERGE, orderSize / 8)) {
+            mergeOrder();
+        }
+    }
+
+    /**
+     * Merges the new ids into the arrays and drops the removed ones, in one pass.
+     */
+    private void mergeOrder() {
+        long[] mergedHighs = new long[size];
+        long[] mergedLows = new long[size];
+        int count = 0;
+        int next = 0;
+        Iterator<RingId> added = recent.iterator();
+        RingId pending = added.hasNext() ? added.next() : null;
+        while (next < orderSize || pending != null) {
+            long high;
+            long low;
+            if (pending == null || (next < orderSize && compare(orderHighs[next], orderLows[next], pending) < 0)) {
+                high = orderHighs[next];
+                low = orderLows[next];
+                next++;
+            } else {
+                high = pending.getHigh();
+                low = pending.getLow();
+                pending = added.hasNext() ? added.next() : null;
+            }
+            if (find(high, low) >= 0) {
+                mergedHighs[count] = high;
+                mergedLows[count] = low;
+                count++;
+            }
+        }
+
+        orderHighs = mergedHighs;
+        orderLows = mergedLows;
+        orderSize = count;
+        recent.clear();
+    }
+
+    /**
+     * Reads the live keys of the sorted ids [from, to) and of the new ones, in order, into the range.
+     *
+     * @return false once the range is full or the ids have gone past its end
+     */
+    private boolean walk(int from, int to, Iterator<RingId> added, RingId start, RingId end, int limit,
+                         Map<BigInteger, String> range) {
+        int next = from;
+        RingId pending = added.hasNext() ? added.next() : null;
+        while (next < to || pending != null) {
+            if (range.size() >= limit) {
+                return false;
+            }
+            long high;
+            long low;
+            if (pending == null || (next < to && compare(orderHighs[next], orderLows[next], pending) < 0)) {
+                high = orderHighs[next];
+                low = orderLows[next];
+                next++;
+            } else {
+                high = pending.getHigh();
+                low = pending.getLow();
+                pending = added.hasNext() ? added.next() : null;
+            }
+            if (!inRange(high, low, start, end)) {
+                return false;
+            }
+            int slot = find(high, low);
+            if (slot >= 0) {
+                range.put(new RingId(high, low).toBigInteger(), read(locations[slot]));
+            }
+        }
+        return range.size() < limit;
+    }
+
+    /**
+     * The position of the first sorted id after the given one.
+     */
+    private int after(long high, long low) {
+        int from = 0;
+        int to = orderSize;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (compare(orderHighs[middle], orderLows[middle], high, low) <= 0) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    private static int hash(long high, long low) {
+        //The ids are MD5 digests or random, but mix anyway in case an application picks its own keys
+        long mixed = high * 0x9E3779B97F4A7C15L ^ low;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xFF51AFD7ED558CCDL;
+        mixed ^= mixed >>> 33;
+        return (int) mixed;
+    }
+
+    /**
+     * The clockwise interval (from, to] of RingId.isBetween, without making a RingId for every slot.
+     */
+    private static boolean inRange(long high, long low, RingId from, RingId to) {
+        int order = from.compareTo(to);
+        if (order < 0) {
+            return compare(high, low, from) > 0 && compare(high, low, to) <= 0;
+        } else if (order > 0) {
+            return compare(high, low, from) > 0 || compare(high, low, to) <= 0;
+        }
+        return true;
+    }
+
+    private static int compare(long high, long low, RingId id) {
+        return compare(high, low, id.getHigh(), id.getLow());
+    }
+
+    private static int compare(long high, long low, long otherHigh, long otherLow) {
+        int order = Long.compareUnsigned(high, otherHigh);
+        if (order != 0) {
+            return order;
+        }
+        return Long.compareUnsigned(low, otherLow);
+    }
+}
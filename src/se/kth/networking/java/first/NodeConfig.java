@@ -0,0 +1,385 @@
+package se.kth.networking.java.first;
+
+/**
+ * Tunables for a single node. The defaults match what the ring has always used,
+ * so a plain new NodeConfig() gives the old behaviour.
+ */
+public class NodeConfig {
+
+    public enum AcceptorMode {
+        //One blocking thread per accepted connection
+        THREAD_PER_CONNECTION,
+        //A few selector threads for all connections, messages are handled on the lanes
+        REACTOR
+    }
+
+    public enum StorageMode {
+        //The application keeps the keys, Server uses the ApplicationDomain it is given as it is
+        APPLICATION,
+        //A MappedStore below storageDirectory, off the heap
+        MAPPED,
+        //A DurableStore below storageDirectory, logged and snapshotted so it survives a crash
+        DURABLE
+    }
+
+    public enum WriteAck {
+        //The owner has stored it
+        ONE,
+        //A majority of the owner and its replicas have
+        QUORUM,
+        //The owner and every replica have
+        ALL
+    }
+
+    //Where the node keeps its keys
+    private StorageMode storageMode = StorageMode.APPLICATION;
+
+    //The stores of the other storage modes go in a directory per port below this one
+    private String storageDirectory = "data";
+
+    //How the DURABLE store forces its log to disk, and how often with INTERVAL (ms)
+    private DurableStore.SyncPolicy syncPolicy = DurableStore.SyncPolicy.INTERVAL;
+    private long syncInterval = 100;
+
+    //How often the DURABLE store takes a snapshot so the log can go (ms)
+    private long snapshotInterval = 60000;
+
+    //How many pooled connections we keep open towards one peer
+    private int maxConnectionsPerPeer = 2;
+
+    //Pooled connections that have been unused this long are closed (ms)
+    private long connectionIdleTimeout = 30000;
+
+    //A request that got no reply within this time fails with a SocketTimeoutException (ms)
+    private int requestTimeout = 30000;
+
+    //A get that got no answer from the responsible node within this time fails with a TimeoutException (ms)
+    private int lookupTimeout = 5000;
+
+    //How many of the nodes after us we keep track of. We can fail over past this many minus one dead nodes.
+    private int successorListLength = 4;
+
+    //Suspicion level at which the failure detector gives up on the successor or the predecessor
+    private double phiThreshold = 8.0;
+
+    //Failed exchanges in a row before a node is suspected, whatever its phi
+    private int suspectAfterFailures = 1;
+
+    //Nodes that keep every key, the owner and the next replicationFactor - 1 nodes on the ring.
+    //Keep it no larger than successorListLength, the replicas are taken from that list.
+    private int replicationFactor = 1;
+
+    //When a write counts as done
+    private WriteAck writeAck = WriteAck.QUORUM;
+
+    //Ranges of the ring whose owner we remember, so lookups and adds in them go straight to it
+    private int ownerCacheSize = 1024;
+
+    //Values of hot keys we keep to answer reads without the owner, 0 turns it off
+    private int valueCacheSize = 0;
+
+    //How long a cached value may be used, the most a read from the cache can lag behind a write (ms)
+    private int valueCacheTtl = 1000;
+
+    //Reads per second of a key we own before we tell the readers it is hot
+    private int hotKeyThreshold = 50;
+
+    //Keys per put_batch or get_batch message in putAll and getAll
+    private int batchSize = 1000;
+
+    //Bytes of batches sent and not acknowledged yet, putAll waits before it goes over this
+    private long maxBatchBytesInFlight = 8 * 1024 * 1024;
+
+    //Chunks of batchSize keys a leaving node has sent to its successor and not had acknowledged yet
+    private int handoffWindow = 4;
+
+    //How long shutdown waits for the keys to be handed over before it closes the connections (ms)
+    private int drainTimeout = 30000;
+
+    //Codec we ask for on outgoing connections, "binary" or "json". Peers fall back to json if they don't know it.
+    private String codec = "binary";
+
+    //Print every message sent and received, for debugging. Batches make for very long lines.
+    private boolean traceMessages = false;
+
+    //Threads that run the continuations of outbound requests
+    private int callbackThreads = 4;
+
+    //The accepting side drops connections that have been silent this long (ms).
+    //Keep it larger than connectionIdleTimeout so the client side closes first.
+    private int serverIdleTimeout = 60000;
+
+    //The blocking acceptor needs a thread per open connection, and peers now keep theirs open
+    private int acceptorThreads = 32;
+
+    //Threads for ring maintenance messages (notify, request, probes). Kept apart from the data lane
+    //so a burst of adds and lookups can't hold up stabilization.
+    private int controlThreads = 2;
+
+    //Threads for add, lookup and lookup_response
+    private int dataThreads = 8;
+
+    private AcceptorMode acceptorMode = AcceptorMode.THREAD_PER_CONNECTION;
+
+    //Event loop threads in REACTOR mode
+    private int reactorThreads = 2;
+
+    //Run accepted connections, message handlers and outbound exchanges on virtual threads (Java 21+)
+    private boolean virtualThreads = false;
+
+    public int getMaxConnectionsPerPeer() {
+        return maxConnectionsPerPeer;
+    }
+
+    public void setMaxConnectionsPerPeer(int maxConnectionsPerPeer) {
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+    }
+
+    public long getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public int getSuccessorListLength() {
+        return successorListLength;
+    }
+
+    public void setSuccessorListLength(int successorListLength) {
+        this.successorListLength = successorListLength;
+    }
+
+    public double getPhiThreshold() {
+        return phiThreshold;
+    }
+
+    public void setPhiThreshold(double phiThreshold) {
+        this.phiThreshold = phiThreshold;
+    }
+
+    public int getSuspectAfterFailures() {
+        return suspectAfterFailures;
+    }
+
+    public void setSuspectAfterFailures(int suspectAfterFailures) {
+        this.suspectAfterFailures = suspectAfterFailures;
+    }
+
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    public void setReplicationFactor(int replicationFactor) {
+        this.replicationFactor = replicationFactor;
+    }
+
+    public WriteAck getWriteAck() {
+        return writeAck;
+    }
+
+    public void setWriteAck(WriteAck writeAck) {
+        this.writeAck = writeAck;
+    }
+
+    public int getOwnerCacheSize() {
+        return ownerCacheSize;
+    }
+
+    public void setOwnerCacheSize(int ownerCacheSize) {
+        this.ownerCacheSize = ownerCacheSize;
+    }
+
+    public int getValueCacheSize() {
+        return valueCacheSize;
+    }
+
+    public void setValueCacheSize(int valueCacheSize) {
+        this.valueCacheSize = valueCacheSize;
+    }
+
+    public int getValueCacheTtl() {
+        return valueCacheTtl;
+    }
+
+    public void setValueCacheTtl(int valueCacheTtl) {
+        this.valueCacheTtl = valueCacheTtl;
+    }
+
+    public int getHotKeyThreshold() {
+        return hotKeyThreshold;
+    }
+
+    public void setHotKeyThreshold(int hotKeyThreshold) {
+        this.hotKeyThreshold = hotKeyThreshold;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getMaxBatchBytesInFlight() {
+        return maxBatchBytesInFlight;
+    }
+
+    public void setMaxBatchBytesInFlight(long maxBatchBytesInFlight) {
+        this.maxBatchBytesInFlight = maxBatchBytesInFlight;
+    }
+
+    public int getHandoffWindow() {
+        return handoffWindow;
+    }
+
+    public void setHandoffWindow(int handoffWindow) {
+        this.handoffWindow = handoffWindow;
+    }
+
+    public int getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public void setDrainTimeout(int drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    public int getLookupTimeout() {
+        return lookupTimeout;
+    }
+
+    public void setLookupTimeout(int lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    public boolean isTraceMessages() {
+        return traceMessages;
+    }
+
+    public void setTraceMessages(boolean traceMessages) {
+        this.traceMessages = traceMessages;
+    }
+
+    public int getCallbackThreads() {
+        return callbackThreads;
+    }
+
+    public void setCallbackThreads(int callbackThreads) {
+        this.callbackThreads = callbackThreads;
+    }
+
+    public int getServerIdleTimeout() {
+        return serverIdleTimeout;
+    }
+
+    public void setServerIdleTimeout(int serverIdleTimeout) {
+        this.serverIdleTimeout = serverIdleTimeout;
+    }
+
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    public void setAcceptorThreads(int acceptorThreads) {
+        this.acceptorThreads = acceptorThreads;
+    }
+
+    public AcceptorMode getAcceptorMode() {
+        return acceptorMode;
+    }
+
+    public void setAcceptorMode(AcceptorMode acceptorMode) {
+        this.acceptorMode = acceptorMode;
+    }
+
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    public void setReactorThreads(int reactorThreads) {
+        this.reactorThreads = reactorThreads;
+    }
+
+    public int getControlThreads() {
+        return controlThreads;
+    }
+
+    public void setControlThreads(int controlThreads) {
+        this.controlThreads = controlThreads;
+    }
+
+    public int getDataThreads() {
+        return dataThreads;
+    }
+
+    public void setDataThreads(int dataThreads) {
+        this.dataThreads = dataThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public void setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public String getStorageDirectory() {
+        return storageDirectory;
+    }
+
+    public void setStorageDirectory(String storageDirectory) {
+        this.storageDirectory = storageDirectory;
+    }
+
+    public DurableStore.SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(DurableStore.SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public void setSnapshotInterval(long snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+}
@@ -0,0 +1,127 @@
+package se.kth.networking.java.first;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Thread safe key store for applications, kept in ring order. Ids are positive and below 2^128, so the
+ * natural order of the BigIntegers is the order on the ring and a clockwise interval is one slice of the
+ * map, or two when it wraps past zero. Range reads and deletes only touch the keys in the range.
+ *
+ * Readers never block writers, a range that is read while keys are stored may or may not see them.
+ */
+public class RingStore {
+
+    private ConcurrentSkipListMap<BigInteger, String> store;
+
+    public RingStore() {
+        this.store = new ConcurrentSkipListMap<>();
+    }
+
+    public void put(BigInteger key, String value) {
+        store.put(key, value);
+    }
+
+    public String get(BigInteger key) {
+        return store.get(key);
+    }
+
+    public String remove(BigInteger key) {
+        return store.remove(key);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * A read only view of the store, in ring order. It stays live, so iterating it does not copy anything.
+     */
+    public Map<BigInteger, String> asMap() {
+        return Collections.unmodifiableMap(store);
+    }
+
+    /**
+     * A copy of the entries with keys in the clockwise interval (from, to]. When from and to are the same
+     * the interval is the whole ring, like RingId.isBetween.
+     */
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to) {
+        Map<BigInteger, String> range = new HashMap<>();
+        int order = from.compareTo(to);
+        if (order < 0) {
+            range.putAll(store.subMap(from, false, to, true));
+        } else if (order > 0) {
+            range.putAll(store.tailMap(from, false));
+            range.putAll(store.headMap(to, true));
+        } else {
+            range.putAll(store);
+        }
+        return range;
+    }
+
+    /**
+     * A copy of the first limit entries of the clockwise interval (from, to], in order going clockwise from
+     * from. Only walks as far as it has to.
+     */
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to, int limit) {
+        Map<BigInteger, String> range = new LinkedHashMap<>();
+        if (from.compareTo(to) < 0) {
+            take(store.subMap(from, false, to, true), range, limit);
+        } else {
+            //Past zero, or the whole ring starting after from
+            take(store.tailMap(from, false), range, limit);
+            take(store.headMap(to, true), range, limit);
+        }
+        return range;
+    }
+
+    private static void take(ConcurrentNavigableMap<BigInteger, String> slice, Map<BigInteger, String> range, int limit) {
+        for (Map.Entry<BigInteger, String> entry : slice.entrySet()) {
+            if (range.size() >= limit) {
+                return;
+            }
+            range.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes the keys in the clockwise interval (from, to].
+     */
+    public void removeRange(BigInteger from, BigInteger to) {
+        int order = from.compareTo(to);
+        if (order < 0) {
+            store.subMap(from, false, to, true).clear();
+        } else if (order > 0) {
+            store.tailMap(from, false).clear();
+            store.headMap(to, true).clear();
+        } else {
+            store.clear();
+        }
+    }
+
+    /**
+     * Number of keys in the clockwise interval (from, to]. The skip list has no counts, so this walks the range.
+     */
+    public int sizeOfRange(BigInteger from, BigInteger to) {
+        int order = from.compareTo(to);
+        if (order < 0) {
+            return count(store.subMap(from, false, to, true));
+        } else if (order > 0) {
+            return count(store.tailMap(from, false)) + count(store.headMap(to, true));
+        }
+        return store.size();
+    }
+
+    private static int count(ConcurrentNavigableMap<BigInteger, String> range) {
+        int count = 0;
+        for (Map.Entry<BigInteger, String> ignored : range.entrySet()) {
+            count++;
+        }
+        return count;
+    }
+}
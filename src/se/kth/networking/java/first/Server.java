@@ -1,17 +1,21 @@
 package se.kth.networking.java.first;
 
-import org.json.JSONObject;
-import se.kth.networking.java.first.models.Node;
-import se.kth.networking.java.first.models.OnResponse;
-import se.kth.networking.java.first.network.ClientAcceptor;
+import se.kth.networking.java.first.messages.*;
+import se.kth.networking.java.first.models.RingId;
+import se.kth.networking.java.first.network.*;
 import se.kth.networking.java.first.ring.RingHandler;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by Nick on 11/2/2016.
@@ -19,28 +23,48 @@ import java.util.*;
 public class Server {
 
     private RingHandler ringHandler;
-    private ClientAcceptor acceptor;
+    private Acceptor acceptor;
+    private LaneDispatcher dispatcher;
     private ApplicationDomain app;
+    //The app, or the app with its keys in the store NodeConfig asked for
+    private ApplicationDomain store;
 
 
     public Server(ApplicationDomain app, String ip, int port) {
+        this(app, ip, port, new NodeConfig());
+    }
+
+    public Server(ApplicationDomain app, String ip, int port, NodeConfig config) {
         this.app = app;
         //Default to localhost
         if(ip == null){
             ip = "127.0.0.1";
         }
 
+        try {
+            app = StoredApplication.open(app, config, port);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the store of " + port, e);
+        }
+        this.store = app;
+
         //Please fix dynamic ip
-        ringHandler = new RingHandler(ip, port, app);
+        ringHandler = new RingHandler(ip, port, app, config);
+
+        LaneExecutor control = new LaneExecutor(Lane.CONTROL, config.isVirtualThreads() ?
+                VirtualThreads.newPerTaskExecutor() : Executors.newFixedThreadPool(config.getControlThreads()));
+        LaneExecutor data = new LaneExecutor(Lane.DATA, config.isVirtualThreads() ?
+                VirtualThreads.newPerTaskExecutor() : Executors.newFixedThreadPool(config.getDataThreads()));
+        dispatcher = new LaneDispatcher(createHandlers(), control, data, config.isTraceMessages());
 
         try {
-            acceptor = new ClientAcceptor(port, new OnResponse<String>(){
-                @Override
-                public String onResponse(String response, Node node) {
-                    System.out.println("Received request");
-                    return handleMessage(response, node);
-                }
-            });
+            if (config.getAcceptorMode() == NodeConfig.AcceptorMode.REACTOR) {
+                acceptor = new ReactorAcceptor(port, dispatcher, config.getReactorThreads(), config.getServerIdleTimeout());
+            } else {
+                ExecutorService executor = config.isVirtualThreads() ? VirtualThreads.newPerTaskExecutor()
+                        : Executors.newFixedThreadPool(config.getAcceptorThreads());
+                acceptor = new ClientAcceptor(port, dispatcher, executor, config.getServerIdleTimeout());
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -67,90 +91,165 @@ public class Server {
         return port;
     }
 
-    private boolean isValidMessage(String msg){
-        return msg != null;
+    /**
+     * Every message type and the lane it is handled on. Anything that keeps the ring together goes on
+     * the control lane, client data on the data lane.
+     */
+    private HandlerRegistry createHandlers(){
+        HandlerRegistry handlers = new HandlerRegistry();
+
+        handlers.register(NotifyMessage.TYPE, NotifyMessage.class, Lane.CONTROL,
+                (message, node) -> ringHandler.notifyPredecessor(node));
+        handlers.register(RequestMessage.TYPE, RequestMessage.class, Lane.CONTROL,
+                (message, node) -> ringHandler.onRequest(message));
+        handlers.register(FindSuccessorMessage.TYPE, FindSuccessorMessage.class, Lane.CONTROL, (message, node) -> {
+            ringHandler.lookup(message);
+            return null;
+        });
+        handlers.register(SuccessorFoundMessage.TYPE, SuccessorFoundMessage.class, Lane.CONTROL, (message, node) -> {
+            ringHandler.deliverLookup(message);
+            return null;
+        });
+        handlers.register(ProbeMessage.TYPE, ProbeMessage.class, Lane.CONTROL, (message, node) -> {
+            ringHandler.handleProbe(message);
+            return null;
+        });
+        handlers.register(SuccessorChangedMessage.TYPE, SuccessorChangedMessage.class, Lane.CONTROL, (message, node) -> {
+            ringHandler.updateSuccessorList();
+            return null;
+        });
+        handlers.register(UnlinkPredecessorMessage.TYPE, UnlinkPredecessorMessage.class, Lane.CONTROL, (message, node) -> {
+            ringHandler.unlinkPredecessor(message);
+            return null;
+        });
+
+        handlers.registerAsync(AddMessage.TYPE, AddMessage.class, Lane.DATA,
+                (message, node) -> ringHandler.store(message.getKey(), message.getValue()));
+        handlers.registerAsync(PutBatchMessage.TYPE, PutBatchMessage.class, Lane.DATA,
+                (message, node) -> ringHandler.putBatch(message));
+        handlers.register(GetBatchMessage.TYPE, GetBatchMessage.class, Lane.DATA,
+                (message, node) -> ringHandler.getBatch(message));
+        handlers.register(HandoffMessage.TYPE, HandoffMessage.class, Lane.DATA, (message, node) -> {
+            ringHandler.storeAll(message);
+            return null;
+        });
+        handlers.register(ReplicateMessage.TYPE, ReplicateMessage.class, Lane.DATA, (message, node) -> {
+            ringHandler.storeAll(message);
+            return null;
+        });
+        handlers.register(DropReplicaMessage.TYPE, DropReplicaMessage.class, Lane.DATA, (message, node) -> {
+            ringHandler.dropReplica(message);
+            return null;
+        });
+        handlers.register(ReplicaLookupMessage.TYPE, ReplicaLookupMessage.class, Lane.DATA, (message, node) -> {
+            ringHandler.lookup(message);
+            return null;
+        });
+        handlers.register(LookupMessage.TYPE, LookupMessage.class, Lane.DATA, (message, node) -> {
+            ringHandler.lookup(message);
+            return null;
+        });
+        handlers.register(LookupResponseMessage.TYPE, LookupResponseMessage.class, Lane.DATA, (message, node) -> {
+            ringHandler.deliverLookup(message);
+            return null;
+        });
+
+        return handlers;
     }
 
-    private String handleMessage(String clientMessage, Node node){
+    public void addKey(BigInteger key, String value){
+        ringHandler.addKey(RingId.fromBigInteger(key), value);
+    }
 
-        String response = "Bad request";
+    /**
+     * Stores the value on its owner and the owner's replicas. The future is true once as many copies as
+     * NodeConfig.getWriteAck asks for have it.
+     */
+    public CompletableFuture<Boolean> put(BigInteger key, String value){
+        return ringHandler.put(RingId.fromBigInteger(key), value);
+    }
 
-        System.out.println("RECEIVED: " + clientMessage + " \nSELF:" + getRingHandler().getSelf().getPort());
-       // System.out.println("SELF: " + ringHandler.getSelf());
-        JSONObject message = null;
-        try{
-            message = new JSONObject(clientMessage);
-        }catch(Exception e){
-            System.out.println("Client message: " + clientMessage);
-            return response;
+    /**
+     * Stores all the entries, batched per owner node. The future has an acknowledgement for every key,
+     * false for the keys that could not be stored.
+     */
+    public CompletableFuture<Map<BigInteger, Boolean>> putAll(Map<BigInteger, String> entries){
+        final Map<RingId, BigInteger> keys = new HashMap<>();
+        Map<RingId, String> byId = new HashMap<>();
+        for (Map.Entry<BigInteger, String> entry : entries.entrySet()) {
+            RingId id = RingId.fromBigInteger(entry.getKey());
+            keys.put(id, entry.getKey());
+            byId.put(id, entry.getValue());
         }
 
-        if(isValidMessage(clientMessage)){
-            switch (message.getString("type")){
-                case "notify":
-                    response = ringHandler.notifyPredecessor(node);
-                    break;
-                case "finger_probe":
-                    //System.out.println(clientMessage.toString()); TODO debug purposes
-                    ringHandler.handleFingerProbe(clientMessage, node);
-                    break;
-                case "finger_probe_response":
-                    ringHandler.fingerProbeResponse(clientMessage, node);
-                    break;
-                case "probe":
-                    ringHandler.handleProbe(clientMessage, node);
-                    break;
-                case "request":
-                    response = ringHandler.onRequest(clientMessage, node);
-                    break;
-                case "lookup":
-                    ringHandler.lookup(clientMessage);
-                    break;
-                case "lookup_response":
-                    ringHandler.deliverLookup(clientMessage);
-                    break;
-                case "successorChanged":
-                    ringHandler.updateNextSuccessor();
-                    break;
-                case "unlink_predecessor":
-                    ringHandler.unlinkPredecessor(clientMessage);
-                    break;
-                case "add":
-                    String payload = message.getString("value");
-                    BigInteger key = message.getBigInteger("key");
-
-                    ringHandler.addKey(key, payload);
-                    break;
+        return ringHandler.putAll(byId).thenApply(acks -> {
+            Map<BigInteger, Boolean> result = new HashMap<>();
+            for (Map.Entry<RingId, Boolean> ack : acks.entrySet()) {
+                result.put(keys.get(ack.getKey()), ack.getValue());
             }
+            return result;
+        });
+    }
+
+    /**
+     * Reads all the keys, batched per owner node. The map has a value for every key that could be read,
+     * null if nothing is stored for it. Keys that could not be read are left out. Fails with a
+     * TimeoutException if it takes longer than the lookup timeout.
+     */
+    public CompletableFuture<Map<BigInteger, String>> getAll(Collection<BigInteger> keys){
+        final Map<RingId, BigInteger> byId = new HashMap<>();
+        for (BigInteger key : keys) {
+            byId.put(RingId.fromBigInteger(key), key);
         }
 
-        return response;
+        return ringHandler.getAll(byId.keySet()).thenApply(values -> {
+            Map<BigInteger, String> result = new HashMap<>();
+            for (Map.Entry<RingId, String> value : values.entrySet()) {
+                result.put(byId.get(value.getKey()), value.getValue());
+            }
+            return result;
+        });
     }
 
-    public void addKey(BigInteger key, String value){
-        ringHandler.addKey(key, value);
+    /**
+     * Fire and forget lookup, the value is passed to ApplicationDomain.foundKey.
+     */
+    public void lookup(final BigInteger key){
+        get(key).whenComplete((value, e) -> {
+            if (e != null) {
+                System.out.println("Lookup of " + key + " failed: " + e.getMessage());
+            } else {
+                app.foundKey(key, value);
+            }
+        });
     }
 
-    public void lookup(BigInteger key){
-        ringHandler.lookup(key, ringHandler.getSelf());
+    /**
+     * The value stored for the key, null if there is none. Fails with a TimeoutException if the
+     * responsible node doesn't answer within the lookup timeout.
+     */
+    public CompletableFuture<String> get(BigInteger key){
+        return ringHandler.get(RingId.fromBigInteger(key));
     }
 
     public void sendNotify(String ip, int port){
-        try {
-            ringHandler.sendNotify(ip, port);
-        } catch (IOException e) {
+        ringHandler.sendNotify(ip, port).exceptionally(e -> {
             e.printStackTrace();
-        }
+            return null;
+        });
     }
 
     public void probe(){
         ringHandler.probe();
     }
 
-    public static void main(String[] args) throws IOException, InterruptedException {
-        ApplicationDomain app = new ApplicationDomain() {
+    /**
+     * The application of a node in main, every node keeps its own keys.
+     */
+    private static ApplicationDomain demoApplication() {
+        return new ApplicationDomain() {
 
-            HashMap<BigInteger, String> store = new HashMap<>();
+            RingStore store = new RingStore();
 
             @Override
             public void storeKey(BigInteger key, String value) {
@@ -170,22 +269,54 @@ public class Server {
 
             @Override
             public Map<BigInteger, String> getStore() {
-                return store;
+                return store.asMap();
+            }
+
+            @Override
+            public void removeKey(BigInteger key) {
+                store.remove(key);
+            }
+
+            @Override
+            public Map<BigInteger, String> getRange(BigInteger from, BigInteger to) {
+                return store.getRange(from, to);
+            }
+
+            @Override
+            public Map<BigInteger, String> getRange(BigInteger from, BigInteger to, int limit) {
+                return store.getRange(from, to, limit);
+            }
+
+            @Override
+            public void removeRange(BigInteger from, BigInteger to) {
+                store.removeRange(from, to);
+            }
+
+            @Override
+            public int sizeOfRange(BigInteger from, BigInteger to) {
+                return store.sizeOfRange(from, to);
             }
         };
+    }
 
+    public static void main(String[] args) throws IOException, InterruptedException {
+        //The storage mode can be given, MAPPED or DURABLE, the keys then go to a store of every node
+        NodeConfig config = new NodeConfig();
+        if (args.length > 0) {
+            config.setStorageMode(NodeConfig.StorageMode.valueOf(args[0].toUpperCase()));
+        }
 
         //Server server1 = new Server(app, "130.229.146.35", 5050);
-        Server server1 = new Server(app, null, 5050);
+        Server server1 = new Server(demoApplication(), null, 5050, config);
         server1.start();
 
 
-        Server server2 = new Server(app, null, 6060);
+        Server server2 = new Server(demoApplication(), null, 6060, config);
         server2.start();
 
         Thread.sleep(200);
 
-        Server server3 = new Server(app, null, 7070);
+        Server server3 = new Server(demoApplication(), null, 7070, config);
         server3.start();
 
         //server1.sendNotify(server2.getRingHandler().getIp(), server2.getRingHandler().getPort());
@@ -271,6 +402,22 @@ public class Server {
     private void stop() {
         acceptor.shutdown();
         ringHandler.shutdown();
+        dispatcher.shutdown();
+        //The keys have been handed over, the store can go
+        if (store instanceof Closeable) {
+            try {
+                ((Closeable) store).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Queue depths and wait times of the control and data lanes.
+     */
+    public LaneDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     public RingHandler getRingHandler() {
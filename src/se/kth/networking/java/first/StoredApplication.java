@@ -0,0 +1,91 @@
+package se.kth.networking.java.first;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+ * An application whose keys are kept in a store of their own, picked with NodeConfig.setStorageMode.
+ * Everything about the keys goes to the store, the application only hears about the lookups.
+ */
+public class StoredApplication implements ApplicationDomain, Closeable {
+
+    private ApplicationDomain app;
+    private ApplicationDomain store;
+
+    public StoredApplication(ApplicationDomain app, ApplicationDomain store) {
+        this.app = app;
+        this.store = store;
+    }
+
+    /**
+     * The application as it is in APPLICATION mode, otherwise with its keys in the store of the mode in
+     * a directory of the node below NodeConfig.getStorageDirectory.
+     */
+    public static ApplicationDomain open(ApplicationDomain app, NodeConfig config, int port) throws IOException {
+        File directory = new File(config.getStorageDirectory(), "node-" + port);
+        switch (config.getStorageMode()) {
+            case MAPPED:
+                return new StoredApplication(app, new MappedStore(directory));
+            case DURABLE:
+                return new StoredApplication(app, new DurableStore(directory, config.getSyncPolicy(),
+                        config.getSyncInterval(), config.getSnapshotInterval()));
+            default:
+                return app;
+        }
+    }
+
+    @Override
+    public void storeKey(BigInteger key, String value) {
+        store.storeKey(key, value);
+    }
+
+    @Override
+    public String getKey(BigInteger key) {
+        return store.getKey(key);
+    }
+
+    @Override
+    public void foundKey(BigInteger key, String value) {
+        app.foundKey(key, value);
+    }
+
+    @Override
+    public Map<BigInteger, String> getStore() {
+        return store.getStore();
+    }
+
+    @Override
+    public void removeKey(BigInteger key) {
+        store.removeKey(key);
+    }
+
+    @Override
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to) {
+        return store.getRange(from, to);
+    }
+
+    @Override
+    public Map<BigInteger, String> getRange(BigInteger from, BigInteger to, int limit) {
+        return store.getRange(from, to, limit);
+    }
+
+    @Override
+    public void removeRange(BigInteger from, BigInteger to) {
+        store.removeRange(from, to);
+    }
+
+    @Override
+    public int sizeOfRange(BigInteger from, BigInteger to) {
+        return store.sizeOfRange(from, to);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (store instanceof Closeable) {
+            ((Closeable) store).close();
+        }
+    }
+}
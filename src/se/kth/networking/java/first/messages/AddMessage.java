@@ -0,0 +1,47 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * Stores a value, passed along the successors until it reaches the node responsible for the key.
+ */
+public class AddMessage extends Message {
+
+    public static final String TYPE = "add";
+
+    private RingId key;
+    private String value;
+
+    public AddMessage(Node sender, RingId key, String value) {
+        super(sender);
+        this.key = key;
+        this.value = value;
+    }
+
+    AddMessage(JSONObject json) {
+        super(json);
+        this.key = readId(json, "key");
+        this.value = json.getString("value");
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public RingId getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("key", key);
+        json.put("value", value);
+    }
+}
@@ -0,0 +1,53 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * The reply to an add, sent by the node that stored the value. Acked is false if too few replicas got a
+ * copy. The node says where its range starts, like in a lookup response, so the sender can cache it.
+ */
+public class AddReplyMessage extends Message {
+
+    public static final String TYPE = "add_reply";
+
+    private boolean acked;
+    private RingId rangeStart;
+
+    public AddReplyMessage(Node sender, boolean acked, RingId rangeStart) {
+        super(sender);
+        this.acked = acked;
+        this.rangeStart = rangeStart;
+    }
+
+    AddReplyMessage(JSONObject json) {
+        super(json);
+        this.acked = json.optBoolean("acked", true);
+        this.rangeStart = json.has("rangeStart") ? readId(json, "rangeStart") : null;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public boolean isAcked() {
+        return acked;
+    }
+
+    /**
+     * The sender owns the keys in (rangeStart, sender], null if it didn't say.
+     */
+    public RingId getRangeStart() {
+        return rangeStart;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("acked", acked);
+        if (rangeStart != null) {
+            json.put("rangeStart", rangeStart);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package se.kth.networking.java.first.messages;
+
+import se.kth.networking.java.first.models.Node;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handles one type of message whose reply has to wait for other nodes. The lane thread is free again as
+ * soon as handle returns, the reply goes out when the future completes.
+ */
+public interface AsyncMessageHandler<T extends Message> {
+
+    /**
+     * @return the reply to send back, completed with null if the message has nothing to reply
+     */
+    CompletableFuture<? extends Message> handle(T message, Node sender);
+}
@@ -0,0 +1,48 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * Sent by an owner to a node that is no longer one of its replicas, because nodes joined in between. The
+ * receiver drops its copies of the keys in (from, to], the owner's range.
+ */
+public class DropReplicaMessage extends Message {
+
+    public static final String TYPE = "drop_replica";
+
+    private RingId from;
+    private RingId to;
+
+    public DropReplicaMessage(Node sender, RingId from, RingId to) {
+        super(sender);
+        this.from = from;
+        this.to = to;
+    }
+
+    DropReplicaMessage(JSONObject json) {
+        super(json);
+        this.from = readId(json, "from");
+        this.to = readId(json, "to");
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public RingId getFrom() {
+        return from;
+    }
+
+    public RingId getTo() {
+        return to;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("from", from);
+        json.put("to", to);
+    }
+}
@@ -0,0 +1,32 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * Finds the node responsible for a key, routed like a lookup. The responsible node answers the asker with
+ * a SuccessorFoundMessage instead of the value, this is how the finger table is kept up to date.
+ */
+public class FindSuccessorMessage extends LookupMessage {
+
+    public static final String TYPE = "find_successor";
+
+    public FindSuccessorMessage(Node sender, RingId key, Node asker, long requestId, int hops) {
+        super(sender, key, asker, requestId, hops);
+    }
+
+    FindSuccessorMessage(JSONObject json) {
+        super(json);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public LookupMessage forwardedBy(Node sender) {
+        return new FindSuccessorMessage(sender, getKey(), getAsker(), getRequestId(), getHops() + 1);
+    }
+}
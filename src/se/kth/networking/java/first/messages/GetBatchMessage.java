@@ -0,0 +1,48 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads many keys from the node responsible for them, sent straight to that node. The reply has the
+ * values of the keys it is responsible for and lists the others as rejected.
+ */
+public class GetBatchMessage extends Message {
+
+    public static final String TYPE = "get_batch";
+
+    private List<RingId> keys;
+
+    public GetBatchMessage(Node sender, List<RingId> keys) {
+        super(sender);
+        this.keys = keys;
+    }
+
+    GetBatchMessage(JSONObject json) {
+        super(json);
+        JSONArray keyArray = json.getJSONArray("keys");
+        this.keys = new ArrayList<>(keyArray.length());
+        for (int i = 0; i < keyArray.length(); i++) {
+            keys.add(toId(keyArray.get(i)));
+        }
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public List<RingId> getKeys() {
+        return keys;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("keys", new JSONArray(keys));
+    }
+}
@@ -0,0 +1,77 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The reply to a get_batch: the keys the node is responsible for with their values, null for the ones
+ * it has no value for, and the keys it is not responsible for as rejected.
+ */
+public class GetBatchReplyMessage extends Message {
+
+    public static final String TYPE = "get_batch_reply";
+
+    private List<RingId> keys;
+    private List<String> values;
+    private List<RingId> rejected;
+
+    public GetBatchReplyMessage(Node sender, List<RingId> keys, List<String> values, List<RingId> rejected) {
+        super(sender);
+        this.keys = keys;
+        this.values = values;
+        this.rejected = rejected;
+    }
+
+    GetBatchReplyMessage(JSONObject json) {
+        super(json);
+        JSONArray keyArray = json.getJSONArray("keys");
+        JSONArray valueArray = json.getJSONArray("values");
+        JSONArray rejectedArray = json.optJSONArray("rejected");
+        this.keys = new ArrayList<>(keyArray.length());
+        this.values = new ArrayList<>(keyArray.length());
+        this.rejected = new ArrayList<>(rejectedArray == null ? 0 : rejectedArray.length());
+        for (int i = 0; i < keyArray.length(); i++) {
+            keys.add(toId(keyArray.get(i)));
+            values.add(valueArray.optString(i, null));
+        }
+        for (int i = 0; rejectedArray != null && i < rejectedArray.length(); i++) {
+            rejected.add(toId(rejectedArray.get(i)));
+        }
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public List<RingId> getKeys() {
+        return keys;
+    }
+
+    /**
+     * In the same order as the keys, null where the node has no value.
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
+    public List<RingId> getRejected() {
+        return rejected;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        JSONArray valueArray = new JSONArray();
+        for (String value : values) {
+            valueArray.put(value == null ? JSONObject.NULL : value);
+        }
+        json.put("keys", new JSONArray(keys));
+        json.put("values", valueArray);
+        json.put("rejected", new JSONArray(rejected));
+    }
+}
@@ -0,0 +1,58 @@
+package se.kth.networking.java.first.messages;
+
+import se.kth.networking.java.first.models.Node;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps every message type to its handler and the lane it runs on.
+ */
+public class HandlerRegistry {
+
+    private Map<String, Registration<?>> handlers;
+
+    public HandlerRegistry() {
+        this.handlers = new ConcurrentHashMap<>();
+    }
+
+    public <T extends Message> void register(String type, Class<T> messageClass, Lane lane, MessageHandler<T> handler) {
+        handlers.put(type, new Registration<>(messageClass, lane,
+                (message, sender) -> CompletableFuture.completedFuture(handler.handle(message, sender))));
+    }
+
+    /**
+     * For handlers that reply once other nodes have answered them.
+     */
+    public <T extends Message> void registerAsync(String type, Class<T> messageClass, Lane lane, AsyncMessageHandler<T> handler) {
+        handlers.put(type, new Registration<>(messageClass, lane, handler));
+    }
+
+    /**
+     * @return the registration, or null if nobody handles the type
+     */
+    public Registration<?> get(String type) {
+        return handlers.get(type);
+    }
+
+    public static class Registration<T extends Message> {
+        private Class<T> messageClass;
+        private Lane lane;
+        private AsyncMessageHandler<T> handler;
+
+        Registration(Class<T> messageClass, Lane lane, AsyncMessageHandler<T> handler) {
+            this.messageClass = messageClass;
+            this.lane = lane;
+            this.handler = handler;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public CompletableFuture<? extends Message> handle(Message message, Node sender) {
+            return handler.handle(messageClass.cast(message), sender);
+        }
+    }
+}
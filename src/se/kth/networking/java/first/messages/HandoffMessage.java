@@ -0,0 +1,29 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.List;
+
+/**
+ * A chunk of the keys of a node that is leaving, sent to its successor. Unlike a put_batch the
+ * successor stores all of them, the keys are its own as soon as the sender is gone.
+ */
+public class HandoffMessage extends PutBatchMessage {
+
+    public static final String TYPE = "handoff";
+
+    public HandoffMessage(Node sender, List<RingId> keys, List<String> values) {
+        super(sender, keys, values);
+    }
+
+    HandoffMessage(JSONObject json) {
+        super(json);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+}
@@ -0,0 +1,12 @@
+package se.kth.networking.java.first.messages;
+
+/**
+ * The executor a message is handled on. Ring maintenance gets its own lane, so a burst of client
+ * traffic can't delay stabilization long enough for a healthy successor to look dead.
+ */
+public enum Lane {
+    //notify, request, probes, everything that keeps the ring together
+    CONTROL,
+    //add, lookup and their responses
+    DATA
+}
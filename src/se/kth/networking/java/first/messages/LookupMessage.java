@@ -0,0 +1,74 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * Looks up a key, routed towards the node responsible for it. The asker is the node that wants the value,
+ * the responsible node answers it directly with a LookupResponseMessage carrying the same request id.
+ */
+public class LookupMessage extends Message {
+
+    public static final String TYPE = "lookup";
+
+    private RingId key;
+    private Node asker;
+    private long requestId;
+    private int hops;
+
+    public LookupMessage(Node sender, RingId key, Node asker, long requestId, int hops) {
+        super(sender);
+        this.key = key;
+        this.asker = asker;
+        this.requestId = requestId;
+        this.hops = hops;
+    }
+
+    LookupMessage(JSONObject json) {
+        super(json);
+        this.key = readId(json, "key");
+        this.asker = readNode(json.get("asker"));
+        this.requestId = json.optLong("requestId");
+        this.hops = json.optInt("hops");
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public RingId getKey() {
+        return key;
+    }
+
+    public Node getAsker() {
+        return asker;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * How many times the lookup has been forwarded so far.
+     */
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * The same lookup, one hop further along.
+     */
+    public LookupMessage forwardedBy(Node sender) {
+        return new LookupMessage(sender, key, asker, requestId, hops + 1);
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("key", key);
+        json.put("asker", asker.toJson());
+        json.put("requestId", requestId);
+        json.put("hops", hops);
+    }
+}
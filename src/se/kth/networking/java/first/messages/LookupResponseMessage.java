@@ -0,0 +1,92 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * The value found for a key, null if the responsible node doesn't have it. Sent by the responsible node
+ * straight to the asker, which matches it to its lookup by the request id. The responsible node also says
+ * where its range starts, so the asker can send keys in it straight there next time. A replica that answers
+ * leaves it out.
+ *
+ * The owner marks keys that are read a lot as hot. Nodes that see a hot value may keep it for a while and
+ * answer reads of the key themselves.
+ */
+public class LookupResponseMessage extends Message {
+
+    public static final String TYPE = "lookup_response";
+
+    private RingId key;
+    private String value;
+    private long requestId;
+    private RingId rangeStart;
+    private boolean hot;
+
+    public LookupResponseMessage(Node sender, RingId key, String value, long requestId) {
+        this(sender, key, value, requestId, null);
+    }
+
+    public LookupResponseMessage(Node sender, RingId key, String value, long requestId, RingId rangeStart) {
+        this(sender, key, value, requestId, rangeStart, false);
+    }
+
+    public LookupResponseMessage(Node sender, RingId key, String value, long requestId, RingId rangeStart, boolean hot) {
+        super(sender);
+        this.key = key;
+        this.value = value;
+        this.requestId = requestId;
+        this.rangeStart = rangeStart;
+        this.hot = hot;
+    }
+
+    LookupResponseMessage(JSONObject json) {
+        super(json);
+        this.key = readId(json, "key");
+        this.value = json.optString("value", null);
+        this.requestId = json.optLong("requestId");
+        this.rangeStart = json.has("rangeStart") ? readId(json, "rangeStart") : null;
+        this.hot = json.optBoolean("hot");
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public RingId getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * The sender owns the keys in (rangeStart, sender], null if it didn't say.
+     */
+    public RingId getRangeStart() {
+        return rangeStart;
+    }
+
+    public boolean isHot() {
+        return hot;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("key", key);
+        json.put("value", value);
+        json.put("requestId", requestId);
+        if (rangeStart != null) {
+            json.put("rangeStart", rangeStart);
+        }
+        if (hot) {
+            json.put("hot", true);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message between two nodes. Inbound messages are decoded once, where the transport hands them over,
+ * and the handlers get the typed message instead of the raw text. Replies are messages too, decoded once
+ * where the reply comes in. Every message carries the address of the node that sent it.
+ */
+public abstract class Message {
+
+    private String ip;
+    private int port;
+
+    protected Message(Node sender) {
+        this(sender.getIp(), sender.getPort());
+    }
+
+    protected Message(String ip, int port) {
+        this.ip = ip;
+        this.port = port;
+    }
+
+    protected Message(JSONObject json) {
+        this(json.optString("ip"), json.optInt("port"));
+    }
+
+    public abstract String getType();
+
+    public String getIp() {
+        return ip;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Node getSender() {
+        return new Node(ip, port);
+    }
+
+    /**
+     * Adds the fields of the message, the address and the type are already there.
+     */
+    protected void writeFields(JSONObject json) {
+    }
+
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("ip", ip);
+        json.put("port", port);
+        json.put("type", getType());
+        writeFields(json);
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+
+    /**
+     * @return the typed message, or null if we don't know the type
+     * @throws org.json.JSONException if a field the type needs is missing
+     */
+    public static Message fromJson(JSONObject json) {
+        switch (json.optString("type")) {
+            case NotifyMessage.TYPE:
+                return new NotifyMessage(json);
+            case RequestMessage.TYPE:
+                return new RequestMessage(json);
+            case ProbeMessage.TYPE:
+                return new ProbeMessage(json);
+            case LookupMessage.TYPE:
+                return new LookupMessage(json);
+            case LookupResponseMessage.TYPE:
+                return new LookupResponseMessage(json);
+            case FindSuccessorMessage.TYPE:
+                return new FindSuccessorMessage(json);
+            case SuccessorFoundMessage.TYPE:
+                return new SuccessorFoundMessage(json);
+            case SuccessorChangedMessage.TYPE:
+                return new SuccessorChangedMessage(json);
+            case UnlinkPredecessorMessage.TYPE:
+                return new UnlinkPredecessorMessage(json);
+            case AddMessage.TYPE:
+                return new AddMessage(json);
+            case PutBatchMessage.TYPE:
+                return new PutBatchMessage(json);
+            case HandoffMessage.TYPE:
+                return new HandoffMessage(json);
+            case ReplicateMessage.TYPE:
+                return new ReplicateMessage(json);
+            case ReplicaLookupMessage.TYPE:
+                return new ReplicaLookupMessage(json);
+            case GetBatchMessage.TYPE:
+                return new GetBatchMessage(json);
+            case RequestReplyMessage.TYPE:
+                return new RequestReplyMessage(json);
+            case NotifyReplyMessage.TYPE:
+                return new NotifyReplyMessage(json);
+            case AddReplyMessage.TYPE:
+                return new AddReplyMessage(json);
+            case PutBatchReplyMessage.TYPE:
+                return new PutBatchReplyMessage(json);
+            case GetBatchReplyMessage.TYPE:
+                return new GetBatchReplyMessage(json);
+            case DropReplicaMessage.TYPE:
+                return new DropReplicaMessage(json);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Keys are numbers on the wire. The binary codec gives us a BigInteger, JSON may give a long or a string.
+     */
+    protected static RingId readId(JSONObject json, String field) {
+        return toId(json.get(field));
+    }
+
+    protected static RingId toId(Object value) {
+        if (value instanceof RingId) {
+            return (RingId) value;
+        }
+        if (value instanceof BigInteger) {
+            return RingId.fromBigInteger((BigInteger) value);
+        }
+        return RingId.parse(value.toString());
+    }
+
+    /**
+     * Nodes are sent as nested objects, older messages sent them as a JSON string.
+     */
+    protected static Node readNode(Object value) {
+        if (value instanceof JSONObject) {
+            return new Node((JSONObject) value);
+        }
+        return new Node(value.toString());
+    }
+
+    protected static List<Node> readNodes(JSONArray array) {
+        List<Node> nodes = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            nodes.add(readNode(array.get(i)));
+        }
+        return nodes;
+    }
+
+    protected static JSONArray writeNodes(List<Node> nodes) {
+        JSONArray array = new JSONArray();
+        for (Node node : nodes) {
+            array.put(node.toJson());
+        }
+        return array;
+    }
+}
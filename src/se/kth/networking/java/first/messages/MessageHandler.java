@@ -0,0 +1,14 @@
+package se.kth.networking.java.first.messages;
+
+import se.kth.networking.java.first.models.Node;
+
+/**
+ * Handles one type of message.
+ */
+public interface MessageHandler<T extends Message> {
+
+    /**
+     * @return the reply to send back, null if the message has nothing to reply
+     */
+    Message handle(T message, Node sender);
+}
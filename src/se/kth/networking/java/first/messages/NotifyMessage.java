@@ -0,0 +1,25 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+
+/**
+ * Asks the receiver to take the sender as its predecessor.
+ */
+public class NotifyMessage extends Message {
+
+    public static final String TYPE = "notify";
+
+    public NotifyMessage(Node sender) {
+        super(sender);
+    }
+
+    NotifyMessage(JSONObject json) {
+        super(json);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+}
@@ -0,0 +1,41 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+
+/**
+ * The reply to a notify, whether the node took the sender as its predecessor.
+ */
+public class NotifyReplyMessage extends Message {
+
+    public static final String TYPE = "notify_reply";
+
+    private static final String ACCEPT = "accept";
+    private static final String DENY = "deny";
+
+    private boolean accepted;
+
+    public NotifyReplyMessage(Node sender, boolean accepted) {
+        super(sender);
+        this.accepted = accepted;
+    }
+
+    NotifyReplyMessage(JSONObject json) {
+        super(json);
+        this.accepted = ACCEPT.equalsIgnoreCase(json.optString("status"));
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("status", accepted ? ACCEPT : DENY);
+    }
+}
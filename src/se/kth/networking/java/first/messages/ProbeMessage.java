@@ -0,0 +1,55 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Goes around the ring once, every node adds itself. The first node is the one that started it.
+ */
+public class ProbeMessage extends Message {
+
+    public static final String TYPE = "probe";
+
+    private List<Node> nodes;
+
+    public ProbeMessage(Node sender, List<Node> nodes) {
+        super(sender);
+        this.nodes = nodes;
+    }
+
+    ProbeMessage(JSONObject json) {
+        super(json);
+        this.nodes = readNodes(json.getJSONArray("nodes"));
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public Node getInitiator() {
+        return nodes.get(0);
+    }
+
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * The probe to pass on, sent by and including the given node.
+     */
+    public ProbeMessage visit(Node node) {
+        List<Node> visited = new ArrayList<>(nodes);
+        visited.add(node);
+        return new ProbeMessage(node, visited);
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("nodes", writeNodes(nodes));
+    }
+}
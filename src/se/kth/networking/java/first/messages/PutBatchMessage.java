@@ -0,0 +1,61 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores many values on the node responsible for them, sent straight to that node. The reply lists
+ * the keys it is not responsible for (any more), the rest have been stored.
+ */
+public class PutBatchMessage extends Message {
+
+    public static final String TYPE = "put_batch";
+
+    private List<RingId> keys;
+    private List<String> values;
+
+    public PutBatchMessage(Node sender, List<RingId> keys, List<String> values) {
+        super(sender);
+        this.keys = keys;
+        this.values = values;
+    }
+
+    PutBatchMessage(JSONObject json) {
+        super(json);
+        JSONArray keyArray = json.getJSONArray("keys");
+        JSONArray valueArray = json.getJSONArray("values");
+        this.keys = new ArrayList<>(keyArray.length());
+        this.values = new ArrayList<>(valueArray.length());
+        for (int i = 0; i < keyArray.length(); i++) {
+            keys.add(toId(keyArray.get(i)));
+            values.add(valueArray.getString(i));
+        }
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public List<RingId> getKeys() {
+        return keys;
+    }
+
+    /**
+     * In the same order as the keys.
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("keys", new JSONArray(keys));
+        json.put("values", new JSONArray(values));
+    }
+}
@@ -0,0 +1,47 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The reply to a put_batch. Every key of the batch that is not listed as rejected has been stored.
+ */
+public class PutBatchReplyMessage extends Message {
+
+    public static final String TYPE = "put_batch_reply";
+
+    private List<RingId> rejected;
+
+    public PutBatchReplyMessage(Node sender, List<RingId> rejected) {
+        super(sender);
+        this.rejected = rejected;
+    }
+
+    PutBatchReplyMessage(JSONObject json) {
+        super(json);
+        JSONArray rejectedArray = json.optJSONArray("rejected");
+        this.rejected = new ArrayList<>(rejectedArray == null ? 0 : rejectedArray.length());
+        for (int i = 0; rejectedArray != null && i < rejectedArray.length(); i++) {
+            rejected.add(toId(rejectedArray.get(i)));
+        }
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public List<RingId> getRejected() {
+        return rejected;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        json.put("rejected", new JSONArray(rejected));
+    }
+}
@@ -0,0 +1,54 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * The last hop of a lookup, sent by the predecessor of the owner to the owner or one of the nodes that
+ * keep a copy of its keys. A node with a copy answers it like the owner would. One without sends it
+ * straight on to the owner as a plain lookup, the owner is the only one that can tell the key is missing.
+ */
+public class ReplicaLookupMessage extends LookupMessage {
+
+    public static final String TYPE = "replica_lookup";
+
+    private Node owner;
+
+    public ReplicaLookupMessage(Node sender, RingId key, Node asker, long requestId, int hops, Node owner) {
+        super(sender, key, asker, requestId, hops);
+        this.owner = owner;
+    }
+
+    ReplicaLookupMessage(JSONObject json) {
+        super(json);
+        this.owner = readNode(json.get("owner"));
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * The first of the nodes that hold the key, as far as the sender knew.
+     */
+    public Node getOwner() {
+        return owner;
+    }
+
+    /**
+     * A plain lookup one hop further along, for the owner. Passed on as a replica lookup it would start over
+     * from past the owner.
+     */
+    @Override
+    public LookupMessage forwardedBy(Node sender) {
+        return new LookupMessage(sender, getKey(), getAsker(), getRequestId(), getHops() + 1);
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        super.writeFields(json);
+        json.put("owner", owner.toJson());
+    }
+}
@@ -0,0 +1,29 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.List;
+
+/**
+ * Copies of values the sender owns, for one of the nodes after it to keep. The receiver stores all of them,
+ * it is not responsible for them until the owner goes away.
+ */
+public class ReplicateMessage extends PutBatchMessage {
+
+    public static final String TYPE = "replicate";
+
+    public ReplicateMessage(Node sender, List<RingId> keys, List<String> values) {
+        super(sender, keys, values);
+    }
+
+    ReplicateMessage(JSONObject json) {
+        super(json);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+}
@@ -0,0 +1,25 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+
+/**
+ * Asks the receiver for its predecessor and successor, used by stabilize.
+ */
+public class RequestMessage extends Message {
+
+    public static final String TYPE = "request";
+
+    public RequestMessage(Node sender) {
+        super(sender);
+    }
+
+    RequestMessage(JSONObject json) {
+        super(json);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+}
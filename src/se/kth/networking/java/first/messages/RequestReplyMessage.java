@@ -0,0 +1,65 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The reply to a request: who the node has around it on the ring. Stabilize checks the predecessor, the
+ * successor list is what the asker builds its own list from. A node that doesn't know a neighbour leaves it out.
+ */
+public class RequestReplyMessage extends Message {
+
+    public static final String TYPE = "request_reply";
+
+    private Node predecessor;
+    private Node successor;
+    private List<Node> successors;
+
+    public RequestReplyMessage(Node sender, Node predecessor, Node successor, List<Node> successors) {
+        super(sender);
+        this.predecessor = predecessor;
+        this.successor = successor;
+        this.successors = successors;
+    }
+
+    RequestReplyMessage(JSONObject json) {
+        super(json);
+        this.predecessor = json.has("predecessor") ? readNode(json.get("predecessor")) : null;
+        this.successor = json.has("successor") ? readNode(json.get("successor")) : null;
+        this.successors = json.has("successors") ? readNodes(json.getJSONArray("successors")) : Collections.<Node>emptyList();
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * Null if the node has no predecessor.
+     */
+    public Node getPredecessor() {
+        return predecessor;
+    }
+
+    public Node getSuccessor() {
+        return successor;
+    }
+
+    public List<Node> getSuccessors() {
+        return successors;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        if (predecessor != null) {
+            json.put("predecessor", predecessor.toJson());
+        }
+        if (successor != null) {
+            json.put("successor", successor.toJson());
+        }
+        json.put("successors", writeNodes(successors));
+    }
+}
@@ -0,0 +1,25 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+
+/**
+ * Tells the predecessor that our successor changed, so it updates its next successor.
+ */
+public class SuccessorChangedMessage extends Message {
+
+    public static final String TYPE = "successorChanged";
+
+    public SuccessorChangedMessage(Node sender) {
+        super(sender);
+    }
+
+    SuccessorChangedMessage(JSONObject json) {
+        super(json);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+}
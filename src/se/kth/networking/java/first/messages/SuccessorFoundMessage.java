@@ -0,0 +1,26 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+/**
+ * The answer to a FindSuccessorMessage. The sender is the node responsible for the key, there is no value.
+ */
+public class SuccessorFoundMessage extends LookupResponseMessage {
+
+    public static final String TYPE = "successor_found";
+
+    public SuccessorFoundMessage(Node sender, RingId key, long requestId, RingId rangeStart) {
+        super(sender, key, null, requestId, rangeStart);
+    }
+
+    SuccessorFoundMessage(JSONObject json) {
+        super(json);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+}
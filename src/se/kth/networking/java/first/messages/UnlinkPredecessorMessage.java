@@ -0,0 +1,41 @@
+package se.kth.networking.java.first.messages;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+
+/**
+ * Sent to the next successor when our successor died. The sender becomes its predecessor,
+ * the dead node is passed along for information.
+ */
+public class UnlinkPredecessorMessage extends Message {
+
+    public static final String TYPE = "unlink_predecessor";
+
+    private Node predecessor;
+
+    public UnlinkPredecessorMessage(Node sender, Node predecessor) {
+        super(sender);
+        this.predecessor = predecessor;
+    }
+
+    UnlinkPredecessorMessage(JSONObject json) {
+        super(json);
+        this.predecessor = json.has("predecessor") ? readNode(json.get("predecessor")) : null;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public Node getPredecessor() {
+        return predecessor;
+    }
+
+    @Override
+    protected void writeFields(JSONObject json) {
+        if (predecessor != null) {
+            json.put("predecessor", predecessor.toJson());
+        }
+    }
+}
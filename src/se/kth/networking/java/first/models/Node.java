@@ -4,7 +4,6 @@ import org.json.JSONObject;
 import se.kth.networking.java.first.Helper;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.Socket;
 
 /**
@@ -12,7 +11,7 @@ import java.net.Socket;
  */
 public class Node {
 
-    private BigInteger id;
+    private RingId id;
     private String ip;
     private int port;
 
@@ -23,13 +22,16 @@ public class Node {
     }
 
     public Node(String json){
-        JSONObject obj = new JSONObject(json);
+        this(new JSONObject(json));
+    }
+
+    public Node(JSONObject obj){
         this.ip = obj.optString("ip");
         this.port = obj.optInt("port");
         id = Helper.doHash(ip, port);
     }
 
-    public BigInteger getId() {
+    public RingId getId() {
         return id;
     }
 
@@ -45,13 +47,17 @@ public class Node {
         return new Socket(ip, port);
     }
 
-    @Override
-    public String toString() {
+    public JSONObject toJson() {
         JSONObject obj = new JSONObject();
         obj.put("id", id);
         obj.put("ip", ip);
         obj.put("port", port);
-        return obj.toString();
+        return obj;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
     }
 
 }
@@ -0,0 +1,166 @@
+package se.kth.networking.java.first.models;
+
+import org.json.JSONString;
+
+import java.math.BigInteger;
+
+/**
+ * A position on the 128 bit ring, node ids and keys alike. Kept as two longs that are compared unsigned,
+ * so the comparisons and the interval checks don't allocate. All arithmetic wraps around the ring.
+ *
+ * It is written to JSON as a plain decimal number, the same as the BigInteger ids we used to send.
+ */
+public final class RingId implements Comparable<RingId>, JSONString {
+
+    public static final int BITS = 128;
+    public static final int BYTES = BITS / 8;
+
+    public static final RingId ZERO = new RingId(0, 0);
+
+    private static final BigInteger MASK = BigInteger.ONE.shiftLeft(BITS).subtract(BigInteger.ONE);
+
+    private final long high;
+    private final long low;
+
+    public RingId(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Reads the id from the first 16 bytes, big endian. An MD5 digest maps straight onto the ring.
+     */
+    public static RingId fromBytes(byte[] bytes) {
+        if (bytes.length < BYTES) {
+            throw new IllegalArgumentException("Need " + BYTES + " bytes for an id, got " + bytes.length);
+        }
+
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xFF);
+            low = (low << 8) | (bytes[i + 8] & 0xFF);
+        }
+        return new RingId(high, low);
+    }
+
+    /**
+     * Wraps the value onto the ring, so negative values and values of more than 128 bits still give an id.
+     */
+    public static RingId fromBigInteger(BigInteger value) {
+        BigInteger wrapped = value.and(MASK);
+        return new RingId(wrapped.shiftRight(64).longValue(), wrapped.longValue());
+    }
+
+    public static RingId parse(String decimal) {
+        return fromBigInteger(new BigInteger(decimal.trim()));
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public BigInteger toBigInteger() {
+        byte[] bytes = new byte[BYTES];
+        for (int i = 0; i < 8; i++) {
+            bytes[7 - i] = (byte) (high >>> (i * 8));
+            bytes[15 - i] = (byte) (low >>> (i * 8));
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * @return this + 2^power, wrapped around the ring
+     */
+    public RingId addPowerOfTwo(int power) {
+        if (power < 0 || power >= BITS) {
+            throw new IllegalArgumentException("Power has to be in [0, " + BITS + "), was " + power);
+        }
+
+        if (power >= 64) {
+            return new RingId(high + (1L << (power - 64)), low);
+        }
+
+        long sum = low + (1L << power);
+        //Unsigned overflow of the low half carries into the high half
+        long carry = Long.compareUnsigned(sum, low) < 0 ? 1 : 0;
+        return new RingId(high + carry, sum);
+    }
+
+    /**
+     * @return this - 1, wrapped around the ring
+     */
+    public RingId decrement() {
+        long borrow = low == 0 ? 1 : 0;
+        return new RingId(high - borrow, low - 1);
+    }
+
+    /**
+     * True if the id lies in the clockwise interval (from, to]. When from and to are the same the interval is
+     * the whole ring, which is what a node that is alone in the ring needs.
+     */
+    public boolean isBetween(RingId from, RingId to) {
+        int order = from.compareTo(to);
+        if (order < 0) {
+            return compareTo(from) > 0 && compareTo(to) <= 0;
+        } else if (order > 0) {
+            return compareTo(from) > 0 || compareTo(to) <= 0;
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Compares how far a and b are from the origin, going clockwise. Negative if a comes first.
+     */
+    public static int compareClockwise(RingId origin, RingId a, RingId b) {
+        //a - origin and b - origin with a borrow from the low half, all unsigned
+        long aLow = a.low - origin.low;
+        long aHigh = a.high - origin.high - (Long.compareUnsigned(a.low, origin.low) < 0 ? 1 : 0);
+        long bLow = b.low - origin.low;
+        long bHigh = b.high - origin.high - (Long.compareUnsigned(b.low, origin.low) < 0 ? 1 : 0);
+
+        int order = Long.compareUnsigned(aHigh, bHigh);
+        if (order != 0) {
+            return order;
+        }
+        return Long.compareUnsigned(aLow, bLow);
+    }
+
+    @Override
+    public int compareTo(RingId other) {
+        int order = Long.compareUnsigned(high, other.high);
+        if (order != 0) {
+            return order;
+        }
+        return Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RingId)) return false;
+        RingId other = (RingId) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        long mixed = high * 31 + low;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    @Override
+    public String toJSONString() {
+        return toString();
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
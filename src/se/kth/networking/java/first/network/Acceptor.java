@@ -0,0 +1,9 @@
+package se.kth.networking.java.first.network;
+
+/**
+ * Accepts connections from other nodes and hands every received message to the server.
+ */
+public interface Acceptor {
+    void start();
+    void shutdown();
+}
@@ -0,0 +1,15 @@
+package se.kth.networking.java.first.network;
+
+import java.io.IOException;
+
+/**
+ * A message nobody handles. The sender gets LaneDispatcher.BAD_REQUEST back, the connection stays open.
+ */
+public class BadRequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BadRequestException(String message) {
+        super(message);
+    }
+}
@@ -1,10 +1,13 @@
 package se.kth.networking.java.first.network;
 
-import se.kth.networking.java.first.models.OnResponse;
-
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -13,22 +16,49 @@ import java.util.concurrent.TimeUnit;
 /**
  * Created by victoraxelsson on 2016-11-06.
  */
-public class ClientAcceptor extends Thread{
+public class ClientAcceptor extends Thread implements Acceptor {
 
     private ServerSocket serverSocket;
     private ExecutorService executorService;
-    private OnResponse onResponse;
+    private MessageDispatcher dispatcher;
+    private int idleTimeout;
+    private Set<Socket> clients;
+
+    public ClientAcceptor(int port, MessageDispatcher dispatcher, int threads, int idleTimeout) throws IOException{
+        this(port, dispatcher, Executors.newFixedThreadPool(threads), idleTimeout);
+    }
 
-    public ClientAcceptor(int port, OnResponse onResponse) throws IOException{
+    /**
+     * Every accepted connection is run as one task on the executor, pass VirtualThreads.newPerTaskExecutor()
+     * to give each connection its own virtual thread. The messages themselves are handled by the dispatcher.
+     */
+    public ClientAcceptor(int port, MessageDispatcher dispatcher, ExecutorService executorService,
+                          int idleTimeout) throws IOException{
         this.serverSocket = new ServerSocket(port);
-        this.executorService = Executors.newFixedThreadPool(5);
-        this.onResponse = onResponse;
+        this.executorService = executorService;
+        this.dispatcher = dispatcher;
+        this.idleTimeout = idleTimeout;
+        this.clients = Collections.synchronizedSet(new HashSet<Socket>());
     }
 
 
-    private void handleClient(Socket client) throws InterruptedException {
-        System.out.println("Count: " + ((ThreadPoolExecutor) executorService).getActiveCount());
-        executorService.submit(new ClientSocketHandler(client, onResponse));
+    private void handleClient(final Socket client) throws InterruptedException {
+        if (executorService instanceof ThreadPoolExecutor) {
+            System.out.println("Count: " + ((ThreadPoolExecutor) executorService).getActiveCount());
+        }
+
+        clients.add(client);
+        final ClientSocketHandler handler = new ClientSocketHandler(client, dispatcher, idleTimeout);
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.run();
+                } finally {
+                    clients.remove(client);
+                }
+            }
+        });
     }
 
     @Override
@@ -53,10 +83,21 @@ public class ClientAcceptor extends Thread{
         }
     }
 
+    @Override
     public void shutdown() {
         executorService.shutdownNow();
         try {
             this.serverSocket.close();
+
+            //Blocked reads don't react to interrupts, closing the sockets ends the handlers
+            List<Socket> open;
+            synchronized (clients) {
+                open = new ArrayList<>(clients);
+            }
+            for (Socket client : open) {
+                client.close();
+            }
+
             if (!executorService.awaitTermination(500, TimeUnit.MILLISECONDS))
                 System.err.println("Pool did not terminate");
 
@@ -1,38 +1,56 @@
 package se.kth.networking.java.first.network;
 
 import org.json.JSONObject;
+import se.kth.networking.java.first.messages.Message;
 import se.kth.networking.java.first.models.Node;
-import se.kth.networking.java.first.models.OnResponse;
+import se.kth.networking.java.first.network.codec.Codec;
+import se.kth.networking.java.first.network.codec.Codecs;
+import se.kth.networking.java.first.network.codec.Frame;
+import se.kth.networking.java.first.network.codec.FrameReader;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Nick on 11/2/2016.
  */
 public class ClientSocketHandler implements Runnable {
     private Socket client;
-    private OnResponse<String> onResponse;
+    private MessageDispatcher dispatcher;
+    private int idleTimeout;
+    private AtomicInteger inFlight;
 
-    public ClientSocketHandler(Socket client, OnResponse<String> onResponse) {
+    //Every connection starts out as JSON, a peer can ask for another codec with its first frame
+    private volatile Codec codec = Codecs.JSON;
+
+    /**
+     * @param dispatcher runs the handlers, multiplexed requests don't wait for each other
+     */
+    public ClientSocketHandler(Socket client, MessageDispatcher dispatcher, int idleTimeout) {
         this.client = client;
-        this.onResponse = onResponse;
+        this.dispatcher = dispatcher;
+        this.idleTimeout = idleTimeout;
+        this.inFlight = new AtomicInteger();
     }
 
     @Override
     public void run() {
-        BufferedReader reader = null;
-        PrintWriter writer = null;
+        FrameReader reader = null;
+        OutputStream out = null;
         try {
-            reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            writer = new PrintWriter(new OutputStreamWriter(client.getOutputStream()));
-            handle(reader, writer);
+            //Peers keep their connection open between messages, drop it once it has been quiet for a while
+            client.setSoTimeout(idleTimeout);
+            reader = new FrameReader(client.getInputStream(), Codecs.JSON);
+            out = new BufferedOutputStream(client.getOutputStream());
+            handle(reader, out);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (writer != null) writer.close();
-            if (reader != null) try {
-                reader.close();
+            try {
                 client.close();
             } catch (IOException e) {
                 System.err.println(e.getCause() + " " + e.getMessage());
@@ -40,25 +58,129 @@ public class ClientSocketHandler implements Runnable {
         }
     }
 
-    private String deliverMessage(String msg){
-        System.out.println("CLickent socket reccived: " + msg);
-        JSONObject obj = new JSONObject(msg);
-        Node n = new Node(msg);
-        return  onResponse.onResponse(obj.toString(), n);
+    /**
+     * Decodes the frame into its typed message, the only place an inbound message gets parsed,
+     * and hands it to the dispatcher. Unknown types are passed on as null.
+     *
+     * @throws org.json.JSONException if the frame is not a message we can read
+     */
+    static CompletableFuture<Message> deliverMessage(Frame frame, MessageDispatcher dispatcher){
+        JSONObject obj = frame.getJson();
+        Message message = Message.fromJson(obj);
+        Node n = message != null ? message.getSender() : new Node(obj);
+        return dispatcher.dispatch(message, n);
+    }
+
+    /**
+     * The frame that answers the request, ACK for handlers that have nothing to say and BAD_REQUEST for
+     * messages nobody handles.
+     *
+     * @return null if the handler failed, the connection should be closed
+     */
+    static byte[] encodeReply(Codec codec, Frame request, Message reply, Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof BadRequestException) {
+            return codec.encode(request.getCorrelationId(), LaneDispatcher.BAD_REQUEST);
+        }
+        if (cause != null) {
+            System.err.println("Could not handle " + request.getText() + " " + cause);
+            return null;
+        }
+        if (reply == null) {
+            return codec.encode(request.getCorrelationId(), LaneDispatcher.ACK);
+        }
+        return codec.encode(request.getCorrelationId(), reply.toJson());
+    }
+
+    private void handleCorrelated(final Frame frame, final OutputStream out) {
+        inFlight.incrementAndGet();
+        CompletableFuture<Message> reply;
+        try {
+            reply = deliverMessage(frame, dispatcher);
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+
+        reply.whenComplete((res, e) -> {
+            try {
+                byte[] encoded = encodeReply(codec, frame, res, e);
+                if (encoded != null) {
+                    write(out, encoded);
+                } else {
+                    //Same as for a plain message, a request we can't handle ends the connection
+                    try {
+                        client.close();
+                    } catch (IOException closeException) {
+                        System.err.println(closeException.getCause() + " " + closeException.getMessage());
+                    }
+                }
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    private void write(OutputStream out, byte[] frame) {
+        synchronized (out) {
+            try {
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
     }
 
-    private void handle(BufferedReader reader, PrintWriter writer) {
+    private void handle(FrameReader reader, OutputStream out) {
         //Read the message
-        String str;
+        Frame frame;
+        boolean first = true;
         try {
-            while ((str = reader.readLine()) != null) {
-                String res = deliverMessage(str);
-                writer.write(res + "\n");
-                writer.flush();
+            while (true) {
+                try {
+                    frame = reader.read();
+                } catch (SocketTimeoutException e) {
+                    if (inFlight.get() > 0) {
+                        continue;
+                    }
+                    //Idle connection, the peer will open a new one when it needs it
+                    return;
+                }
+
+                if (frame == null) {
+                    return;
+                }
+
+                if (first && Codecs.isHandshake(frame)) {
+                    //Answer in JSON, the peer switches once it has read which codec we picked
+                    Codec picked = Codecs.accept(frame);
+                    write(out, Codecs.JSON.encode(Frame.UNCORRELATED, Codecs.hello(picked)));
+                    codec = picked;
+                    reader.setCodec(picked);
+                    first = false;
+                    continue;
+                }
+                first = false;
+
+                if (frame.isCorrelated()) {
+                    handleCorrelated(frame, out);
+                } else {
+                    //Plain messages are answered in order, one at a time
+                    byte[] encoded;
+                    try {
+                        encoded = encodeReply(codec, frame, deliverMessage(frame, dispatcher).join(), null);
+                    } catch (CompletionException e) {
+                        encoded = encodeReply(codec, frame, null, e);
+                    }
+                    if (encoded == null) {
+                        return;
+                    }
+                    write(out, encoded);
+                }
             }
         } catch (IOException e) {
             System.out.println(e.getMessage());
-            onResponse.onResponse("error:" + e.getMessage(), null);
         }
     }
 }
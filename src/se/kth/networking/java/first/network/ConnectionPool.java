@@ -0,0 +1,149 @@
+package se.kth.networking.java.first.network;
+
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.network.codec.Codec;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Keeps long lived connections per destination node so we don't pay a TCP handshake for every message.
+ * Connections are multiplexed, so they are shared between senders. A new one is only opened when all
+ * the open ones are loaded and we are below the max per peer.
+ */
+public class ConnectionPool {
+
+    //In flight requests on a connection before we would rather open another one to the same peer
+    private static final int SHARE_THRESHOLD = 32;
+
+    private final Map<String, Peer> peers;
+    private final int maxPerPeer;
+    private final long idleTimeout;
+    private final int requestTimeout;
+    private final Codec codec;
+    private final Executor io;
+    private final Executor callbacks;
+    private final ScheduledExecutorService timer;
+    private Timer evictionTimer;
+
+    public ConnectionPool(int maxPerPeer, long idleTimeout, int requestTimeout, Codec codec, Executor io,
+                          Executor callbacks, ScheduledExecutorService timer) {
+        this.peers = new HashMap<>();
+        this.maxPerPeer = maxPerPeer;
+        this.idleTimeout = idleTimeout;
+        this.requestTimeout = requestTimeout;
+        this.codec = codec;
+        this.io = io;
+        this.callbacks = callbacks;
+        this.timer = timer;
+
+        TimerTask evictTask = new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        };
+
+        long interval = Math.max(idleTimeout / 2, 100);
+        evictionTimer = new Timer(true);
+        evictionTimer.scheduleAtFixedRate(evictTask, interval, interval);
+    }
+
+    /**
+     * Returns a connection to the node. Completes right away when an open connection has room,
+     * otherwise once a new connection has been established on the io executor.
+     */
+    public synchronized CompletableFuture<PeerConnection> acquire(final Node node) {
+        String key = node.getIp() + ":" + node.getPort();
+        final Peer peer;
+        if (peers.containsKey(key)) {
+            peer = peers.get(key);
+        } else {
+            peer = new Peer();
+            peers.put(key, peer);
+        }
+
+        PeerConnection leastLoaded = null;
+        Iterator<PeerConnection> it = peer.open.iterator();
+        while (it.hasNext()) {
+            PeerConnection connection = it.next();
+            if (connection.isClosed()) {
+                it.remove();
+            } else if (leastLoaded == null || connection.getInFlight() < leastLoaded.getInFlight()) {
+                leastLoaded = connection;
+            }
+        }
+
+        boolean roomForMore = peer.open.size() < maxPerPeer;
+        if (leastLoaded != null && (leastLoaded.getInFlight() < SHARE_THRESHOLD || !roomForMore)) {
+            return CompletableFuture.completedFuture(leastLoaded);
+        }
+
+        if (peer.connecting != null) {
+            return peer.connecting;
+        }
+
+        if (!roomForMore) {
+            //Only happens with a max of zero, treat it as a pool of one
+            return CompletableFuture.completedFuture(leastLoaded);
+        }
+
+        final CompletableFuture<PeerConnection> connecting = new CompletableFuture<>();
+        peer.connecting = connecting;
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PeerConnection connection = new PeerConnection(node, codec, io, callbacks, timer, requestTimeout);
+                    synchronized (ConnectionPool.this) {
+                        peer.open.add(connection);
+                        peer.connecting = null;
+                    }
+                    connecting.complete(connection);
+                } catch (IOException e) {
+                    synchronized (ConnectionPool.this) {
+                        peer.connecting = null;
+                    }
+                    connecting.completeExceptionally(e);
+                }
+            }
+        });
+        return connecting;
+    }
+
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Peer peer : peers.values()) {
+            Iterator<PeerConnection> it = peer.open.iterator();
+            while (it.hasNext()) {
+                PeerConnection connection = it.next();
+                if (connection.isClosed()) {
+                    it.remove();
+                } else if (connection.getInFlight() == 0 && now - connection.getLastUsed() > idleTimeout) {
+                    it.remove();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        evictionTimer.cancel();
+        evictionTimer.purge();
+
+        for (Peer peer : peers.values()) {
+            for (PeerConnection connection : peer.open) {
+                connection.close();
+            }
+        }
+        peers.clear();
+    }
+
+    private static class Peer {
+        final List<PeerConnection> open = new ArrayList<>();
+        CompletableFuture<PeerConnection> connecting;
+    }
+}
@@ -0,0 +1,92 @@
+package se.kth.networking.java.first.network;
+
+import se.kth.networking.java.first.messages.HandlerRegistry;
+import se.kth.networking.java.first.messages.Lane;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.models.Node;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs every message on the lane its handler was registered for.
+ */
+public class LaneDispatcher implements MessageDispatcher {
+
+    public static final String BAD_REQUEST = "Bad request";
+
+    //Reply for handlers that have nothing to say, the sender still waits for something
+    public static final String ACK = "ok";
+
+    private HandlerRegistry registry;
+    private Map<Lane, LaneExecutor> lanes;
+    private boolean traceMessages;
+
+    public LaneDispatcher(HandlerRegistry registry, LaneExecutor control, LaneExecutor data) {
+        this(registry, control, data, false);
+    }
+
+    /**
+     * @param traceMessages print every message that comes in
+     */
+    public LaneDispatcher(HandlerRegistry registry, LaneExecutor control, LaneExecutor data, boolean traceMessages) {
+        this.registry = registry;
+        this.traceMessages = traceMessages;
+        this.lanes = new EnumMap<>(Lane.class);
+        lanes.put(Lane.CONTROL, control);
+        lanes.put(Lane.DATA, data);
+    }
+
+    @Override
+    public CompletableFuture<Message> dispatch(final Message message, final Node sender) {
+        if (traceMessages) {
+            System.out.println("MSG from " + sender.getPort() + ": " + message);
+        }
+        final HandlerRegistry.Registration<?> registration = message == null ? null : registry.get(message.getType());
+        if (registration == null) {
+            CompletableFuture<Message> bad = new CompletableFuture<>();
+            bad.completeExceptionally(new BadRequestException(message == null ? "unknown type" : message.getType()));
+            return bad;
+        }
+
+        final CompletableFuture<Message> reply = new CompletableFuture<>();
+        try {
+            lanes.get(registration.getLane()).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        registration.handle(message, sender).whenComplete((response, e) -> {
+                            if (e != null) {
+                                reply.completeExceptionally(e);
+                            } else {
+                                reply.complete(response);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        reply.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    public LaneExecutor getLane(Lane lane) {
+        return lanes.get(lane);
+    }
+
+    public void shutdown() {
+        for (LaneExecutor lane : lanes.values()) {
+            lane.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return lanes.get(Lane.CONTROL) + ", " + lanes.get(Lane.DATA);
+    }
+}
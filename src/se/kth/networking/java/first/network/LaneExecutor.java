@@ -0,0 +1,105 @@
+package se.kth.networking.java.first.network;
+
+import se.kth.networking.java.first.messages.Lane;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The executor of one lane, counts how many tasks are waiting so we can see a lane falling behind.
+ */
+public class LaneExecutor implements Executor {
+
+    private Lane lane;
+    private ExecutorService executor;
+    private AtomicInteger queued;
+    private AtomicInteger maxQueued;
+    private AtomicInteger running;
+    private AtomicLong completed;
+    private AtomicLong waitNanos;
+
+    public LaneExecutor(Lane lane, ExecutorService executor) {
+        this.lane = lane;
+        this.executor = executor;
+        this.queued = new AtomicInteger();
+        this.maxQueued = new AtomicInteger();
+        this.running = new AtomicInteger();
+        this.completed = new AtomicLong();
+        this.waitNanos = new AtomicLong();
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        final long submitted = System.nanoTime();
+        int depth = queued.incrementAndGet();
+        int max;
+        while (depth > (max = maxQueued.get()) && !maxQueued.compareAndSet(max, depth)) {
+            //Somebody else raised it, try again
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    waitNanos.addAndGet(System.nanoTime() - submitted);
+                    running.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public Lane getLane() {
+        return lane;
+    }
+
+    /**
+     * Tasks submitted but not started yet.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Average time a task waited before it started (ms).
+     */
+    public double getAverageWait() {
+        long done = completed.get() + running.get();
+        return done == 0 ? 0 : waitNanos.get() / (double) done / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s queued=%d max=%d running=%d completed=%d wait=%.2fms", lane, getQueueDepth(),
+                getMaxQueueDepth(), getRunning(), getCompleted(), getAverageWait());
+    }
+}
@@ -0,0 +1,19 @@
+package se.kth.networking.java.first.network;
+
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.models.Node;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where the acceptors hand over the messages they decoded.
+ */
+public interface MessageDispatcher {
+
+    /**
+     * @param message the decoded message, null if the type is unknown
+     * @return the reply, null if the handler has nothing to say. Completes exceptionally if the handler
+     * failed, with a BadRequestException if nobody handles the message.
+     */
+    CompletableFuture<Message> dispatch(Message message, Node sender);
+}
@@ -0,0 +1,228 @@
+package se.kth.networking.java.first.network;
+
+import org.json.JSONObject;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.network.codec.Codec;
+import se.kth.networking.java.first.network.codec.Codecs;
+import se.kth.networking.java.first.network.codec.Frame;
+import se.kth.networking.java.first.network.codec.FrameReader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long lived, multiplexed connection towards another node. Any number of requests can be in flight
+ * at the same time, every request carries a correlation id and a reader task matches the replies to
+ * the waiting futures, whatever order they come back in. The codec is agreed on when connecting.
+ */
+public class PeerConnection {
+
+    private Node peer;
+    private Socket socket;
+    private Codec codec;
+    private FrameReader reader;
+    private OutputStream out;
+    private Map<Long, CompletableFuture<Frame>> inFlight;
+    private AtomicLong nextId;
+    private Executor callbacks;
+    private ScheduledExecutorService timer;
+    private int requestTimeout;
+    private volatile boolean closed;
+    private volatile long lastUsed;
+
+    /**
+     * Connects to the peer and agrees on a codec, blocks until that is done.
+     *
+     * @param codec     the codec we would like to use, we fall back to JSON if the peer doesn't know it
+     * @param io        runs the reader loop for this connection
+     * @param callbacks completes the futures, so callers never run their continuations on the reader
+     * @param timer     fails requests that got no reply within requestTimeout
+     */
+    public PeerConnection(Node peer, Codec codec, Executor io, Executor callbacks, ScheduledExecutorService timer,
+                          int requestTimeout) throws IOException {
+        this.peer = peer;
+        this.callbacks = callbacks;
+        this.timer = timer;
+        this.requestTimeout = requestTimeout;
+        this.inFlight = new ConcurrentHashMap<>();
+        this.nextId = new AtomicLong();
+
+        connect();
+        this.codec = Codecs.JSON;
+        if (codec != Codecs.JSON && !negotiate(codec)) {
+            //Nodes that don't know the handshake close the connection on it
+            socket.close();
+            connect();
+        }
+        this.lastUsed = System.currentTimeMillis();
+
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        });
+    }
+
+    private void connect() throws IOException {
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(peer.getIp(), peer.getPort()), requestTimeout);
+        socket.setTcpNoDelay(true);
+        this.reader = new FrameReader(socket.getInputStream(), Codecs.JSON);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    private boolean negotiate(Codec wanted) throws IOException {
+        out.write(Codecs.JSON.encode(Frame.UNCORRELATED, Codecs.hello(wanted)));
+        out.flush();
+
+        Frame reply;
+        socket.setSoTimeout(requestTimeout);
+        try {
+            reply = reader.read();
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        Codec accepted = Codecs.accepted(reply);
+        if (accepted == null) {
+            return false;
+        }
+
+        codec = accepted;
+        reader.setCodec(accepted);
+        return true;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public Node getPeer() {
+        return peer;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Sends the payload and returns a future for the reply frame.
+     *
+     * @throws IOException if the request could not be written, the peer never saw it and it is safe to retry
+     */
+    public CompletableFuture<Frame> request(JSONObject payload) throws IOException {
+        final long id = nextId.incrementAndGet();
+        final CompletableFuture<Frame> future = new CompletableFuture<>();
+        inFlight.put(id, future);
+        lastUsed = System.currentTimeMillis();
+
+        byte[] frame = codec.encode(id, payload);
+        try {
+            synchronized (out) {
+                if (closed) {
+                    throw new EOFException("Connection to " + peer.getPort() + " is closed");
+                }
+                out.write(frame);
+                out.flush();
+            }
+        } catch (IOException e) {
+            inFlight.remove(id);
+            close(e);
+            throw e;
+        }
+
+        final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fail(id, new SocketTimeoutException("No reply from " + peer.getPort() + " within " + requestTimeout + "ms"));
+            }
+        }, requestTimeout, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((reply, error) -> timeout.cancel(false));
+        return future;
+    }
+
+    private void readReplies() {
+        Frame frame;
+        try {
+            while ((frame = reader.read()) != null) {
+                if (!frame.isCorrelated()) {
+                    System.err.println("Uncorrelated reply from " + peer.getPort() + ": " + frame.getText());
+                    continue;
+                }
+                complete(frame.getCorrelationId(), frame);
+            }
+            close(new EOFException("Connection closed by " + peer.getPort()));
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void complete(long id, final Frame reply) {
+        final CompletableFuture<Frame> future = inFlight.remove(id);
+        if (future == null) {
+            //Already timed out
+            return;
+        }
+
+        lastUsed = System.currentTimeMillis();
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(reply);
+            }
+        });
+    }
+
+    private void fail(long id, final Throwable cause) {
+        final CompletableFuture<Frame> future = inFlight.remove(id);
+        if (future == null) {
+            return;
+        }
+
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(cause);
+            }
+        });
+    }
+
+    private void close(Throwable cause) {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println(e.getCause() + " " + e.getMessage());
+        }
+
+        List<Long> pending = new ArrayList<>(inFlight.keySet());
+        for (Long id : pending) {
+            fail(id, cause);
+        }
+    }
+
+    public void close() {
+        close(new EOFException("Connection to " + peer.getPort() + " was closed locally"));
+    }
+}
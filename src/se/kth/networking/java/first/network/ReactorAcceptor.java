@@ -0,0 +1,400 @@
+package se.kth.networking.java.first.network;
+
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.network.codec.Codec;
+import se.kth.networking.java.first.network.codec.Codecs;
+import se.kth.networking.java.first.network.codec.Frame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non blocking acceptor. Connections are spread over a few event loop threads that each run a Selector,
+ * so an idle peer connection costs a registration instead of a thread. The event loops do the I/O and
+ * decode complete frames, the dispatcher runs the handlers on its own threads. Multiplexed frames (the
+ * ones with a correlation id) are handled concurrently and answered in whatever order they finish.
+ */
+public class ReactorAcceptor implements Acceptor {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    //Stop reading from a connection that has this many frames waiting to be handled
+    private static final int MAX_PENDING_FRAMES = 64;
+
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private MessageDispatcher dispatcher;
+    private int idleTimeout;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    public ReactorAcceptor(int port, MessageDispatcher dispatcher, int loopThreads, int idleTimeout) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.dispatcher = dispatcher;
+        this.idleTimeout = idleTimeout;
+
+        this.loops = new EventLoop[loopThreads];
+        for (int i = 0; i < loopThreads; i++) {
+            loops[i] = new EventLoop(port, i);
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "reactor-accept-" + serverChannel.socket().getLocalPort());
+        acceptThread.start();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Socket was closed in ReactorAcceptor, stop execution of the node " +
+                            serverChannel.socket().getLocalPort());
+                }
+                running = false;
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private class EventLoop extends Thread {
+
+        private Selector selector;
+
+        //Work from other threads that has to touch the selector, only ever run on the loop thread
+        private Queue<Runnable> tasks;
+
+        EventLoop(int port, int index) throws IOException {
+            super("reactor-" + port + "-" + index);
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+        }
+
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(channel, key, EventLoop.this));
+                    } catch (ClosedChannelException e) {
+                        System.out.println("Channel closed before it was registered");
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+
+            while (running) {
+                try {
+                    selector.select(IDLE_CHECK_INTERVAL);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    Connection connection = (Connection) key.attachment();
+                    if (connection == null || !key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.isIdle() && now - connection.lastActive > idleTimeout) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one accepted channel. Everything in here is only touched from the event loop that owns it,
+     * the handlers hand their result back through EventLoop.execute.
+     */
+    private class Connection {
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private EventLoop loop;
+        private Codec codec;
+        private Codec.Decoder decoder;
+        private boolean handshakeAllowed;
+
+        //Always in write mode between reads, grows when a frame doesn't fit
+        private ByteBuffer readBuffer;
+        private Queue<Frame> pending;
+        private Queue<ByteBuffer> outbound;
+
+        //Plain frames from one connection are handled one at a time, in order, like the blocking acceptor does.
+        //Multiplexed frames carry their own correlation id and are dispatched right away.
+        private boolean busy;
+        private int inFlight;
+        private long lastActive;
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.codec = Codecs.JSON;
+            this.decoder = codec.newDecoder();
+            this.handshakeAllowed = true;
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.pending = new ArrayDeque<>();
+            this.outbound = new ArrayDeque<>();
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        boolean isIdle() {
+            return !busy && inFlight == 0;
+        }
+
+        void read() {
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                close();
+                return;
+            }
+
+            if (read == -1) {
+                close();
+                return;
+            }
+
+            lastActive = System.currentTimeMillis();
+            readBuffer.flip();
+            try {
+                Frame frame;
+                while (key.isValid() && (frame = decoder.decode(readBuffer)) != null) {
+                    onFrame(frame);
+                }
+            } catch (IOException e) {
+                //Broken or too large frame, there is no way to find the start of the next one
+                System.err.println(e.getMessage() + ", closing connection");
+                close();
+                return;
+            } finally {
+                readBuffer.compact();
+            }
+
+            dispatchNext();
+            updateReadInterest();
+        }
+
+        private void onFrame(Frame frame) {
+            if (handshakeAllowed && Codecs.isHandshake(frame)) {
+                //Answer in JSON, the peer switches once it has read which codec we picked
+                Codec picked = Codecs.accept(frame);
+                outbound.add(ByteBuffer.wrap(Codecs.JSON.encode(Frame.UNCORRELATED, Codecs.hello(picked))));
+                flush();
+                codec = picked;
+                decoder = picked.newDecoder();
+                handshakeAllowed = false;
+                return;
+            }
+            handshakeAllowed = false;
+
+            if (frame.isCorrelated()) {
+                inFlight++;
+                dispatch(frame, true);
+            } else {
+                pending.add(frame);
+            }
+        }
+
+        private void updateReadInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (pending.size() + inFlight >= MAX_PENDING_FRAMES) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void dispatchNext() {
+            if (busy || pending.isEmpty() || !key.isValid()) {
+                return;
+            }
+
+            busy = true;
+            dispatch(pending.poll(), false);
+        }
+
+        private void dispatch(final Frame frame, final boolean correlated) {
+            //Replies go out in the codec that was in use when the request came in
+            final Codec replyCodec = codec;
+            CompletableFuture<Message> response;
+            try {
+                response = ClientSocketHandler.deliverMessage(frame, dispatcher);
+            } catch (RuntimeException e) {
+                System.err.println("Could not handle " + frame.getText() + " " + e.getMessage());
+                close();
+                return;
+            }
+
+            response.whenComplete((res, e) -> {
+                final byte[] encoded = ClientSocketHandler.encodeReply(replyCodec, frame, res, e);
+                if (encoded == null) {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            close();
+                        }
+                    });
+                    return;
+                }
+
+                final ByteBuffer reply = ByteBuffer.wrap(encoded);
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (correlated) {
+                            inFlight--;
+                        } else {
+                            busy = false;
+                        }
+                        outbound.add(reply);
+                        flush();
+                        dispatchNext();
+                        updateReadInterest();
+                    }
+                });
+            });
+        }
+
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer buffer = outbound.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        //Socket buffer is full, continue when the channel is writable again
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                lastActive = System.currentTimeMillis();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println(e.getCause() + " " + e.getMessage());
+            }
+        }
+    }
+}
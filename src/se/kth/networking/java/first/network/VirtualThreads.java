@@ -0,0 +1,44 @@
+package se.kth.networking.java.first.network;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads without requiring a Java 21 compiler. On older runtimes we fall back to
+ * an unbounded pool of platform threads, which keeps the one thread per task model but not the low cost.
+ */
+public class VirtualThreads {
+
+    private static final Method NEW_EXECUTOR = findMethod(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+    private VirtualThreads(){}
+
+    private static Method findMethod(Class<?> type, String name) {
+        try {
+            return type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * An executor that starts a new virtual thread for every submitted task.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (isSupported()) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.err.println("Virtual threads are not available on this runtime, using platform threads");
+        return Executors.newCachedThreadPool();
+    }
+}
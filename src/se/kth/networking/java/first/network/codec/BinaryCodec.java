@@ -0,0 +1,646 @@
+package se.kth.networking.java.first.network.codec;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the JSON messages.
+ *
+ * Frame:  int32 length | byte message type | varint correlation id | body
+ *
+ * The message type replaces the "type" field for the types we know. The body is the rest of the object:
+ * a varint field count, then for every field a one byte name (or 0 and the name as a string) and a tagged value.
+ * Node ids and keys fit in 128 bits and are written as 16 raw bytes, small numbers like ports as varints.
+ * Strings are length prefixed, so values can contain newlines.
+ *
+ * Messages are written straight from their JSON object. Text is only parsed when it is handed in as text,
+ * JSON text still gets the compact form, anything else goes out as it is.
+ */
+public class BinaryCodec implements Codec {
+
+    public static final String NAME = "binary";
+
+    //Message types. 0 is an object without a (known) type, TEXT is a reply that is not JSON at all
+    private static final List<String> TYPES = Arrays.asList(null, "notify", "request", "find_successor",
+            "successor_found", "probe", "lookup", "lookup_response", "successorChanged",
+            "unlink_predecessor", "add", "put_batch", "get_batch", "handoff", "replicate",
+            "replica_lookup", "request_reply", "notify_reply", "add_reply", "put_batch_reply",
+            "get_batch_reply", "drop_replica");
+    private static final int TYPE_UNKNOWN = 0;
+    private static final int TYPE_TEXT = 0x7F;
+
+    //Field names we see in every message get a single byte, 0 means the name follows as a string
+    private static final List<String> FIELDS = Arrays.asList(null, "ip", "port", "type", "id", "key", "value",
+            "status", "predecessor", "successor", "asker", "keys", "fingers", "nodes", "requestId", "hops",
+            "successors", "values", "rejected", "acked", "rangeStart", "hot");
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_ID = 4;
+    private static final int TAG_BIG_INTEGER = 5;
+    private static final int TAG_DECIMAL = 6;
+    private static final int TAG_STRING = 7;
+    private static final int TAG_OBJECT = 8;
+    private static final int TAG_ARRAY = 9;
+
+    private static final int ID_BYTES = 16;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(long correlationId, String message) {
+        Output out = new Output();
+        out.writeInt(0); //length, filled in below
+
+        int typeOffset = out.size();
+        out.write(TYPE_UNKNOWN);
+        out.writeVarLong(correlationId);
+
+        int bodyOffset = out.size();
+        try {
+            int type = new Transcoder(message, out).topLevelObject();
+            out.set(typeOffset, type);
+        } catch (IllegalArgumentException e) {
+            //Not a JSON object, send it as it is
+            out.truncate(bodyOffset);
+            out.set(typeOffset, TYPE_TEXT);
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            out.write(text, 0, text.length);
+        }
+
+        byte[] frame = out.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+        return frame;
+    }
+
+    @Override
+    public byte[] encode(long correlationId, JSONObject message) {
+        Output out = new Output();
+        out.writeInt(0); //length, filled in below
+
+        int type = TYPES.indexOf(message.optString("type", null));
+        if (type < 0) {
+            type = TYPE_UNKNOWN;
+        }
+        out.write(type);
+        out.writeVarLong(correlationId);
+        writeObject(message, type == TYPE_UNKNOWN ? null : "type", out);
+
+        byte[] frame = out.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+        return frame;
+    }
+
+    /**
+     * Writes the field count and the fields, all but skip.
+     */
+    private static void writeObject(JSONObject object, String skip, Output out) {
+        int count = object.length();
+        if (skip != null && object.has(skip)) {
+            count--;
+        }
+        out.writeVarLong(count);
+
+        for (String name : object.keySet()) {
+            if (!name.equals(skip)) {
+                out.writeName(name);
+                writeValue(object.opt(name), out);
+            }
+        }
+    }
+
+    private static void writeValue(Object value, Output out) {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof RingId) {
+            out.write(TAG_ID);
+            out.writeLong(((RingId) value).getHigh());
+            out.writeLong(((RingId) value).getLow());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.write(TAG_INT);
+            out.writeVarLong(zigZagEncode(((Number) value).longValue()));
+        } else if (value instanceof BigInteger) {
+            out.writeInteger((BigInteger) value);
+        } else if (value instanceof Number) {
+            out.write(TAG_DECIMAL);
+            out.writeString(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject) {
+            out.write(TAG_OBJECT);
+            writeObject((JSONObject) value, null, out);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.write(TAG_ARRAY);
+            out.writeVarLong(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(array.opt(i), out);
+            }
+        } else if (value instanceof JSONString) {
+            new Transcoder(((JSONString) value).toJSONString(), out).value();
+        } else {
+            out.write(TAG_STRING);
+            out.writeString(value.toString());
+        }
+    }
+
+    @Override
+    public Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Bad frame length " + length);
+        }
+        if (buffer.remaining() - 4 < length) {
+            return null;
+        }
+
+        int end = start + 4 + length;
+        ByteBuffer frame = buffer.duplicate();
+        frame.position(start + 4);
+        frame.limit(end);
+        buffer.position(end);
+
+        try {
+            int type = frame.get() & 0xFF;
+            long correlationId = readVarLong(frame);
+
+            if (type == TYPE_TEXT) {
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                return new Frame(correlationId, new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            JSONObject message = readObject(frame);
+            if (type != TYPE_UNKNOWN) {
+                if (type >= TYPES.size()) {
+                    throw new IOException("Unknown message type " + type);
+                }
+                message.put("type", TYPES.get(type));
+            }
+            return new Frame(correlationId, message);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt frame: " + e.getMessage());
+        }
+    }
+
+    private static JSONObject readObject(ByteBuffer in) throws IOException {
+        JSONObject object = new JSONObject();
+        int fields = (int) readVarLong(in);
+        for (int i = 0; i < fields; i++) {
+            int nameCode = in.get() & 0xFF;
+            String name;
+            if (nameCode == 0) {
+                name = readString(in);
+            } else if (nameCode < FIELDS.size()) {
+                name = FIELDS.get(nameCode);
+            } else {
+                throw new IOException("Unknown field " + nameCode);
+            }
+            object.put(name, readValue(in));
+        }
+        return object;
+    }
+
+    private static Object readValue(ByteBuffer in) throws IOException {
+        int tag = in.get() & 0xFF;
+        switch (tag) {
+            case TAG_NULL:
+                return JSONObject.NULL;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_INT:
+                long value = zigZagDecode(readVarLong(in));
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            case TAG_ID:
+                byte[] id = new byte[ID_BYTES];
+                in.get(id);
+                return new BigInteger(1, id);
+            case TAG_BIG_INTEGER:
+                byte[] big = new byte[(int) readVarLong(in)];
+                in.get(big);
+                return new BigInteger(big);
+            case TAG_DECIMAL:
+                return Double.valueOf(readString(in));
+            case TAG_STRING:
+                return readString(in);
+            case TAG_OBJECT:
+                return readObject(in);
+            case TAG_ARRAY:
+                JSONArray array = new JSONArray();
+                int length = (int) readVarLong(in);
+                for (int i = 0; i < length; i++) {
+                    array.put(readValue(in));
+                }
+                return array;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalStateException("Varint too long");
+            }
+        }
+    }
+
+    private static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Byte output that allows patching bytes that were written earlier.
+     */
+    private static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(128);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeName(String name) {
+            int code = FIELDS.indexOf(name);
+            if (code > 0) {
+                write(code);
+            } else {
+                write(0);
+                writeString(name);
+            }
+        }
+
+        /**
+         * Ids as 16 raw bytes, numbers that fit as varints, anything larger with its length.
+         */
+        void writeInteger(BigInteger value) {
+            if (value.bitLength() < 64) {
+                write(TAG_INT);
+                writeVarLong(zigZagEncode(value.longValue()));
+            } else if (value.signum() >= 0 && value.bitLength() <= ID_BYTES * 8) {
+                write(TAG_ID);
+                byte[] bytes = value.toByteArray();
+                //toByteArray may add a leading sign byte or be shorter than 16 bytes
+                int skip = Math.max(0, bytes.length - ID_BYTES);
+                for (int i = bytes.length - skip; i < ID_BYTES; i++) {
+                    write(0);
+                }
+                write(bytes, skip, bytes.length - skip);
+            } else {
+                write(TAG_BIG_INTEGER);
+                byte[] bytes = value.toByteArray();
+                writeVarLong(bytes.length);
+                write(bytes, 0, bytes.length);
+            }
+        }
+
+        void set(int offset, int value) {
+            buf[offset] = (byte) value;
+        }
+
+        void truncate(int size) {
+            count = size;
+        }
+
+        /**
+         * Reserves room for a varint that is only known later, always 5 bytes so it can be patched in place.
+         */
+        int reserveCount() {
+            int offset = count;
+            for (int i = 0; i < 5; i++) {
+                write(0);
+            }
+            return offset;
+        }
+
+        void patchCount(int offset, int value) {
+            for (int i = 0; i < 4; i++) {
+                buf[offset + i] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[offset + 4] = (byte) (value & 0x7F);
+        }
+    }
+
+    /**
+     * Reads the JSON text and writes the binary form straight away. org.json would turn
+     * our 128 bit numbers into strings, so we look at the tokens ourselves.
+     */
+    private static class Transcoder {
+
+        private String json;
+        private int pos;
+        private Output out;
+
+        Transcoder(String json, Output out) {
+            this.json = json;
+            this.out = out;
+        }
+
+        /**
+         * Writes the fields of the top level object, the type field is left out if it has a type code.
+         *
+         * @return the message type code
+         */
+        int topLevelObject() {
+            skipWhitespace();
+            expect('{');
+            int type = TYPE_UNKNOWN;
+            int countOffset = out.reserveCount();
+            int count = 0;
+
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String name = string();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+
+                    if ("type".equals(name) && peek() == '"') {
+                        int mark = pos;
+                        String value = string();
+                        int code = TYPES.indexOf(value);
+                        if (code > 0 && type == TYPE_UNKNOWN) {
+                            type = code;
+                        } else {
+                            pos = mark;
+                            out.writeName(name);
+                            value();
+                            count++;
+                        }
+                    } else {
+                        out.writeName(name);
+                        value();
+                        count++;
+                    }
+
+                    skipWhitespace();
+                    char c = next();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw new IllegalArgumentException("Expected , at " + pos);
+                    }
+                }
+            }
+
+            skipWhitespace();
+            if (pos != json.length()) {
+                throw new IllegalArgumentException("Trailing characters at " + pos);
+            }
+            out.patchCount(countOffset, count);
+            return type;
+        }
+
+        void value() {
+            skipWhitespace();
+            char c = peek();
+            if (c == '{') {
+                object();
+            } else if (c == '[') {
+                array();
+            } else if (c == '"') {
+                out.write(TAG_STRING);
+                out.writeString(string());
+            } else if (json.startsWith("true", pos)) {
+                pos += 4;
+                out.write(TAG_TRUE);
+            } else if (json.startsWith("false", pos)) {
+                pos += 5;
+                out.write(TAG_FALSE);
+            } else if (json.startsWith("null", pos)) {
+                pos += 4;
+                out.write(TAG_NULL);
+            } else {
+                number();
+            }
+        }
+
+        private void object() {
+            expect('{');
+            out.write(TAG_OBJECT);
+            int countOffset = out.reserveCount();
+            int count = 0;
+
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String name = string();
+                    skipWhitespace();
+                    expect(':');
+                    out.writeName(name);
+                    value();
+                    count++;
+
+                    skipWhitespace();
+                    char c = next();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw new IllegalArgumentException("Expected , at " + pos);
+                    }
+                }
+            }
+            out.patchCount(countOffset, count);
+        }
+
+        private void array() {
+            expect('[');
+            out.write(TAG_ARRAY);
+            int countOffset = out.reserveCount();
+            int count = 0;
+
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+            } else {
+                while (true) {
+                    value();
+                    count++;
+
+                    skipWhitespace();
+                    char c = next();
+                    if (c == ']') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw new IllegalArgumentException("Expected , at " + pos);
+                    }
+                }
+            }
+            out.patchCount(countOffset, count);
+        }
+
+        private void number() {
+            int start = pos;
+            boolean decimal = false;
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    decimal = true;
+                } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                    break;
+                }
+                pos++;
+            }
+
+            String text = json.substring(start, pos);
+            if (text.isEmpty()) {
+                throw new IllegalArgumentException("Unexpected character at " + pos);
+            }
+
+            if (decimal) {
+                out.write(TAG_DECIMAL);
+                out.writeString(text);
+                return;
+            }
+
+            BigInteger value;
+            try {
+                value = new BigInteger(text);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad number " + text);
+            }
+            out.writeInteger(value);
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = null;
+            int start = pos;
+            while (true) {
+                if (pos >= json.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return sb == null ? json.substring(start, pos - 1) : sb.toString();
+                }
+                if (c == '\\') {
+                    if (sb == null) {
+                        sb = new StringBuilder(json.substring(start, pos - 1));
+                    }
+                    char escaped = next();
+                    switch (escaped) {
+                        case 'b': sb.append('\b'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'n': sb.append('\n'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'u':
+                            if (pos + 4 > json.length()) {
+                                throw new IllegalArgumentException("Bad escape");
+                            }
+                            sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default: sb.append(escaped);
+                    }
+                } else if (sb != null) {
+                    sb.append(c);
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            if (pos >= json.length()) {
+                throw new IllegalArgumentException("Unexpected end");
+            }
+            return json.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char expected) {
+            if (next() != expected) {
+                throw new IllegalArgumentException("Expected " + expected + " at " + (pos - 1));
+            }
+        }
+    }
+}
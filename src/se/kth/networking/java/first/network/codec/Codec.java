@@ -0,0 +1,50 @@
+package se.kth.networking.java.first.network.codec;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns messages into frames on the wire and back. Messages are handed in as the JSON object the
+ * ring builds, or plain text for replies like "Bad request".
+ */
+public interface Codec {
+
+    //Nobody sends frames this big, something is wrong with the stream
+    int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    String getName();
+
+    /**
+     * @param correlationId Frame.UNCORRELATED for a message that is answered in order
+     */
+    byte[] encode(long correlationId, String message);
+
+    /**
+     * @param correlationId Frame.UNCORRELATED for a message that is answered in order
+     */
+    byte[] encode(long correlationId, JSONObject message);
+
+    /**
+     * Decodes the next frame from the buffer, between position and limit. If the buffer does not hold
+     * a complete frame yet, null is returned and the position is left where it was.
+     */
+    Frame decode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * A decoder for one stream. It may remember how far it got into a frame that is not complete yet,
+     * so it has to be handed the same buffer every time, with the frames it returned taken off the front.
+     */
+    default Decoder newDecoder() {
+        return this::decode;
+    }
+
+    interface Decoder {
+
+        /**
+         * Same as Codec.decode.
+         */
+        Frame decode(ByteBuffer buffer) throws IOException;
+    }
+}
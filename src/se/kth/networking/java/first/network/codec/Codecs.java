@@ -0,0 +1,58 @@
+package se.kth.networking.java.first.network.codec;
+
+/**
+ * Codec lookup and the handshake that picks one per connection.
+ *
+ * A connection always starts out as JSON lines. A node that wants another codec first sends the line
+ * "CODEC name" and waits for "CODEC name" back, with the codec the other side picked. Peers that
+ * start sending messages right away just keep talking JSON, and an old node that doesn't know the
+ * handshake fails on the hello, so the sender can reconnect with plain JSON.
+ */
+public class Codecs {
+
+    private static final String HANDSHAKE = "CODEC ";
+
+    public static final Codec JSON = new JsonCodec();
+    public static final Codec BINARY = new BinaryCodec();
+
+    private Codecs(){}
+
+    /**
+     * @return the codec, or null if we don't know it
+     */
+    public static Codec forName(String name) {
+        if (JsonCodec.NAME.equals(name)) {
+            return JSON;
+        }
+        if (BinaryCodec.NAME.equals(name)) {
+            return BINARY;
+        }
+        return null;
+    }
+
+    public static String hello(Codec codec) {
+        return HANDSHAKE + codec.getName();
+    }
+
+    public static boolean isHandshake(Frame frame) {
+        return !frame.isCorrelated() && frame.getText().startsWith(HANDSHAKE);
+    }
+
+    /**
+     * The codec the other side asked for in its hello, or JSON if we don't know it.
+     */
+    public static Codec accept(Frame hello) {
+        Codec codec = forName(hello.getText().substring(HANDSHAKE.length()).trim());
+        return codec == null ? JSON : codec;
+    }
+
+    /**
+     * The codec the other side picked in its reply to our hello, null if the reply is not a handshake.
+     */
+    public static Codec accepted(Frame reply) {
+        if (reply == null || !isHandshake(reply)) {
+            return null;
+        }
+        return accept(reply);
+    }
+}
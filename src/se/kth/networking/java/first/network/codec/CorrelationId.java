@@ -0,0 +1,29 @@
+package se.kth.networking.java.first.network.codec;
+
+/**
+ * Framing for multiplexed requests. A request line that starts with "#id " gets its reply back as
+ * "#id reply", so many requests can share one connection and be answered in any order.
+ * Lines without the prefix are answered in order, like before.
+ */
+public class CorrelationId {
+
+    private static final char MARKER = '#';
+
+    private CorrelationId(){}
+
+    public static boolean isCorrelated(String line) {
+        return line != null && line.length() > 1 && line.charAt(0) == MARKER && line.indexOf(' ') > 1;
+    }
+
+    public static long id(String line) {
+        return Long.parseLong(line.substring(1, line.indexOf(' ')));
+    }
+
+    public static String body(String line) {
+        return line.substring(line.indexOf(' ') + 1);
+    }
+
+    public static String encode(long id, String body) {
+        return MARKER + Long.toString(id) + ' ' + body;
+    }
+}
@@ -0,0 +1,58 @@
+package se.kth.networking.java.first.network.codec;
+
+import org.json.JSONObject;
+
+/**
+ * One decoded message. Depending on the codec it starts out as text or as a parsed JSONObject,
+ * the other form is only built if somebody asks for it.
+ */
+public class Frame {
+
+    public static final long UNCORRELATED = 0;
+
+    private long correlationId;
+    private String text;
+    private JSONObject json;
+
+    public Frame(long correlationId, String text) {
+        this.correlationId = correlationId;
+        this.text = text;
+    }
+
+    public Frame(long correlationId, JSONObject json) {
+        this.correlationId = correlationId;
+        this.json = json;
+    }
+
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
+    public boolean isCorrelated() {
+        return correlationId != UNCORRELATED;
+    }
+
+    /**
+     * False for plain text like "ok", true if the frame holds a JSON object.
+     */
+    public boolean isObject() {
+        return json != null || text.startsWith("{");
+    }
+
+    public String getText() {
+        if (text == null) {
+            text = json.toString();
+        }
+        return text;
+    }
+
+    /**
+     * @throws org.json.JSONException if the frame is plain text, like the "Bad request" reply
+     */
+    public JSONObject getJson() {
+        if (json == null) {
+            json = new JSONObject(text);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,69 @@
+package se.kth.networking.java.first.network.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a blocking stream. The codec can be swapped after the handshake,
+ * bytes that were already read are kept.
+ */
+public class FrameReader {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private InputStream in;
+    private Codec codec;
+    private Codec.Decoder decoder;
+
+    //Always in write mode between calls
+    private ByteBuffer buffer;
+
+    public FrameReader(InputStream in, Codec codec) {
+        this.in = in;
+        this.codec = codec;
+        this.decoder = codec.newDecoder();
+        this.buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+        this.decoder = codec.newDecoder();
+    }
+
+    /**
+     * @return the next frame, or null at the end of the stream
+     */
+    public Frame read() throws IOException {
+        while (true) {
+            buffer.flip();
+            Frame frame;
+            try {
+                frame = decoder.decode(buffer);
+            } finally {
+                buffer.compact();
+            }
+
+            if (frame != null) {
+                return frame;
+            }
+
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+
+            int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read == -1) {
+                return null;
+            }
+            buffer.position(buffer.position() + read);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package se.kth.networking.java.first.network.codec;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original protocol, one JSON message per line. Easy to read in a packet dump, so it is kept for debugging
+ * and for peers that don't negotiate a codec.
+ */
+public class JsonCodec implements Codec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(long correlationId, String message) {
+        String line = correlationId == Frame.UNCORRELATED ? message : CorrelationId.encode(correlationId, message);
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encode(long correlationId, JSONObject message) {
+        return encode(correlationId, message.toString());
+    }
+
+    @Override
+    public Frame decode(ByteBuffer buffer) throws IOException {
+        return decode(buffer, 0);
+    }
+
+    /**
+     * Remembers how much of a partial line it has already looked at, a large message that comes in many
+     * reads is scanned once instead of from the start on every read.
+     */
+    @Override
+    public Decoder newDecoder() {
+        return new Decoder() {
+
+            //Bytes after the position without a newline
+            private int scanned;
+
+            @Override
+            public Frame decode(ByteBuffer buffer) throws IOException {
+                Frame frame = JsonCodec.decode(buffer, scanned);
+                scanned = frame == null ? buffer.remaining() : 0;
+                return frame;
+            }
+        };
+    }
+
+    private static Frame decode(ByteBuffer buffer, int scanned) throws IOException {
+        int start = buffer.position();
+        int end = buffer.limit();
+
+        for (int i = start + scanned; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                int length = i - start;
+                if (length > 0 && buffer.get(i - 1) == '\r') {
+                    length--;
+                }
+
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                buffer.position(i + 1);
+
+                String line = new String(bytes, StandardCharsets.UTF_8);
+                if (CorrelationId.isCorrelated(line)) {
+                    return new Frame(CorrelationId.id(line), CorrelationId.body(line));
+                }
+                return new Frame(Frame.UNCORRELATED, line);
+            }
+        }
+
+        if (end - start > MAX_FRAME_SIZE) {
+            throw new IOException("Line longer than " + MAX_FRAME_SIZE + " bytes");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.ApplicationDomain;
+import se.kth.networking.java.first.models.RingId;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lets applications keep implementing ApplicationDomain with BigInteger keys while the ring works on RingIds.
+ * Keys are only converted here, when they cross into the application.
+ */
+public class ApplicationDomainAdapter implements RingDomain {
+
+    private ApplicationDomain app;
+
+    public ApplicationDomainAdapter(ApplicationDomain app) {
+        this.app = app;
+    }
+
+    public ApplicationDomain getApplication() {
+        return app;
+    }
+
+    @Override
+    public void storeKey(RingId key, String value) {
+        app.storeKey(key.toBigInteger(), value);
+    }
+
+    @Override
+    public String getKey(RingId key) {
+        return app.getKey(key.toBigInteger());
+    }
+
+    @Override
+    public void foundKey(RingId key, String value) {
+        app.foundKey(key.toBigInteger(), value);
+    }
+
+    /**
+     * A copy of the application store, changes to it don't reach the application.
+     */
+    @Override
+    public Map<RingId, String> getStore() {
+        Map<RingId, String> store = new HashMap<>();
+        for (Map.Entry<BigInteger, String> entry : app.getStore().entrySet()) {
+            store.put(RingId.fromBigInteger(entry.getKey()), entry.getValue());
+        }
+        return store;
+    }
+
+    @Override
+    public Map<RingId, String> getRange(RingId from, RingId to) {
+        Map<RingId, String> range = new HashMap<>();
+        for (Map.Entry<BigInteger, String> entry : app.getRange(from.toBigInteger(), to.toBigInteger()).entrySet()) {
+            range.put(RingId.fromBigInteger(entry.getKey()), entry.getValue());
+        }
+        return range;
+    }
+
+    @Override
+    public Map<RingId, String> getRange(RingId from, RingId to, int limit) {
+        Map<RingId, String> range = new LinkedHashMap<>();
+        for (Map.Entry<BigInteger, String> entry : app.getRange(from.toBigInteger(), to.toBigInteger(), limit).entrySet()) {
+            range.put(RingId.fromBigInteger(entry.getKey()), entry.getValue());
+        }
+        return range;
+    }
+
+    @Override
+    public void removeRange(RingId from, RingId to) {
+        app.removeRange(from.toBigInteger(), to.toBigInteger());
+    }
+
+    @Override
+    public int sizeOfRange(RingId from, RingId to) {
+        return app.sizeOfRange(from.toBigInteger(), to.toBigInteger());
+    }
+
+    @Override
+    public void removeKey(RingId key) {
+        app.removeKey(key.toBigInteger());
+    }
+}
@@ -0,0 +1,218 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Phi accrual failure detector. Every reply and every message we get from a node is a heartbeat, the
+ * suspicion level (phi) of a node grows with the time since its last heartbeat compared to the gaps we
+ * usually see from it. A failed exchange counts as well, so a node that refuses connections is suspected
+ * right away instead of after a few missed gaps.
+ *
+ * Nothing here blocks or touches the network, the ring traffic we already have feeds it.
+ */
+public class FailureDetector {
+
+    //Gaps between heartbeats we base the mean on
+    private static final int WINDOW = 100;
+
+    private static final double LN_10 = Math.log(10);
+
+    private Map<RingId, History> histories;
+    private double phiThreshold;
+    private int maxFailures;
+    private long expectedInterval;
+
+    private AtomicLong suspicions;
+    private AtomicLong falsePositives;
+    private AtomicLong detectionMillis;
+
+    /**
+     * @param phiThreshold     suspect a node once its phi reaches this, 8 means about one in 10^8 that we are wrong
+     * @param maxFailures      suspect a node after this many failed exchanges in a row
+     * @param expectedInterval the gap we expect at most between heartbeats, the maintenance interval (ms)
+     */
+    public FailureDetector(double phiThreshold, int maxFailures, long expectedInterval) {
+        this.histories = new ConcurrentHashMap<>();
+        this.phiThreshold = phiThreshold;
+        this.maxFailures = maxFailures;
+        this.expectedInterval = expectedInterval;
+        this.suspicions = new AtomicLong();
+        this.falsePositives = new AtomicLong();
+        this.detectionMillis = new AtomicLong();
+    }
+
+    private History history(Node node) {
+        History history = histories.get(node.getId());
+        if (history == null) {
+            History created = new History();
+            history = histories.putIfAbsent(node.getId(), created);
+            if (history == null) {
+                history = created;
+            }
+        }
+        return history;
+    }
+
+    /**
+     * We heard from the node.
+     */
+    public void heartbeat(Node node) {
+        long now = System.currentTimeMillis();
+        History history = history(node);
+        synchronized (history) {
+            if (history.last > 0) {
+                history.add(now - history.last);
+            }
+            history.last = now;
+            history.failures = 0;
+
+            if (history.suspectedAt > 0) {
+                //It was alive after all
+                falsePositives.incrementAndGet();
+                history.suspectedAt = 0;
+            }
+        }
+    }
+
+    /**
+     * An exchange with the node failed, it could not be reached or did not answer in time.
+     */
+    public void failed(Node node) {
+        History history = history(node);
+        synchronized (history) {
+            history.failures++;
+        }
+    }
+
+    /**
+     * How sure we are that the node is gone, 0 for a node we have never heard from.
+     * With exponentially distributed gaps phi is the time since the last heartbeat over the mean gap, in log10.
+     */
+    public double phi(Node node) {
+        History history = histories.get(node.getId());
+        if (history == null) {
+            return 0;
+        }
+
+        synchronized (history) {
+            return phi(history, System.currentTimeMillis());
+        }
+    }
+
+    private double phi(History history, long now) {
+        if (history.last == 0) {
+            return 0;
+        }
+        //Bursts of traffic make for short gaps, but we can't expect to hear from a node more often than the
+        //maintenance runs, otherwise the first quiet moment after a burst looks like a failure
+        double mean = history.count == 0 ? expectedInterval : history.sum / (double) history.count;
+        return (now - history.last) / Math.max(mean, expectedInterval) / LN_10;
+    }
+
+    /**
+     * For nodes we hear from all the time, the successor and the predecessor. Suspected when phi has reached
+     * the threshold or the last exchanges failed.
+     */
+    public boolean isSuspected(Node node) {
+        History history = histories.get(node.getId());
+        if (history == null) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (history) {
+            boolean suspected = history.failures >= maxFailures || phi(history, now) >= phiThreshold;
+            if (suspected) {
+                markSuspected(history, now);
+            }
+            return suspected;
+        }
+    }
+
+    /**
+     * For nodes we only talk to now and then, like fingers. A long silence says nothing about them,
+     * only failed exchanges count.
+     */
+    public boolean hasFailed(Node node) {
+        History history = histories.get(node.getId());
+        if (history == null) {
+            return false;
+        }
+
+        synchronized (history) {
+            boolean failed = history.failures >= maxFailures;
+            if (failed) {
+                markSuspected(history, System.currentTimeMillis());
+            }
+            return failed;
+        }
+    }
+
+    private void markSuspected(History history, long now) {
+        if (history.suspectedAt == 0) {
+            history.suspectedAt = now;
+            suspicions.incrementAndGet();
+            if (history.last > 0) {
+                detectionMillis.addAndGet(now - history.last);
+            }
+        }
+    }
+
+    public void forget(Node node) {
+        histories.remove(node.getId());
+    }
+
+    /**
+     * How many times a node went from trusted to suspected.
+     */
+    public long getSuspicions() {
+        return suspicions.get();
+    }
+
+    /**
+     * Suspected nodes we heard from again afterwards.
+     */
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    /**
+     * Average time from the last heartbeat of a node until we suspected it (ms).
+     */
+    public double getAverageDetectionTime() {
+        long count = suspicions.get();
+        return count == 0 ? 0 : detectionMillis.get() / (double) count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("suspicions=%d falsePositives=%d detection=%.0fms", getSuspicions(),
+                getFalsePositives(), getAverageDetectionTime());
+    }
+
+    private static class History {
+        final long[] gaps = new long[WINDOW];
+        int next;
+        int count;
+        long sum;
+        long last;
+        int failures;
+        long suspectedAt;
+
+        void add(long gap) {
+            if (count == WINDOW) {
+                sum -= gaps[next];
+            } else {
+                count++;
+            }
+            gaps[next] = gap;
+            sum += gap;
+            next = (next + 1) % WINDOW;
+        }
+    }
+}
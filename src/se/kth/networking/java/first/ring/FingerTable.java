@@ -1,28 +1,32 @@
 package se.kth.networking.java.first.ring;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 import se.kth.networking.java.first.models.Node;
-import se.kth.networking.java.first.models.OnResponse;
+import se.kth.networking.java.first.models.RingId;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * Created by Nick on 11/25/2016.
+ *
+ * Finger i points at the node responsible for self + 2^i - 1. The entries are refreshed one at a time
+ * with a routed lookup, see RingHandler.fixFingers, routing only reads the published table.
  */
 public class FingerTable {
 
     private Node self;
-    private List<BigInteger> fingers;
-    private static final int RING_BIT_SIZE = 128;
-    private List<Node> table;
-    RingHandler ringHandler;
+    private List<RingId> fingers;
+    private static final int RING_BIT_SIZE = RingId.BITS;
 
-    public FingerTable(Node self, RingHandler ringHandler) {
+    //By finger number, null until it has been looked up. Guarded by this.
+    private final Node[] entries = new Node[RING_BIT_SIZE];
+    private int nextToFix;
+
+    //Sorted by clockwise distance from us, without duplicates and without ourselves.
+    //Never changed once published, routing reads it without locking.
+    private volatile Node[] table = new Node[0];
+
+    public FingerTable(Node self) {
         this.self = self;
-        this.ringHandler = ringHandler;
         fingers = new ArrayList<>();
 
         setupFingerKeys();
@@ -30,62 +34,107 @@ public class FingerTable {
 
     private void setupFingerKeys(){
         for(int i = 0; i < RING_BIT_SIZE; i++){
-            fingers.add((self.getId().add(new BigInteger(String.valueOf(2)).pow(i)).subtract(BigInteger.ONE))
-                    .mod(new BigInteger(String.valueOf(2)).pow(RING_BIT_SIZE)));
+            fingers.add(self.getId().addPowerOfTwo(i).decrement());
         }
     }
 
-    public String createFingerProbeMessage(){
-        JSONObject message = new JSONObject();
-        message.put("ip", self.getIp());
-        message.put("port", self.getPort());
-        message.put("type", "finger_probe");
-        message.put("keys", new JSONArray(fingers.toArray()));
-        message.put("fingers", new JSONArray());
-
-        return message.toString();
+    public RingId getKey(int finger) {
+        return fingers.get(finger);
     }
 
-    public String dealWithFingerProbe(String message, OnResponse<String> onDone){
-        JSONObject jsonMessage = new JSONObject(message);
-        List<Object> keys = jsonMessage.getJSONArray("keys").toList();
+    /**
+     * The finger the next refresh should look up. Wraps around to 0 after the last one.
+     */
+    public synchronized int getNextToFix() {
+        return nextToFix;
+    }
 
-        List<BigInteger> notFoundKeys = new ArrayList<>();
+    /**
+     * Sets the finger to the node responsible for its key. The fingers after it with keys that node is
+     * also responsible for get the same node without a lookup of their own, the next refresh starts after them.
+     *
+     * @return true if any of the fingers changed
+     */
+    public synchronized boolean setFinger(int finger, Node owner) {
+        boolean changed = false;
+        int i = finger;
+        do {
+            changed |= entries[i] == null || !entries[i].getId().equals(owner.getId());
+            entries[i] = owner;
+            i++;
+        } while (i < RING_BIT_SIZE && RingId.compareClockwise(self.getId(), fingers.get(i), owner.getId()) <= 0);
+
+        nextToFix = i == RING_BIT_SIZE ? 0 : i;
+        if (changed) {
+            publish();
+            System.out.println("Table is " + getTable());
+        }
+        return changed;
+    }
 
-        for(int i = 0; i < keys.size(); i++){
-            BigInteger key = new BigInteger(keys.get(i).toString());
-            if(ringHandler.isThisOurKey(key)){
-                jsonMessage.getJSONArray("fingers").put(new JSONObject(self.toString()));
-            } else {
-                notFoundKeys.add(key);
+    /**
+     * Drops a node that could not be reached from every finger, they are looked up again on the next pass.
+     *
+     * @return true if the node was one of our fingers
+     */
+    public synchronized boolean remove(Node node) {
+        boolean removed = false;
+        for (int i = 0; i < RING_BIT_SIZE; i++) {
+            if (entries[i] != null && entries[i].getId().equals(node.getId())) {
+                entries[i] = null;
+                removed = true;
             }
         }
 
-        jsonMessage.remove("keys");
-        jsonMessage.put("keys", notFoundKeys);
+        if (removed) {
+            publish();
+        }
+        return removed;
+    }
 
-        if(notFoundKeys.isEmpty() || jsonMessage.getString("ip").equals(self.getIp()) && jsonMessage.getInt("port") == self.getPort()){
-            Node sender = new Node(jsonMessage.toString());
-            jsonMessage.put("type", "finger_probe_response");
-            onDone.onResponse(jsonMessage.toString(), sender);
+    private void publish() {
+        final RingId origin = self.getId();
+        Set<RingId> seen = new HashSet<>();
+        List<Node> unique = new ArrayList<>();
+        for (Node node : entries) {
+            if (node != null && !node.getId().equals(origin) && seen.add(node.getId())) {
+                unique.add(node);
+            }
         }
 
-        return jsonMessage.toString();
+        Collections.sort(unique, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return RingId.compareClockwise(origin, a.getId(), b.getId());
+            }
+        });
+        table = unique.toArray(new Node[unique.size()]);
     }
 
-    public synchronized void updateTable(String clientMessage) {
-        JSONObject response = new JSONObject(clientMessage);
-        JSONArray fingers = response.getJSONArray("fingers");
-        table = new ArrayList<>();
-
-        for(int i = 0; i < fingers.length(); i++){
-            table.add(new Node(fingers.get(i).toString()));
+    /**
+     * The finger that gets closest to the key without reaching it, null if no finger lies between us and the key.
+     * A binary search over the published table, no locks and no allocation.
+     */
+    public Node closestPrecedingNode(RingId key) {
+        Node[] nodes = table;
+        RingId origin = self.getId();
+
+        int low = 0;
+        int high = nodes.length - 1;
+        Node closest = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (RingId.compareClockwise(origin, nodes[mid].getId(), key) < 0) {
+                closest = nodes[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
         }
-
-        System.out.println("Table is " + table);
+        return closest;
     }
 
     public List<Node> getTable() {
-        return table;
+        return Collections.unmodifiableList(Arrays.asList(table));
     }
 }
@@ -0,0 +1,263 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.messages.HandoffMessage;
+import se.kth.networking.java.first.messages.PutBatchMessage;
+import se.kth.networking.java.first.messages.PutBatchReplyMessage;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Streams a range of our keys to another node, the whole store to the successor when we shut down or the
+ * part a new predecessor took over to it. The keys are read from the store a chunk at a time and go over
+ * the pooled connection with at most window chunks waiting for their acknowledgement, so only those chunks
+ * are ever on the heap. A chunk is removed from the local store as soon as it has been acknowledged, so if
+ * the handoff is cut short, running it again only sends what is left.
+ *
+ * To the successor a chunk that fails is sent again to the first successor we don't suspect and that has
+ * not failed it yet. To a new owner it goes to the same node again, the keys are its and nobody else's, and
+ * the owner acknowledges every key on its own. The keys it rejects, because its range changed again, stay
+ * here. Either way a chunk is tried at most MAX_ATTEMPTS times.
+ */
+class Handoff {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    //Print the progress every this many chunks
+    private static final int REPORT_EVERY = 100;
+
+    private RingHandler ring;
+    private RingId to;
+    //Null when the keys go to the successors
+    private Node target;
+    private boolean keepCopies;
+    private int chunkSize;
+    private int window;
+
+    private CompletableFuture<Void> done;
+    //The next chunk starts after this key, until everything has been read
+    private RingId cursor;
+    private boolean read;
+    private int chunks;
+    private int inFlight;
+    private int chunksDone;
+    private long keys;
+    private long keysAcked;
+    private long bytesAcked;
+    private long keysFailed;
+    private long started;
+
+    /**
+     * Hands over the keys in the clockwise interval (from, to] to the successors, all of them when from and to
+     * are the same.
+     */
+    Handoff(RingHandler ring, RingId from, RingId to, int chunkSize, int window) {
+        this(ring, from, to, null, false, chunkSize, window);
+    }
+
+    /**
+     * Hands over the keys in (from, to] to the target, the successors when it is null. With keepCopies the
+     * acknowledged keys stay in the store, for a replica of the target.
+     */
+    Handoff(RingHandler ring, RingId from, RingId to, Node target, boolean keepCopies, int chunkSize, int window) {
+        this.ring = ring;
+        this.cursor = from;
+        this.to = to;
+        this.target = target;
+        this.keepCopies = keepCopies;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.window = Math.max(1, window);
+        this.done = new CompletableFuture<>();
+    }
+
+    /**
+     * Completes once every chunk has been acknowledged or has given up.
+     */
+    CompletableFuture<Void> start() {
+        started = System.currentTimeMillis();
+        List<Chunk> first = new ArrayList<>();
+        synchronized (this) {
+            Chunk chunk;
+            while (inFlight < window && (chunk = nextChunk()) != null) {
+                first.add(chunk);
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                done.complete(null);
+                return done;
+            }
+        }
+
+        for (Chunk chunk : first) {
+            send(chunk, 1, new HashSet<RingId>());
+        }
+        return done;
+    }
+
+    /**
+     * Reads the next chunk from the store, null once there is nothing left. Called holding the lock.
+     */
+    private Chunk nextChunk() {
+        if (read) {
+            return null;
+        }
+
+        Map<RingId, String> entries;
+        try {
+            entries = ring.app.getRange(cursor, to, chunkSize);
+        } catch (RuntimeException e) {
+            System.out.println("Handoff could not read the store: " + e.getMessage());
+            read = true;
+            return null;
+        }
+        if (entries.size() < chunkSize) {
+            read = true;
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+
+        Chunk chunk = new Chunk(chunks++, entries);
+        keys += chunk.keys.size();
+        cursor = chunk.keys.get(chunk.keys.size() - 1);
+        if (cursor.equals(to)) {
+            read = true;
+        }
+        return chunk;
+    }
+
+    private void send(final Chunk chunk, final int attempt, final Set<RingId> failedBy) {
+        final Node node = target != null ? target : ring.liveSuccessor(failedBy);
+        if (node == null) {
+            finish(chunk, Collections.<RingId>emptyList());
+            return;
+        }
+
+        CompletableFuture<List<RingId>> sent;
+        try {
+            if (target == null) {
+                sent = ring.send(node, new HandoffMessage(ring.getSelf(), chunk.keys, chunk.values))
+                        .thenApply(reply -> chunk.keys);
+            } else {
+                sent = ring.send(node, new PutBatchMessage(ring.getSelf(), chunk.keys, chunk.values), PutBatchReplyMessage.class)
+                        .thenApply(reply -> chunk.without(reply.getRejected()));
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Handoff chunk " + chunk.number + " could not be sent: " + e.getMessage());
+            finish(chunk, Collections.<RingId>emptyList());
+            return;
+        }
+
+        sent.whenComplete((acked, e) -> {
+            if (e != null && attempt < MAX_ATTEMPTS) {
+                System.out.println("Handoff chunk " + chunk.number + " to " + node.getPort() + " failed, attempt " + attempt + ": " + e.getMessage());
+                failedBy.add(node.getId());
+                send(chunk, attempt + 1, failedBy);
+                return;
+            }
+
+            List<RingId> stored = e == null ? acked : Collections.<RingId>emptyList();
+            if (!keepCopies) {
+                try {
+                    for (RingId key : stored) {
+                        ring.app.removeKey(key);
+                    }
+                } catch (RuntimeException removeFailed) {
+                    //The other node has them, we just keep our copy
+                    System.out.println("Handed off keys could not be removed: " + removeFailed.getMessage());
+                }
+            }
+            finish(chunk, stored);
+        });
+    }
+
+    private void finish(Chunk chunk, List<RingId> acked) {
+        Chunk next;
+        boolean last;
+        boolean report;
+        synchronized (this) {
+            inFlight--;
+            chunksDone++;
+            keysAcked += acked.size();
+            bytesAcked += acked.size() == chunk.keys.size() ? chunk.bytes : chunk.bytesOf(acked);
+            keysFailed += chunk.keys.size() - acked.size();
+
+            next = nextChunk();
+            if (next != null) {
+                inFlight++;
+            }
+            last = inFlight == 0;
+            report = last || chunksDone % REPORT_EVERY == 0;
+        }
+
+        if (report) {
+            System.out.println(getProgress());
+        }
+        if (next != null) {
+            send(next, 1, new HashSet<RingId>());
+        }
+        if (last) {
+            done.complete(null);
+        }
+    }
+
+    /**
+     * How far we got and how fast, for the log.
+     */
+    synchronized String getProgress() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        return String.format("Handoff to %s %d/%d keys%s, %d failed, %d KB in %d ms (%.0f keys/s, %.0f KB/s)",
+                target == null ? "the successors" : target.getPort(), keysAcked, keys, read ? "" : " read so far", keysFailed, bytesAcked / 1024, elapsed,
+                keysAcked * 1000.0 / elapsed, bytesAcked * 1000.0 / 1024 / elapsed);
+    }
+
+    synchronized long getKeysAcked() {
+        return keysAcked;
+    }
+
+    private static class Chunk {
+
+        private int number;
+        private List<RingId> keys;
+        private List<String> values;
+        private long bytes;
+
+        private Chunk(int number, Map<RingId, String> entries) {
+            this.number = number;
+            this.keys = new ArrayList<>(entries.keySet());
+            this.values = new ArrayList<>(keys.size());
+            for (RingId key : keys) {
+                String value = entries.get(key);
+                values.add(value);
+                bytes += RingHandler.entryBytes(value);
+            }
+        }
+
+        private List<RingId> without(List<RingId> rejected) {
+            if (rejected.isEmpty()) {
+                return keys;
+            }
+            List<RingId> rest = new ArrayList<>(keys);
+            rest.removeAll(new HashSet<>(rejected));
+            return rest;
+        }
+
+        private long bytesOf(List<RingId> some) {
+            Set<RingId> wanted = new HashSet<>(some);
+            long total = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                if (wanted.contains(keys.get(i))) {
+                    total += RingHandler.entryBytes(values.get(i));
+                }
+            }
+            return total;
+        }
+    }
+}
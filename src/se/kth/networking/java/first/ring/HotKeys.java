@@ -0,0 +1,50 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the reads of the keys we own per second. A key read at least threshold times in this second or
+ * the last one is hot, and the nodes that read it are told they may cache it. Only the keys read in the
+ * last two seconds are counted, the rest are forgotten.
+ */
+class HotKeys {
+
+    private static final long WINDOW = 1000;
+
+    private int threshold;
+    private Map<RingId, Integer> current;
+    private Map<RingId, Integer> previous;
+    private long windowStart;
+
+    HotKeys(int threshold) {
+        this.threshold = threshold;
+        this.current = new HashMap<>();
+        this.previous = new HashMap<>();
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Counts a read of the key.
+     *
+     * @return true if the key is hot
+     */
+    synchronized boolean read(RingId key) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= WINDOW) {
+            //A window that went by without any reads leaves nothing to remember
+            previous = now - windowStart >= 2 * WINDOW ? new HashMap<RingId, Integer>() : current;
+            current = new HashMap<>();
+            windowStart = now;
+        }
+
+        Integer count = current.get(key);
+        count = count == null ? 1 : count + 1;
+        current.put(key, count);
+
+        Integer before = previous.get(key);
+        return count >= threshold || (before != null && before >= threshold);
+    }
+}
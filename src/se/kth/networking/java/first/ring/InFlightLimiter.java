@@ -0,0 +1,75 @@
+package se.kth.networking.java.first.ring;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Caps the bytes of batches that have been sent but not answered yet. Senders that would go over the
+ * cap wait their turn, in order, so a bulk load can't queue up more than the network and the owners
+ * can take.
+ */
+class InFlightLimiter {
+
+    private long maxBytes;
+    private long inFlight;
+    private Queue<Waiting> waiting;
+
+    InFlightLimiter(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.waiting = new ArrayDeque<>();
+    }
+
+    /**
+     * Completes once the bytes fit. A batch bigger than the cap goes out when nothing else is in flight.
+     */
+    CompletableFuture<Void> acquire(long bytes) {
+        CompletableFuture<Void> granted = new CompletableFuture<>();
+        synchronized (this) {
+            if (!waiting.isEmpty() || !fits(bytes)) {
+                waiting.add(new Waiting(bytes, granted));
+                return granted;
+            }
+            inFlight += bytes;
+        }
+        granted.complete(null);
+        return granted;
+    }
+
+    void release(long bytes) {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            inFlight -= bytes;
+            while (!waiting.isEmpty() && fits(waiting.peek().bytes)) {
+                Waiting next = waiting.poll();
+                inFlight += next.bytes;
+                granted.add(next.future);
+            }
+        }
+
+        //Outside the lock, the senders continue on this thread
+        for (CompletableFuture<Void> future : granted) {
+            future.complete(null);
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return inFlight == 0 || inFlight + bytes <= maxBytes;
+    }
+
+    synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    private static class Waiting {
+        final long bytes;
+        final CompletableFuture<Void> future;
+
+        Waiting(long bytes, CompletableFuture<Void> future) {
+            this.bytes = bytes;
+            this.future = future;
+        }
+    }
+}
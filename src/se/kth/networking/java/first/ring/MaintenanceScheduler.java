@@ -0,0 +1,221 @@
+package se.kth.networking.java.first.ring;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the periodic ring maintenance (stabilize, fix fingers) and the lookup deadlines of every node in
+ * the JVM on a few shared threads, instead of two Timer threads per node. The tasks only send messages
+ * and return, the replies are handled elsewhere, so a couple of threads go a long way.
+ *
+ * The interval of a task adapts to the ring. It drops to the minimum as soon as the task sees a change
+ * and grows again after a few stable rounds in a row.
+ */
+public class MaintenanceScheduler {
+
+    //Stable rounds in a row before a task starts to back off
+    private static final int STABLE_ROUNDS = 3;
+
+    private static MaintenanceScheduler shared;
+
+    private ScheduledThreadPoolExecutor executor;
+    private AtomicLong runs;
+    private AtomicLong latenessMillis;
+    private AtomicLong maxLateness;
+    private AtomicLong lateRuns;
+
+    /**
+     * The scheduler all nodes in the JVM use unless they are given one.
+     */
+    public static synchronized MaintenanceScheduler getShared() {
+        if (shared == null) {
+            shared = new MaintenanceScheduler(2);
+        }
+        return shared;
+    }
+
+    public MaintenanceScheduler(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ring-maintenance-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //Deadlines are mostly cancelled long before they are due, don't keep them in the queue
+        executor.setRemoveOnCancelPolicy(true);
+
+        this.runs = new AtomicLong();
+        this.latenessMillis = new AtomicLong();
+        this.maxLateness = new AtomicLong();
+        this.lateRuns = new AtomicLong();
+    }
+
+    /**
+     * Starts running the work every interval ms, the first time after the delay.
+     */
+    public Task schedule(String name, Runnable work, int minInterval, int interval, int maxInterval, long delay) {
+        Task task = new Task(name, work, minInterval, interval, maxInterval);
+        task.scheduleIn(delay);
+        return task;
+    }
+
+    /**
+     * Runs the work once after the delay.
+     */
+    public ScheduledFuture<?> schedule(Runnable work, long delay) {
+        return executor.schedule(work, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void recordLateness(long lateness) {
+        runs.incrementAndGet();
+        latenessMillis.addAndGet(lateness);
+        long max;
+        while (lateness > (max = maxLateness.get()) && !maxLateness.compareAndSet(max, lateness)) {
+            //Somebody else raised it, try again
+        }
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Runs that started more than their own interval after they were due.
+     */
+    public long getLateRuns() {
+        return lateRuns.get();
+    }
+
+    /**
+     * Average time from when a run was due until it started (ms).
+     */
+    public double getAverageLateness() {
+        long count = runs.get();
+        return count == 0 ? 0 : latenessMillis.get() / (double) count;
+    }
+
+    public long getMaxLateness() {
+        return maxLateness.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("runs=%d late=%d lateness=%.1fms max=%dms", getRuns(), getLateRuns(),
+                getAverageLateness(), getMaxLateness());
+    }
+
+    /**
+     * A periodic task of one node. The work tells the task if the ring changed with changed(), or that
+     * nothing happened with stable().
+     */
+    public class Task {
+
+        private String name;
+        private Runnable work;
+        private int minInterval;
+        private int maxInterval;
+        private volatile int interval;
+        private int stableRounds;
+        private long due;
+        //Bumped every time the next run is scheduled, so a run that was replaced knows it
+        private long generation;
+        private boolean cancelled;
+        private ScheduledFuture<?> next;
+
+        private Task(String name, Runnable work, int minInterval, int interval, int maxInterval) {
+            this.name = name;
+            this.work = work;
+            this.minInterval = minInterval;
+            this.interval = interval;
+            this.maxInterval = maxInterval;
+        }
+
+        private synchronized void scheduleIn(long delay) {
+            if (cancelled) {
+                return;
+            }
+            due = System.currentTimeMillis() + delay;
+            final long scheduled = ++generation;
+            try {
+                next = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        runIfCurrent(scheduled);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //The scheduler was shut down
+                cancelled = true;
+            }
+        }
+
+        private void runIfCurrent(long scheduled) {
+            long lateness;
+            synchronized (this) {
+                if (cancelled || scheduled != generation) {
+                    return;
+                }
+                lateness = Math.max(0, System.currentTimeMillis() - due);
+            }
+
+            recordLateness(lateness);
+            if (lateness > interval) {
+                lateRuns.incrementAndGet();
+                System.out.println(name + " ran " + lateness + "ms late, the maintenance threads can't keep up");
+            }
+
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                System.out.println(name + " failed: " + e.getMessage());
+            }
+            scheduleIn(interval);
+        }
+
+        /**
+         * The ring changed, run at the minimum interval again. A run that is further away than that is
+         * moved up.
+         */
+        public synchronized void changed() {
+            if (cancelled) {
+                return;
+            }
+            stableRounds = 0;
+            interval = minInterval;
+
+            if (due - System.currentTimeMillis() > minInterval) {
+                next.cancel(false);
+                scheduleIn(minInterval);
+            }
+        }
+
+        /**
+         * Nothing changed this round. After a few of those in a row the interval grows by half.
+         */
+        public synchronized void stable() {
+            stableRounds++;
+            if (stableRounds >= STABLE_ROUNDS) {
+                interval = Math.min(maxInterval, interval + interval / 2);
+            }
+        }
+
+        public int getInterval() {
+            return interval;
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+    }
+}
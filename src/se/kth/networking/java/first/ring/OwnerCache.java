@@ -0,0 +1,123 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The nodes we have seen answer for a range of the ring, so a key in a range we know goes straight to its
+ * owner instead of being routed. A range is (from, owner], the owner sends where it starts with its answer.
+ *
+ * It is a guess. A node that joins or leaves moves the ranges, the callers find out when the node they
+ * picked does not own the key, or can't be reached, and drop it. At most capacity ranges are kept, the
+ * least recently used go first.
+ */
+public class OwnerCache {
+
+    private int capacity;
+    //By the id of the owner, the range of a key is the first one at or after it
+    private TreeMap<RingId, Range> byOwner;
+    //The same ranges, least recently used first
+    private LinkedHashMap<RingId, Range> lru;
+
+    private long hits;
+    private long misses;
+
+    public OwnerCache(int capacity) {
+        this.capacity = capacity;
+        this.byOwner = new TreeMap<>();
+        this.lru = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * The node we think owns the key, null if we don't know.
+     */
+    public synchronized Node get(RingId key) {
+        Map.Entry<RingId, Range> next = byOwner.ceilingEntry(key);
+        if (next == null) {
+            //Past the last owner the ring wraps around to the first
+            next = byOwner.firstEntry();
+        }
+
+        if (next != null && key.isBetween(next.getValue().from, next.getKey())) {
+            hits++;
+            lru.get(next.getKey());
+            return next.getValue().owner;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * The owner told us its range. Ranges of other owners that say they own part of it are out of date.
+     */
+    public synchronized void learn(Node owner, RingId from) {
+        if (capacity <= 0) {
+            return;
+        }
+
+        RingId id = owner.getId();
+        Iterator<Map.Entry<RingId, Range>> it = lru.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<RingId, Range> entry = it.next();
+            if (!entry.getKey().equals(id) && entry.getKey().isBetween(from, id)) {
+                byOwner.remove(entry.getKey());
+                it.remove();
+            }
+        }
+
+        Range range = new Range(owner, from);
+        byOwner.put(id, range);
+        lru.put(id, range);
+
+        if (lru.size() > capacity) {
+            RingId eldest = lru.keySet().iterator().next();
+            lru.remove(eldest);
+            byOwner.remove(eldest);
+        }
+    }
+
+    /**
+     * The node did not own a key we sent it, or could not be reached.
+     */
+    public synchronized void invalidate(Node owner) {
+        lru.remove(owner.getId());
+        byOwner.remove(owner.getId());
+    }
+
+    public synchronized int size() {
+        return lru.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ranges=%d hits=%d misses=%d hitRate=%.2f", lru.size(), hits, misses, getHitRate());
+    }
+
+    private static class Range {
+        final Node owner;
+        final RingId from;
+
+        Range(Node owner, RingId from) {
+            this.owner = owner;
+            this.from = from;
+        }
+    }
+}
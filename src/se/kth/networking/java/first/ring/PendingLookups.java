@@ -0,0 +1,79 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.messages.LookupResponseMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookups this node is waiting for, by request id. The responsible node sends its answer straight back
+ * to us with the id, a lookup that gets no answer before its deadline fails with a TimeoutException.
+ */
+class PendingLookups {
+
+    private Map<Long, CompletableFuture<LookupResponseMessage>> pending;
+    private AtomicLong nextId;
+    private MaintenanceScheduler deadlines;
+    private int timeout;
+
+    PendingLookups(int timeout, MaintenanceScheduler deadlines) {
+        this.pending = new ConcurrentHashMap<>();
+        this.nextId = new AtomicLong();
+        this.timeout = timeout;
+        this.deadlines = deadlines;
+    }
+
+    long nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    /**
+     * Starts waiting for the answer to the request id.
+     */
+    CompletableFuture<LookupResponseMessage> register(final long id) {
+        final CompletableFuture<LookupResponseMessage> future = new CompletableFuture<>();
+        pending.put(id, future);
+
+        final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                CompletableFuture<LookupResponseMessage> expired = pending.remove(id);
+                if (expired != null) {
+                    expired.completeExceptionally(new TimeoutException("Lookup " + id + " got no answer within " + timeout + "ms"));
+                }
+            }
+        }, timeout);
+
+        future.whenComplete((value, e) -> deadline.cancel(false));
+        return future;
+    }
+
+    /**
+     * @return false if we are not waiting for the id, it timed out or was answered already
+     */
+    boolean complete(long id, LookupResponseMessage response) {
+        CompletableFuture<LookupResponseMessage> future = pending.remove(id);
+        if (future == null) {
+            return false;
+        }
+        future.complete(response);
+        return true;
+    }
+
+    void fail(long id, Throwable cause) {
+        CompletableFuture<LookupResponseMessage> future = pending.remove(id);
+        if (future != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    void shutdown() {
+        List<Long> ids = new ArrayList<>(pending.keySet());
+        for (Long id : ids) {
+            fail(id, new CancellationException("Node is shutting down"));
+        }
+    }
+}
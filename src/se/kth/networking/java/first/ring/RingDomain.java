@@ -0,0 +1,32 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.Map;
+
+/**
+ * The application as the ring sees it, keyed by RingId. See ApplicationDomainAdapter for the
+ * BigInteger based ApplicationDomain that applications implement.
+ */
+public interface RingDomain {
+    void storeKey(RingId key, String value);
+    String getKey(RingId key);
+    void foundKey(RingId key, String value);
+    Map<RingId, String> getStore();
+
+    /**
+     * The entries with keys in the clockwise interval (from, to].
+     */
+    Map<RingId, String> getRange(RingId from, RingId to);
+
+    /**
+     * The first limit entries of the clockwise interval (from, to], in order going clockwise from from.
+     */
+    Map<RingId, String> getRange(RingId from, RingId to, int limit);
+
+    void removeRange(RingId from, RingId to);
+
+    int sizeOfRange(RingId from, RingId to);
+
+    void removeKey(RingId key);
+}
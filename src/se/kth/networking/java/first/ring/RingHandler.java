@@ -1,265 +1,478 @@
 package se.kth.networking.java.first.ring;
 
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 import se.kth.networking.java.first.ApplicationDomain;
 import se.kth.networking.java.first.Helper;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.*;
 import se.kth.networking.java.first.models.Node;
-import se.kth.networking.java.first.models.OnResponse;
+import se.kth.networking.java.first.models.RingId;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
 /**
  * Created by victoraxelsson on 2016-11-04.
  */
 public class RingHandler {
 
-    Node predecessor;
-    Node successor;
-    Node nextSuccessor;
+    //Updated from the timers, the acceptor and the reply callbacks
+    volatile Node predecessor;
+    volatile Node successor;
+    //Our successor and the nodes after it, as far as they know. Replaced, never changed.
+    volatile List<Node> successorList = Collections.emptyList();
+    int successorListLength;
     FingerTable fingers;
     Node self;
-    ApplicationDomain app;
-    Timer stabilizeTimer;
-    Timer fingerTimer;
+    RingDomain app;
+    MaintenanceScheduler scheduler;
+    MaintenanceScheduler.Task stabilizeTask;
+    MaintenanceScheduler.Task fingerTask;
+    //Set while a finger lookup is out, a round doesn't start another one
+    AtomicBoolean fixingFingers = new AtomicBoolean();
     SocketQueue socketQueue;
+    int requestTimeout;
+    PendingLookups pendingLookups;
+    FailureDetector failureDetector;
+    OwnerCache owners;
+    ValueCache values;
+    HotKeys hotKeys;
+    //Reads of keys we own that we answered, the load the value caches take off us
+    AtomicLong ownerReads = new AtomicLong();
+    InFlightLimiter batchBytes;
+    int batchSize;
+    int lookupTimeout;
+    int handoffWindow;
+    int drainTimeout;
+    int replicationFactor;
+    NodeConfig.WriteAck writeAck;
+    //Our predecessor and the replicas when we last copied our range to them, and a guard for the copying
+    volatile RingId replicatedFrom;
+    volatile Set<RingId> replicatedTo = Collections.emptySet();
+    //Our replicas as of the last round, to tell the ones that drop out
+    volatile List<Node> lastReplicas = Collections.emptyList();
+    AtomicBoolean syncingReplicas = new AtomicBoolean();
+
+    //Stabilize runs every 2s, down to 500ms right after a change and up to 8s while the ring is stable
+    private static final int STABILIZE_INTERVAL = 2000;
+    private static final int MIN_STABILIZE_INTERVAL = 500;
+    private static final int MAX_STABILIZE_INTERVAL = 8000;
+
+    //A lookup should reach its node in O(log N) hops, more than this means the routing is broken
+    private static final int MAX_LOOKUP_HOPS = RingId.BITS;
+
+    //Request id of a hot value the owner sends on its own, no lookup is waiting for it
+    private static final long PUSHED = -1;
+
+    //A batched key whose owner could not take it is looked up again this many times
+    private static final int BATCH_RETRIES = 2;
+
+    //Moving a range to a new owner reads and sends a lot of keys, it gets its own threads and not the maintenance ones
+    private static final ExecutorService TRANSFERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ring-transfer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //One finger is refreshed per round
+    private static final int FINGER_INTERVAL = 1000;
+    private static final int MIN_FINGER_INTERVAL = 250;
+    private static final int MAX_FINGER_INTERVAL = 10000;
 
     public RingHandler(String ip, int port, ApplicationDomain app) {
+        this(ip, port, app, new NodeConfig());
+    }
+
+    public RingHandler(String ip, int port, ApplicationDomain app, NodeConfig config) {
         this.self = new Node(ip, port);
         this.successor = this.self;
-        this.app = app;
-        this.fingers = new FingerTable(self, this);
-        socketQueue = new SocketQueue();
+        this.app = new ApplicationDomainAdapter(app);
+        this.fingers = new FingerTable(self);
+        socketQueue = new SocketQueue(config);
+        requestTimeout = config.getRequestTimeout();
+        successorListLength = config.getSuccessorListLength();
+        batchSize = config.getBatchSize();
+        lookupTimeout = config.getLookupTimeout();
+        handoffWindow = config.getHandoffWindow();
+        drainTimeout = config.getDrainTimeout();
+        owners = new OwnerCache(config.getOwnerCacheSize());
+        values = new ValueCache(config.getValueCacheSize(), config.getValueCacheTtl());
+        hotKeys = new HotKeys(config.getHotKeyThreshold());
+        replicationFactor = Math.max(1, config.getReplicationFactor());
+        writeAck = config.getWriteAck();
+        batchBytes = new InFlightLimiter(config.getMaxBatchBytesInFlight());
+        scheduler = MaintenanceScheduler.getShared();
+        pendingLookups = new PendingLookups(config.getLookupTimeout(), scheduler);
+        failureDetector = new FailureDetector(config.getPhiThreshold(), config.getSuspectAfterFailures(),
+                STABILIZE_INTERVAL);
 
-        TimerTask stabilizeTask = new TimerTask() {
+        //Set a random day so that the stabalizers don't run at the same time
+        int delay = Helper.getHelper().getRandom(200, STABILIZE_INTERVAL);
+        stabilizeTask = scheduler.schedule("stabilize " + port, new Runnable() {
             @Override
             public void run() {
                 stabilize();
             }
-        };
+        }, MIN_STABILIZE_INTERVAL, STABILIZE_INTERVAL, MAX_STABILIZE_INTERVAL, delay);
 
-        //Set a random day so that the stabalizers don't run at the same time
-        int interval = 2000;
-        int delay = Helper.getHelper().getRandom(200, interval);
-
-        stabilizeTimer = new Timer();
-        stabilizeTimer.scheduleAtFixedRate(stabilizeTask, delay, interval);
-
-        TimerTask fingers = new TimerTask() {
+        // Set a random day so that the stabalizers don't run at the same time
+        int delay2 = Helper.getHelper().getRandom(10, FINGER_INTERVAL);
+        fingerTask = scheduler.schedule("fix fingers " + port, new Runnable() {
             @Override
             public void run() {
-                updateFingerTable();
+                fixFingers();
             }
-        };
-
-        // Set a random day so that the stabalizers don't run at the same time
-        int interval2 = 10000;
-        int delay2 = Helper.getHelper().getRandom(10, interval2);
-
-        fingerTimer = new Timer();
-
-        fingerTimer.scheduleAtFixedRate(fingers, delay2, interval2);
+        }, MIN_FINGER_INTERVAL, FINGER_INTERVAL, MAX_FINGER_INTERVAL, delay2);
     }
 
     public void shutdown() {
-        stabilizeTimer.cancel();
-        stabilizeTimer.purge();
-        fingerTimer.cancel();
-        fingerTimer.purge();
+        stabilizeTask.cancel();
+        fingerTask.cancel();
         transferStoredData();
+        pendingLookups.shutdown();
+        socketQueue.shutdown();
     }
 
+    /**
+     * Streams our keys to the successor, waiting at most drainTimeout before the connections are closed.
+     */
     private void transferStoredData() {
-        for (Map.Entry<BigInteger, String> entry : app.getStore().entrySet()) {
-            sendKeyToSuccessor(entry.getKey(), entry.getValue());
+        if (successor.getId().equals(self.getId())) {
+            //Nobody to hand them to
+            return;
+        }
+
+        Handoff handoff = new Handoff(this, self.getId(), self.getId(), batchSize, handoffWindow);
+        try {
+            handoff.start().get(drainTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("Not all keys could be handed over: " + handoff.getProgress());
         }
     }
 
-    private void updateFingerTable() {
-        if(!successor.getId().equals(self.getId()) && predecessor != null &&
-                !predecessor.getId().equals(self.getId())){
+    /**
+     * The first node of the successor list we don't suspect, null if there is none.
+     */
+    Node liveSuccessor() {
+        return liveSuccessor(Collections.<RingId>emptySet());
+    }
 
-            JSONObject message = new JSONObject(fingers.createFingerProbeMessage());
-            try {
-                socketQueue.sendMessage(successor, message.toString(), null);
-            } catch (IOException e) {
-                handleUnresponsiveSuccessorNode(successor);
+    /**
+     * The first node of the successor list we don't suspect and that is not one of skip.
+     */
+    Node liveSuccessor(Set<RingId> skip) {
+        Node next = successor;
+        if (!next.getId().equals(self.getId()) && !failureDetector.isSuspected(next) && !skip.contains(next.getId())) {
+            return next;
+        }
+        for (Node node : successorList) {
+            if (!node.getId().equals(self.getId()) && !failureDetector.isSuspected(node) && !skip.contains(node.getId())) {
+                return node;
             }
         }
+        return null;
+    }
 
+    /**
+     * What an entry adds to a batch on the wire, the key and the value in UTF-8.
+     */
+    static long entryBytes(String value) {
+        long bytes = RingId.BYTES;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                //The pair is one code point of four bytes
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
     }
 
-    private void stabilize() {
+    /**
+     * Stores every key of the message, whether we are responsible for it or not. For the keys of a node
+     * that is leaving us and for the copies our predecessors send their replicas.
+     */
+    public void storeAll(PutBatchMessage message) {
+        List<RingId> keys = message.getKeys();
+        List<String> values = message.getValues();
+        for (int i = 0; i < keys.size(); i++) {
+            app.storeKey(keys.get(i), values.get(i));
+        }
+    }
 
-        JSONObject message = new JSONObject();
-        message.put("type", "request");
-        message.put("ip", self.getIp());
-        message.put("port", self.getPort());
+    /**
+     * Sends the message, a reply is a heartbeat of the node for the failure detector and no reply a failure.
+     */
+    CompletableFuture<Message> send(final Node node, Message message) {
+        //The callers see the reply after the detector has, so they can ask it about the node
+        return socketQueue.sendMessage(node, message).whenComplete((response, e) -> {
+            if (e == null) {
+                failureDetector.heartbeat(node);
+            } else {
+                failureDetector.failed(node);
+            }
+        });
+    }
 
-        try {
-            socketQueue.sendMessage(successor, message.toString(), new OnResponse<String>() {
-                @Override
-                public String onResponse(String response, Node node) {
+    /**
+     * Sends the message and expects a reply of the given type, anything else fails the future.
+     */
+    <T extends Message> CompletableFuture<T> send(final Node node, Message message, final Class<T> replyType) {
+        return send(node, message).thenApply(reply -> expect(node, reply, replyType));
+    }
 
-                    if(response == null){
-                        return null;
-                    }
+    private static <T extends Message> T expect(Node node, Message reply, Class<T> replyType) {
+        if (!replyType.isInstance(reply)) {
+            throw new CompletionException(new IOException("Expected a " + replyType.getSimpleName() + " from "
+                    + node.getPort() + ", got " + reply));
+        }
+        return replyType.cast(reply);
+    }
 
-                    JSONObject jsonResponse = new JSONObject(response);
+    /**
+     * Sends to the current successor, if it can't be reached we start looking at the successor failure.
+     */
+    private CompletableFuture<Message> sendToSuccessor(Message message) {
+        final Node target = successor;
+        CompletableFuture<Message> reply = send(target, message);
+        reply.exceptionally(e -> {
+            System.out.println("Could not reach successor " + target.getPort() + ": " + e.getMessage());
+            handleUnresponsiveSuccessorNode(target);
+            return null;
+        });
+        return reply;
+    }
 
-                    Node otherPredesessor = null;
-                    Node otherSuccessor = null;
+    private <T extends Message> CompletableFuture<T> sendToSuccessor(Message message, final Class<T> replyType) {
+        final Node target = successor;
+        return sendToSuccessor(message).thenApply(reply -> expect(target, reply, replyType));
+    }
 
-                    if (!jsonResponse.getString("predecessor").equalsIgnoreCase("null")) {
-                        otherPredesessor = new Node(jsonResponse.getString("predecessor"));
-                    }
+    /**
+     * Refreshes the next finger with a routed lookup of its key, O(log N) hops instead of a message
+     * around the whole ring. Keys up to our successor are known without asking anyone.
+     */
+    private void fixFingers() {
+        if (!fixingFingers.compareAndSet(false, true)) {
+            //The last round is still waiting for its lookup
+            return;
+        }
 
-                    if (!jsonResponse.getString("successor").equalsIgnoreCase("null")) {
-                        otherSuccessor = new Node(jsonResponse.getString("successor"));
-                    }
+        final int finger = fingers.getNextToFix();
+        RingId key = fingers.getKey(finger);
+        Node next = successor;
 
-                    onStabilizeRequest(otherPredesessor, otherSuccessor);
-                    return null;
-                }
-            });
-        } catch (IOException e) {
-            System.out.println("Caught exception in stabilize " + e.getMessage());
-            handleUnresponsiveSuccessorNode(successor);
+        CompletableFuture<Node> owner;
+        if (key.isBetween(self.getId(), next.getId())) {
+            owner = CompletableFuture.completedFuture(next);
+        } else {
+            owner = findSuccessor(key);
         }
 
+        owner.whenComplete((node, e) -> {
+            boolean changed;
+            if (e == null) {
+                changed = fingers.setFinger(finger, node);
+            } else {
+                System.out.println("Could not refresh finger " + finger + ": " + e.getMessage());
+                changed = true;
+            }
+
+            fixingFingers.set(false);
+            if (changed) {
+                onChurn();
+            } else {
+                fingerTask.stable();
+            }
+        });
     }
 
-    public String onRequest(String clientMessage, Node node) {
-        JSONObject response = new JSONObject();
-        response.put("ip", self.getIp());
-        response.put("port", self.getPort());
+    /**
+     * The ring has changed under us, stabilize and refresh the fingers more often for a while.
+     */
+    private void onChurn() {
+        stabilizeTask.changed();
+        fingerTask.changed();
+    }
 
-        if (predecessor == null) {
-            response.put("predecessor", "null");
-        } else {
-            response.put("predecessor", predecessor.toString());
+    private void stabilize() {
+        Node pred = predecessor;
+        if (pred != null && !pred.getId().equals(self.getId()) && failureDetector.isSuspected(pred)) {
+            handleUnresponsivePredecessorNode();
+            onChurn();
         }
 
-        if (successor == null) {
-            response.put("successor", "null");
-        } else {
-            response.put("successor", successor.toString());
+        final Node target = successor;
+
+        sendToSuccessor(new RequestMessage(self), RequestReplyMessage.class).thenAccept(response -> {
+            boolean listChanged = adoptSuccessorList(target, response);
+
+            Node otherPredesessor = response.getPredecessor();
+            Node otherSuccessor = response.getSuccessor();
+
+            onStabilizeRequest(otherPredesessor, otherSuccessor);
+
+            if (listChanged) {
+                onChurn();
+            } else if (otherPredesessor != null && otherPredesessor.getId().equals(self.getId())) {
+                stabilizeTask.stable();
+            }
+            syncReplicas();
+        });
+
+    }
+
+    public RequestReplyMessage onRequest(RequestMessage request) {
+        failureDetector.heartbeat(request.getSender());
+        return new RequestReplyMessage(self, predecessor, successor, successorList);
+    }
+
+    /**
+     * Takes the successor list from the request reply of our successor: the successor itself, then its list.
+     * Nodes that don't send a list give us a list of one.
+     *
+     * @return true if our list changed
+     */
+    private boolean adoptSuccessorList(Node from, RequestReplyMessage reply) {
+        return setSuccessorList(from, reply.getSuccessors());
+    }
+
+    synchronized boolean setSuccessorList(Node head, List<Node> rest) {
+        if (!head.getId().equals(successor.getId())) {
+            //Our successor changed while the reply was on its way
+            return false;
         }
 
-        return response.toString();
+        List<Node> list = new ArrayList<>(successorListLength);
+        Set<RingId> seen = new HashSet<>();
+        Iterator<Node> it = rest.iterator();
+        Node next = head;
+        while (next != null && list.size() < successorListLength) {
+            //Past ourselves the list has wrapped around the ring
+            if (next.getId().equals(self.getId())) {
+                break;
+            }
+            if (seen.add(next.getId())) {
+                list.add(next);
+            }
+            next = it.hasNext() ? it.next() : null;
+        }
+
+        boolean changed = list.size() != successorList.size();
+        for (int i = 0; !changed && i < list.size(); i++) {
+            changed = !list.get(i).getId().equals(successorList.get(i).getId());
+        }
+        successorList = Collections.unmodifiableList(list);
+        return changed;
+    }
+
+    /**
+     * Our successor followed by the next nodes on the ring, at most successorListLength of them.
+     * These are the nodes that take over our keys if we go away.
+     */
+    public List<Node> getSuccessorList() {
+        return successorList;
     }
 
-    public void onStabilizeRequest(Node otherPredesesor, Node otherSuccessor) {
+    public void onStabilizeRequest(final Node otherPredesesor, Node otherSuccessor) {
 
         if (otherPredesesor == null) {
 
             // It have no predecessor, notify our successor that its predecessor might be us
-            try {
-                sendNotify(successor.getIp(), successor.getPort());
-            } catch (IOException e) {
-                handleUnresponsiveSuccessorNode(successor);
-            }
+            notifySuccessor();
 
         } else if (Objects.equals(otherPredesesor.getId(), self.getId())) {
             //All is well, its us.
 
         } else if (Objects.equals(otherPredesesor.getId(), successor.getId())) {
             //The successors predesessor is itself, we should probably be there instead
-            try {
-                sendNotify(successor.getIp(), successor.getPort());
-            } catch (IOException e) {
-                handleUnresponsiveSuccessorNode(successor);
-            }
+            notifySuccessor();
 
         } else {
             if (between(otherPredesesor.getId(), self.getId(), successor.getId())) {
 
-
-
                 // we probably hve the wrong successor
-                try {
-                    sendNotify(otherPredesesor.getIp(), otherPredesesor.getPort());
-
-                    nextSuccessor = successor;
-
-                    if(otherPredesesor == null){
-                        System.out.println("Was null");
-                    }
+                final List<Node> oldSuccessors = successorList;
+                sendNotify(otherPredesesor.getIp(), otherPredesesor.getPort()).thenAccept(response -> {
                     successor = otherPredesesor;
-                } catch (IOException e) {
-
-                }
+                    setSuccessorList(otherPredesesor, oldSuccessors);
+                    onChurn();
+                });
             } else {
                 //we should be in between the successor and its predecessor
-                try {
-                    sendNotify(successor.getIp(), successor.getPort());
-                } catch (IOException e) {
-                    handleUnresponsiveSuccessorNode(successor);
-                }
+                notifySuccessor();
             }
         }
     }
 
-    public void probe() {
-        try {
-            JSONObject message = new JSONObject();
-            message.put("type", "probe");
-            JSONArray nodes = new JSONArray();
-            nodes.put(new JSONObject(self.toString()));
-            message.put("nodes", nodes);
-
+    private void notifySuccessor() {
+        final Node target = successor;
+        sendNotify(target.getIp(), target.getPort()).exceptionally(e -> {
+            handleUnresponsiveSuccessorNode(target);
+            return null;
+        });
+    }
 
-            // String msg = "probe:" + self.getIp() + "," + self.getPort() + "," + self.toString();
-            System.out.println(successor);
+    public void probe() {
+        ProbeMessage message = new ProbeMessage(self, Collections.singletonList(self));
 
-            socketQueue.sendMessage(successor, message.toString(), null );
+        // String msg = "probe:" + self.getIp() + "," + self.getPort() + "," + self.toString();
+        System.out.println(successor);
 
-        } catch (IOException e) { //if exception -> node died
-            System.out.println("Caught exception in probe");
-            handleUnresponsiveSuccessorNode(successor);
-        }
+        sendToSuccessor(message);
     }
 
-    public void handleProbe(String clientMessage, Node node) {
-        JSONObject message = new JSONObject(clientMessage);
-
-        Node initiator = new Node(message.getJSONArray("nodes").get(0).toString());
+    public void handleProbe(ProbeMessage message) {
+        Node initiator = message.getInitiator();
 
         //Node initiator = new Node(args[0], Integer.parseInt(args[1]));
         if (Objects.equals(initiator.getId(), self.getId())) {
-            System.out.println("I got it back from the ring, " + clientMessage);
+            System.out.println("I got it back from the ring, " + message);
         } else {
-            try {
-                message.put("nodes", message.getJSONArray("nodes").put(new JSONObject(self.toString())));
-                socketQueue.sendMessage(successor, message.toString(), null);
-            } catch (IOException e) {
-                System.out.println("Caught exception in handleprobe");
-                handleUnresponsiveSuccessorNode(successor);
-            }
+            sendToSuccessor(message.visit(self));
         }
     }
 
-    public void sendNotify(String rIp, int rPort) throws IOException {
-
+    /**
+     * Asks the node to take us as its predecessor. The future completes once the reply has been applied.
+     */
+    public CompletableFuture<NotifyReplyMessage> sendNotify(String rIp, int rPort) {
 
-            JSONObject message = new JSONObject();
-            message.put("ip", self.getIp());
-            message.put("port", self.getPort());
-            message.put("type", "notify");
 
             //String msg = "notify:" + ip + "," + port;
 
-            socketQueue.sendMessage(new Node(rIp, rPort), message.toString(), new OnResponse<String>() {
-                @Override
-                public String onResponse(String response, Node node) {
-
-                    JSONObject jsonResonse = new JSONObject(response);
-                    String status = jsonResonse.getString("status");
+            final Node node = new Node(rIp, rPort);
+            return send(node, new NotifyMessage(self), NotifyReplyMessage.class).thenApply(response -> {
 
-                    if (status.equalsIgnoreCase("accept")) {
+                    if (response.isAccepted()) {
                         successor = node;
                     } else {
                         // Now what? I think this will be fixed with stabilization
@@ -267,262 +480,958 @@ public class RingHandler {
                     }
 
 
-                    updateNextSuccessor();
+                    updateSuccessorList();
                     if (predecessor != null)
                         notifyPredecessorOfNewSuccessor();
 
 
-                    return null;
-                }
+                    return response;
             });
 
 
     }
 
     private void notifyPredecessorOfNewSuccessor() {
-        JSONObject message = new JSONObject();
-        message.put("ip", self.getIp());
-        message.put("port", self.getPort());
-        message.put("type", "successorChanged");
-
-        try {
-            socketQueue.sendMessage(predecessor, message.toString(), null);
-        } catch (IOException e) {
+        send(predecessor, new SuccessorChangedMessage(self)).exceptionally(e -> {
             handleUnresponsivePredecessorNode();
-        }
+            return null;
+        });
     }
 
-    public void updateNextSuccessor() {
-        JSONObject message = new JSONObject();
-        message.put("ip", self.getIp());
-        message.put("port", self.getPort());
-        message.put("type", "request");
-
-        try {
-
-            socketQueue.sendMessage(successor, message.toString(),(response, node) -> {
-
-                JSONObject jsonResonse = new JSONObject(response.toString());
-                String successor = jsonResonse.getString("successor");
-
-                if (!successor.equalsIgnoreCase("null")) {
-                    nextSuccessor = new Node(successor);
-                }
-                return null;
-            });
-
-        } catch (IOException e) {
-            handleUnresponsiveSuccessorNode(successor);
-        }
+    public void updateSuccessorList() {
+        final Node target = successor;
+        sendToSuccessor(new RequestMessage(self), RequestReplyMessage.class).thenAccept(response -> {
+            adoptSuccessorList(target, response);
+        });
 
     }
 
-    public String notifyPredecessor(Node n) {
-
-        JSONObject response = new JSONObject();
-        response.put("ip", self.getIp());
-        response.put("port", self.getPort());
+    public NotifyReplyMessage notifyPredecessor(Node n) {
+        failureDetector.heartbeat(n);
 
         if (predecessor == null) {
 
             // We don't have any predecessor, life is good
             predecessor = n;
-            response.put("status", "accept");
+            onChurn();
+            //We had the whole ring, everything up to the new predecessor is its now
+            handOffRange(self.getId(), n);
 
-            return response.toString();
+            return new NotifyReplyMessage(self, true);
         } else {
 
             //This should be our new predecessor
             if (between(n.getId(), predecessor.getId(), self.getId())) {
+                RingId from = predecessor.getId();
                 predecessor = n;
+                onChurn();
+                handOffRange(from, n);
 
-                response.put("status", "accept");
-                return response.toString();
+                return new NotifyReplyMessage(self, true);
             } else {
-                response.put("status", "deny");
-                return response.toString();
+                return new NotifyReplyMessage(self, false);
             }
         }
     }
 
-    public void addKey(BigInteger key, String value) {
+    /**
+     * Moves our keys in (from, owner] to the node that just took them over, with a Handoff to it. A key is only
+     * removed here once the owner stored it, with replication we are its first replica and keep them all.
+     * The first chunks are read on the transfer threads, the notify is answered first.
+     */
+    private void handOffRange(final RingId from, final Node owner) {
+        if (owner.getId().equals(self.getId())) {
+            return;
+        }
+
+        final Handoff handoff = new Handoff(this, from, owner.getId(), owner, replicationFactor > 1, batchSize, handoffWindow);
+        TRANSFERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handoff.start();
+                } catch (RuntimeException e) {
+                    System.out.println("Handing keys over to " + owner.getPort() + " failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public void addKey(final RingId key, String value) {
+        put(key, value).whenComplete((acked, e) -> {
+            if (e != null || !acked) {
+                System.out.println("Could not store " + key + (e == null ? " on enough replicas" : ": " + e.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Stores the value on the node responsible for it, which copies it to its replicas. Completes with true
+     * once as many copies as writeAck asks for have it, false if they could not be made.
+     */
+    public CompletableFuture<Boolean> put(RingId key, String value) {
+        return store(key, value).thenApply(AddReplyMessage::isAcked);
+    }
 
-        if (predecessor == null || between(key,  predecessor.getId(), self.getId())) {
-            //System.out.println(self.getId() + " stored " + key + ":" + value); //debug stored
+    /**
+     * Stores the value, here or on its owner. The owner is taken from the owner cache, or looked up, and
+     * the add goes straight to it. The reply is the one of the node that stored it, passed on as it is when
+     * the add went through us.
+     */
+    public CompletableFuture<AddReplyMessage> store(final RingId key, final String value) {
+        //We should at least read our own writes
+        values.invalidate(key);
+        if (isResponsibleFor(key)) {
             app.storeKey(key, value);
-        } else {
+            return replicate(Collections.singletonList(key), Collections.singletonList(value)).thenApply(this::addReply);
+        }
+
+        Node cached = owners.get(key);
+        CompletableFuture<Node> owner = cached != null ? CompletableFuture.completedFuture(cached) : findSuccessor(key);
+        return owner.thenCompose(node -> sendAdd(node, key, value)).handle((response, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            //No owner to be found right now, the successors pass it along until it gets there
+            return sendKeyToSuccessor(key, value, successorListLength);
+        }).thenCompose(reply -> reply);
+    }
+
+    private CompletableFuture<AddReplyMessage> sendAdd(final Node owner, RingId key, String value) {
+        return send(owner, new AddMessage(self, key, value), AddReplyMessage.class).whenComplete((reply, e) -> {
+            if (e != null) {
+                owners.invalidate(owner);
+                return;
+            }
+
+            Node stored = reply.getSender();
+            if (!stored.getId().equals(owner.getId())) {
+                //It passed the add on, it doesn't own the key any more
+                owners.invalidate(owner);
+            }
+            if (reply.getRangeStart() != null) {
+                owners.learn(stored, reply.getRangeStart());
+            }
+        });
+    }
+
+    /**
+     * The reply to an add, once the value has been stored.
+     */
+    public AddReplyMessage addReply(boolean acked) {
+        return new AddReplyMessage(self, acked, rangeStart());
+    }
+
+    /**
+     * Where our range starts, our predecessor. Null while we don't know, when we have no predecessor or it
+     * has failed and we cover for it until the ring has healed.
+     */
+    private RingId rangeStart() {
+        Node pred = predecessor;
+        return pred == null || pred.getId().equals(self.getId()) ? null : pred.getId();
+    }
+
+    public OwnerCache getOwnerCache() {
+        return owners;
+    }
 
-            System.out.println("Was not null" + predecessor);
-            sendKeyToSuccessor(key, value);
+    public ValueCache getValueCache() {
+        return values;
+    }
+
+    /**
+     * Reads of keys we own that reached us.
+     */
+    public long getOwnerReads() {
+        return ownerReads.get();
+    }
+
+    /**
+     * The nodes that keep copies of our keys, the first replicationFactor - 1 nodes after us.
+     */
+    public List<Node> getReplicas() {
+        List<Node> list = successorList;
+        return list.subList(0, Math.min(list.size(), replicationFactor - 1));
+    }
+
+    /**
+     * How many copies, ours included, a write needs. A ring with fewer nodes than the replication
+     * factor has no more copies to give.
+     */
+    private int requiredAcks(int copies) {
+        int required;
+        switch (writeAck) {
+            case ONE:
+                required = 1;
+                break;
+            case ALL:
+                required = replicationFactor;
+                break;
+            default:
+                required = replicationFactor / 2 + 1;
         }
+        return Math.min(required, copies);
     }
 
-    private void sendKeyToSuccessor(BigInteger key, String value) {
-        JSONObject message = new JSONObject();
-        message.put("ip", self.getIp());
-        message.put("port", self.getPort());
-        message.put("type", "add");
-        message.put("key", key);
-        message.put("value", value);
+    /**
+     * Copies values we just stored to all our replicas at once, the requests share the pooled connections
+     * and don't wait for each other. Completes with true once writeAck copies (ours included) have them,
+     * or with false once that can't happen any more. The other replicas still get theirs.
+     */
+    private CompletableFuture<Boolean> replicate(final List<RingId> keys, List<String> values) {
+        List<Node> replicas = getReplicas();
+        final int copies = 1 + replicas.size();
+        final int required = requiredAcks(copies);
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        if (required <= 1) {
+            done.complete(true);
+        }
 
-        try {
-            socketQueue.sendMessage(successor, message.toString(), null);
-        } catch (IOException e) {
-            handleUnresponsiveSuccessorNode(successor);
-            sendKeyToSuccessor(key, value); //retry
+        final AtomicInteger acks = new AtomicInteger(1);
+        final AtomicInteger failures = new AtomicInteger();
+        for (final Node replica : replicas) {
+            send(replica, new ReplicateMessage(self, keys, values)).whenComplete((response, e) -> {
+                if (e == null) {
+                    if (acks.incrementAndGet() >= required) {
+                        done.complete(true);
+                    }
+                } else {
+                    System.out.println("Could not copy " + keys.size() + " keys to " + replica.getPort() + ": " + e.getMessage());
+                    if (copies - failures.incrementAndGet() < required) {
+                        done.complete(false);
+                    }
+                }
+            });
+        }
+        return done;
+    }
+
+    /**
+     * Makes sure every replica has a copy of our range, after every stabilize round. Only sends anything when
+     * our range grew, when our predecessor failed and we took over its keys, or when a node became one of
+     * our replicas because one of them failed or a node joined in between. Writes are copied as they come,
+     * this is for the copies that were lost.
+     */
+    void syncReplicas() {
+        Node pred = predecessor;
+        if (replicationFactor < 2 || pred == null || pred.getId().equals(self.getId())) {
+            //We don't know our range yet
+            return;
+        }
+
+        final RingId from = pred.getId();
+        final RingId last = replicatedFrom;
+        final boolean grew = last == null || (!from.equals(last) && !from.isBetween(last, self.getId()));
+        final List<Node> replicas = getReplicas();
+        dropStaleReplicas(replicas, from);
+        List<Node> targets = new ArrayList<>();
+        for (Node replica : replicas) {
+            if (grew || !replicatedTo.contains(replica.getId())) {
+                targets.add(replica);
+            }
+        }
+        if (targets.isEmpty() || !syncingReplicas.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Set<RingId> copied = Collections.newSetFromMap(new ConcurrentHashMap<RingId, Boolean>());
+        if (!grew) {
+            for (Node replica : replicas) {
+                if (replicatedTo.contains(replica.getId())) {
+                    copied.add(replica.getId());
+                }
+            }
         }
+
+        final Set<RingId> failed = Collections.newSetFromMap(new ConcurrentHashMap<RingId, Boolean>());
+        CompletableFuture.completedFuture(from).thenCompose(start -> copyRange(start, 0, targets, failed)).whenComplete((keys, e) -> {
+            if (e != null) {
+                System.out.println("Could not copy our range: " + e.getMessage());
+            }
+            //The ones that failed are not in the set, the next round tries them again
+            for (Node target : targets) {
+                if (e == null && !failed.contains(target.getId())) {
+                    copied.add(target.getId());
+                }
+            }
+            replicatedFrom = from;
+            replicatedTo = copied;
+            syncingReplicas.set(false);
+            System.out.println("Copied " + (keys == null ? 0 : keys) + " keys to " + copied.size() + " of " + replicas.size() + " replicas");
+        });
     }
 
-    public void lookup(BigInteger key, Node asker) {
+    /**
+     * Copies our range after the cursor to the targets, a batch at a time like a handoff. The next batch is
+     * read once every target has answered for this one, so only one batch of the range is on the heap. A
+     * target that failed a batch gets none of the rest. Completes with the number of keys read.
+     */
+    private CompletableFuture<Integer> copyRange(RingId cursor, final int copied, final List<Node> targets, final Set<RingId> failed) {
+        Map<RingId, String> chunk = app.getRange(cursor, self.getId(), batchSize);
+        if (chunk.isEmpty()) {
+            return CompletableFuture.completedFuture(copied);
+        }
 
-        JSONObject message = new JSONObject();
-        message.put("ip", self.getIp());
-        message.put("port", self.getPort());
+        final List<RingId> keys = new ArrayList<>(chunk.keySet());
+        List<String> values = new ArrayList<>(keys.size());
+        long bytes = 0;
+        for (RingId key : keys) {
+            String value = chunk.get(key);
+            values.add(value);
+            bytes += entryBytes(value);
+        }
 
-        if (predecessor == null || between(key, predecessor.getId(), self.getId())) {
-            //do the lookup on this node
-            String value = app.getKey(key);
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        for (final Node target : targets) {
+            if (!failed.contains(target.getId())) {
+                sends.add(sendReplicaBatch(target, keys, values, bytes).thenAccept(ok -> {
+                    if (!ok) {
+                        failed.add(target.getId());
+                    }
+                }));
+            }
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()])).thenCompose(done -> {
+            RingId last = keys.get(keys.size() - 1);
+            if (keys.size() < batchSize || last.equals(self.getId()) || failed.size() == targets.size()) {
+                return CompletableFuture.completedFuture(copied + keys.size());
+            }
+            return copyRange(last, copied + keys.size(), targets, failed);
+        });
+    }
 
-            message.put("type", "lookup_response");
-            message.put("key", key);
-            message.put("value", value);
+    /**
+     * Tells the nodes that were our replicas last round and aren't any more to drop their copies of our
+     * range. They would otherwise keep them until they leave, and answer replica lookups with old values.
+     * One that is down when it drops out keeps its copies.
+     */
+    private void dropStaleReplicas(List<Node> replicas, RingId from) {
+        Set<RingId> current = new HashSet<>();
+        for (Node replica : replicas) {
+            current.add(replica.getId());
+        }
+        List<Node> last = lastReplicas;
+        lastReplicas = new ArrayList<>(replicas);
 
-            try {
-                socketQueue.sendMessage(successor, message.toString(), null);
-            } catch (IOException e) {
-                handleUnresponsiveSuccessorNode(successor);
+        for (final Node node : last) {
+            if (current.contains(node.getId())) {
+                continue;
             }
+            //If it comes back as a replica it needs the whole range again
+            Set<RingId> copied = new HashSet<>(replicatedTo);
+            copied.remove(node.getId());
+            replicatedTo = copied;
+
+            if (!node.getId().equals(self.getId()) && !failureDetector.isSuspected(node)) {
+                send(node, new DropReplicaMessage(self, from, self.getId())).exceptionally(e -> {
+                    System.out.println("Could not tell " + node.getPort() + " to drop its copies: " + e.getMessage());
+                    return null;
+                });
+            }
+        }
+    }
 
-        } else {
-            message.put("type", "lookup");
-            message.put("key", key);
-            message.put("asker", new JSONObject(asker.toString()));
+    /**
+     * Drops the copies we keep of the sender's range, we are not one of its replicas any more. Nothing of
+     * our own range goes, whatever the sender thinks.
+     */
+    public void dropReplica(DropReplicaMessage message) {
+        RingId from = message.getFrom();
+        RingId to = message.getTo();
+        Node pred = predecessor;
+        if (pred == null || self.getId().isBetween(from, to) || to.isBetween(pred.getId(), self.getId())) {
+            System.out.println("Not dropping " + from + " to " + to + ", it overlaps our own range");
+            return;
+        }
+        app.removeRange(from, to);
+    }
+
+    private CompletableFuture<Boolean> sendReplicaBatch(final Node target, List<RingId> keys, List<String> values, final long bytes) {
+        return batchBytes.acquire(bytes)
+                .thenCompose(granted -> send(target, new ReplicateMessage(self, keys, values)))
+                .handle((response, e) -> {
+                    batchBytes.release(bytes);
+                    return e == null;
+                });
+    }
+
+    private CompletableFuture<AddReplyMessage> sendKeyToSuccessor(final RingId key, final String value, final int retries) {
+        final Node target = successor;
+        return send(target, new AddMessage(self, key, value), AddReplyMessage.class).handle((response, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            if (retries == 0) {
+                CompletableFuture<AddReplyMessage> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            handleUnresponsiveSuccessorNode(target);
+            return sendKeyToSuccessor(key, value, retries - 1); //retry, on the next successor if this one is gone
+        }).thenCompose(reply -> reply);
+    }
+
+    /**
+     * Stores all the entries. The owners are found with routed lookups, one per owner rather than one per
+     * key, and every owner gets its keys in batches of batchSize. The future completes once every key
+     * has been acknowledged, true if the owner stored it and false if it could not be stored.
+     */
+    public CompletableFuture<Map<RingId, Boolean>> putAll(final Map<RingId, String> entries) {
+        final Map<RingId, Boolean> acks = new ConcurrentHashMap<>();
+        return putAll(new ArrayList<>(entries.keySet()), entries, acks, BATCH_RETRIES).thenApply(done -> acks);
+    }
+
+    private CompletableFuture<Void> putAll(List<RingId> keys, final Map<RingId, String> entries,
+                                           final Map<RingId, Boolean> acks, final int retries) {
+        List<RingId> remote = new ArrayList<>();
+        final List<RingId> local = new ArrayList<>();
+        List<String> localValues = new ArrayList<>();
+        for (RingId key : keys) {
+            if (isResponsibleFor(key)) {
+                app.storeKey(key, entries.get(key));
+                local.add(key);
+                localValues.add(entries.get(key));
+            } else {
+                remote.add(key);
+            }
+        }
+
+        CompletableFuture<Void> stored = local.isEmpty() ? CompletableFuture.completedFuture(null)
+                : replicate(local, localValues).thenAccept(acked -> {
+                    for (RingId key : local) {
+                        acks.put(key, acked);
+                    }
+                });
+
+        return stored.thenCombine(forEachOwner(remote, (owner, run) -> sendPutBatches(owner, run, entries, acks)),
+                (done, failed) -> failed).thenCompose(failed -> {
+            if (failed.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (retries == 0) {
+                for (RingId key : failed) {
+                    acks.put(key, false);
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+            //The owners changed or died under us, look them up again
+            return putAll(failed, entries, acks, retries - 1);
+        });
+    }
 
-            try {
-                socketQueue.sendMessage(lookupHelper(key), message.toString(), null);
-            } catch (IOException e) {
-                handleUnresponsiveSuccessorNode(successor);
+    private CompletableFuture<List<RingId>> sendPutBatches(Node owner, List<RingId> run, Map<RingId, String> entries,
+                                                           final Map<RingId, Boolean> acks) {
+        List<CompletableFuture<List<RingId>>> batches = new ArrayList<>();
+        for (int from = 0; from < run.size(); from += batchSize) {
+            List<RingId> keys = run.subList(from, Math.min(run.size(), from + batchSize));
+            List<String> values = new ArrayList<>(keys.size());
+            long bytes = 0;
+            for (RingId key : keys) {
+                String value = entries.get(key);
+                values.add(value);
+                bytes += entryBytes(value);
             }
+            batches.add(sendPutBatch(owner, keys, values, bytes, acks));
         }
+        return allFailed(batches);
     }
 
-    private Node lookupHelper(BigInteger id) {
-        if (fingers.getTable() == null) return successor;
+    private CompletableFuture<List<RingId>> sendPutBatch(final Node owner, final List<RingId> keys,
+                                                         final List<String> values, final long bytes,
+                                                         final Map<RingId, Boolean> acks) {
+        return batchBytes.acquire(bytes)
+                .thenCompose(granted -> send(owner, new PutBatchMessage(self, keys, values), PutBatchReplyMessage.class))
+                .handle((response, e) -> {
+                    batchBytes.release(bytes);
+                    if (e != null) {
+                        System.out.println("Batch of " + keys.size() + " keys to " + owner.getPort() + " failed: " + e.getMessage());
+                        owners.invalidate(owner);
+                        return keys;
+                    }
+
+                    Set<RingId> rejected = new HashSet<>(response.getRejected());
+                    if (!rejected.isEmpty()) {
+                        owners.invalidate(owner);
+                    }
+                    List<RingId> failed = new ArrayList<>(rejected.size());
+                    for (RingId key : keys) {
+                        if (rejected.contains(key)) {
+                            failed.add(key);
+                        } else {
+                            acks.put(key, true);
+                        }
+                    }
+                    return failed;
+                });
+    }
 
-        for (int i = fingers.getTable().size() - 1; i >= 0; i--) {
-            Node current = fingers.getTable().get(i);
-            Node previous = null;
-            if (i == fingers.getTable().size() - 1) {
-                previous = fingers.getTable().get(0);
+    /**
+     * Stores the keys we are responsible for and copies them to our replicas, the reply lists the others.
+     * If too few replicas took them they are listed as well, the sender tries them again.
+     */
+    public CompletableFuture<PutBatchReplyMessage> putBatch(PutBatchMessage message) {
+        List<RingId> keys = message.getKeys();
+        List<String> values = message.getValues();
+
+        final List<RingId> rejected = new ArrayList<>();
+        final List<RingId> stored = new ArrayList<>(keys.size());
+        List<String> storedValues = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (isResponsibleFor(keys.get(i))) {
+                app.storeKey(keys.get(i), values.get(i));
+                stored.add(keys.get(i));
+                storedValues.add(values.get(i));
             } else {
-                previous = fingers.getTable().get(i + 1);
+                rejected.add(keys.get(i));
+            }
+        }
+
+        CompletableFuture<Boolean> replicated = stored.isEmpty() ? CompletableFuture.completedFuture(true)
+                : replicate(stored, storedValues);
+        return replicated.thenApply(acked -> {
+            if (!acked) {
+                rejected.addAll(stored);
+            }
+            return new PutBatchReplyMessage(self, rejected);
+        });
+    }
+
+    /**
+     * Reads all the keys, batched per owner like putAll. The batches to the owners go out in parallel
+     * as soon as each owner is known. The map has the value of every key that could be read, null if the
+     * owner has no value for it. Keys whose owner could not be reached, after looking it up again, are
+     * left out. Fails with a TimeoutException if the whole read takes longer than the lookup timeout.
+     */
+    public CompletableFuture<Map<RingId, String>> getAll(Collection<RingId> keys) {
+        return getAll(keys, lookupTimeout);
+    }
+
+    public CompletableFuture<Map<RingId, String>> getAll(final Collection<RingId> keys, final long timeout) {
+        final Map<RingId, String> values = new ConcurrentHashMap<>();
+        //ConcurrentHashMap has no null values, the keys without a value are kept apart until the end
+        final Set<RingId> missing = Collections.newSetFromMap(new ConcurrentHashMap<RingId, Boolean>());
+        final CompletableFuture<Map<RingId, String>> result = new CompletableFuture<>();
+
+        final ScheduledFuture<?> deadline = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.completeExceptionally(new TimeoutException("getAll of " + keys.size() + " keys did not finish within " + timeout + "ms"));
             }
+        }, timeout);
+
+        getAll(new ArrayList<>(keys), values, missing, result, BATCH_RETRIES).whenComplete((done, e) -> {
+            deadline.cancel(false);
+            if (e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+            Map<RingId, String> merged = new HashMap<>(values);
+            for (RingId key : missing) {
+                merged.put(key, null);
+            }
+            result.complete(merged);
+        });
+        return result;
+    }
 
-            if (between(id, previous.getId(), current.getId()))
-                return current;
+    private CompletableFuture<Void> getAll(List<RingId> keys, final Map<RingId, String> values, final Set<RingId> missing,
+                                           final CompletableFuture<?> result, final int retries) {
+        List<RingId> remote = new ArrayList<>();
+        for (RingId key : keys) {
+            if (isResponsibleFor(key)) {
+                found(key, app.getKey(key), values, missing);
+            } else {
+                remote.add(key);
+            }
         }
-        return successor; // never
+
+        return forEachOwner(remote, (owner, run) -> sendGetBatches(owner, run, values, missing)).thenCompose(failed -> {
+            if (failed.isEmpty() || retries == 0 || result.isDone()) {
+                //Whatever is left failed, or we are past the deadline and nobody is waiting for it
+                return CompletableFuture.completedFuture(null);
+            }
+            return getAll(failed, values, missing, result, retries - 1);
+        });
     }
 
-    public void lookup(String message) {
+    private CompletableFuture<List<RingId>> sendGetBatches(Node owner, List<RingId> run, Map<RingId, String> values,
+                                                           Set<RingId> missing) {
+        List<CompletableFuture<List<RingId>>> batches = new ArrayList<>();
+        for (int from = 0; from < run.size(); from += batchSize) {
+            List<RingId> keys = run.subList(from, Math.min(run.size(), from + batchSize));
+            batches.add(sendGetBatch(owner, keys, values, missing));
+        }
+        return allFailed(batches);
+    }
 
-        JSONObject jsonRequest = new JSONObject(message);
+    private CompletableFuture<List<RingId>> sendGetBatch(final Node owner, final List<RingId> keys,
+                                                         final Map<RingId, String> values, final Set<RingId> missing) {
+        return send(owner, new GetBatchMessage(self, keys), GetBatchReplyMessage.class).handle((reply, e) -> {
+            if (e != null) {
+                System.out.println("Batch read of " + keys.size() + " keys from " + owner.getPort() + " failed: " + e.getMessage());
+                owners.invalidate(owner);
+                return keys;
+            }
 
-        Node initiator = new Node(jsonRequest.getJSONObject("asker").toString());
+            List<RingId> answered = reply.getKeys();
+            List<String> answers = reply.getValues();
+            for (int i = 0; i < answered.size(); i++) {
+                found(answered.get(i), answers.get(i), values, missing);
+            }
+            List<RingId> rejected = reply.getRejected();
+            if (!rejected.isEmpty()) {
+                owners.invalidate(owner);
+            }
+            return rejected;
+        });
+    }
 
-        lookup(jsonRequest.getBigInteger("key"), initiator);
+    private static void found(RingId key, String value, Map<RingId, String> values, Set<RingId> missing) {
+        if (value == null) {
+            missing.add(key);
+        } else {
+            values.put(key, value);
+        }
     }
 
-    public boolean isThisOurKey(BigInteger key) {
-        if (predecessor == null) return true;
-        return key.equals(this.getSelf().getId()) || between(key, predecessor.getId(), self.getId());
+    /**
+     * Reads the keys we are responsible for, the reply lists the others.
+     */
+    public GetBatchReplyMessage getBatch(GetBatchMessage message) {
+        List<RingId> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<RingId> rejected = new ArrayList<>();
+        for (RingId key : message.getKeys()) {
+            if (isResponsibleFor(key)) {
+                keys.add(key);
+                values.add(app.getKey(key));
+            } else {
+                rejected.add(key);
+            }
+        }
+        return new GetBatchReplyMessage(self, keys, values, rejected);
+    }
+
+    /**
+     * Splits the keys into runs with the same owner and hands every run to onRun as soon as its owner is
+     * known. Sorted clockwise from us the keys of one owner are next to each other, so it takes one
+     * lookup per owner. The future has the keys onRun gave back and the keys we could not find an owner for.
+     */
+    private CompletableFuture<List<RingId>> forEachOwner(List<RingId> keys,
+                                                         BiFunction<Node, List<RingId>, CompletableFuture<List<RingId>>> onRun) {
+        final RingId origin = self.getId();
+        List<RingId> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted, new Comparator<RingId>() {
+            @Override
+            public int compare(RingId a, RingId b) {
+                return RingId.compareClockwise(origin, a, b);
+            }
+        });
+        return forEachOwner(sorted, 0, onRun);
     }
 
-    private boolean between(BigInteger key, BigInteger from, BigInteger to) {
-        if (from.compareTo(to) == -1) {
-            return (key.compareTo(from) == 1) && (key.compareTo(to) == 0 || key.compareTo(to) == -1);
-        } else if (from.compareTo(to) == 1) {
-            return (key.compareTo(from) == 1) || (key.compareTo(to) == 0 || key.compareTo(to) == -1);
+    private CompletableFuture<List<RingId>> forEachOwner(final List<RingId> sorted, final int from,
+                                                         final BiFunction<Node, List<RingId>, CompletableFuture<List<RingId>>> onRun) {
+        if (from == sorted.size()) {
+            return CompletableFuture.completedFuture(Collections.<RingId>emptyList());
+        }
+
+        final RingId first = sorted.get(from);
+        Node next = successor;
+        Node cached;
+        CompletableFuture<Node> owner;
+        if (first.isBetween(self.getId(), next.getId())) {
+            owner = CompletableFuture.completedFuture(next);
+        } else if ((cached = owners.get(first)) != null) {
+            owner = CompletableFuture.completedFuture(cached);
         } else {
-            return true;
+            owner = findSuccessor(first);
         }
+
+        return owner.handle((node, e) -> {
+            if (e != null) {
+                //Leave this key for the retry and look up the owner of the next one
+                return forEachOwner(sorted, from + 1, onRun).thenApply(rest -> concat(Collections.singletonList(first), rest));
+            }
+
+            //The owner is responsible for everything up to its own id
+            int end = from + 1;
+            while (end < sorted.size() && RingId.compareClockwise(self.getId(), sorted.get(end), node.getId()) <= 0) {
+                end++;
+            }
+
+            CompletableFuture<List<RingId>> run = onRun.apply(node, sorted.subList(from, end));
+            return run.thenCombine(forEachOwner(sorted, end, onRun), RingHandler::concat);
+        }).thenCompose(failed -> failed);
     }
 
-    public Node getSelf() {
-        return self;
+    private static CompletableFuture<List<RingId>> allFailed(final List<CompletableFuture<List<RingId>>> parts) {
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(done -> {
+            List<RingId> failed = new ArrayList<>();
+            for (CompletableFuture<List<RingId>> part : parts) {
+                failed.addAll(part.join());
+            }
+            return failed;
+        });
     }
 
-    public void deliverLookup(String clientMessage) {
-        JSONObject jsonRequest = new JSONObject(clientMessage);
-        app.foundKey(jsonRequest.getBigInteger("key"), jsonRequest.getString("value"));
+    private static List<RingId> concat(List<RingId> a, List<RingId> b) {
+        if (a.isEmpty()) {
+            return b;
+        }
+        if (b.isEmpty()) {
+            return a;
+        }
+        List<RingId> both = new ArrayList<>(a.size() + b.size());
+        both.addAll(a);
+        both.addAll(b);
+        return both;
+    }
+
+    /**
+     * Finds the value of the key. The lookup is routed through the finger table and the responsible
+     * node answers us directly, the future completes with the value (null if nobody stored it) or
+     * with a TimeoutException once the lookup deadline has passed. If the owner cache knows the owner
+     * the lookup goes straight to it, an owner that has moved on routes it from there.
+     */
+    public CompletableFuture<String> get(RingId key) {
+        if (isResponsibleFor(key)) {
+            return CompletableFuture.completedFuture(app.getKey(key));
+        }
+        String cached = values.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        long requestId = pendingLookups.nextId();
+        CompletableFuture<LookupResponseMessage> response = pendingLookups.register(requestId);
+        final LookupMessage lookup = new LookupMessage(self, key, self, requestId, 0);
+        final Node owner = owners.get(key);
+        if (owner == null || owner.getId().equals(self.getId())) {
+            forwardLookup(lookup);
+            return response.thenApply(LookupResponseMessage::getValue);
+        }
 
+        send(owner, lookup).exceptionally(e -> {
+            owners.invalidate(owner);
+            forwardLookup(lookup);
+            return null;
+        });
+        return response.thenApply(answer -> {
+            if (answer.getRangeStart() != null && !answer.getSender().getId().equals(owner.getId())) {
+                owners.invalidate(owner);
+            }
+            return answer.getValue();
+        });
     }
 
+    /**
+     * Finds the node responsible for the key, routed the same way as get.
+     */
+    public CompletableFuture<Node> findSuccessor(RingId key) {
+        if (isResponsibleFor(key)) {
+            return CompletableFuture.completedFuture(self);
+        }
 
-    public void handleFingerProbe(String clientMessage, Node node) {
-        String message = fingers.dealWithFingerProbe(clientMessage, new OnResponse<String>() {
-            @Override
-            public String onResponse(String response, Node node) {
-                try {
-                    socketQueue.sendMessage(node, response, null);
-                } catch (IOException e) {
-                    System.out.println(node.getIp() + ":" + node.getPort() + " was unresponsive"); //todo do we need to do anything else?
-                }
+        long requestId = pendingLookups.nextId();
+        CompletableFuture<LookupResponseMessage> response = pendingLookups.register(requestId);
+        forwardLookup(new FindSuccessorMessage(self, key, self, requestId, 0));
+        return response.thenApply(LookupResponseMessage::getSender);
+    }
+
+    public void lookup(LookupMessage message) {
+        RingId key = message.getKey();
+        Node asker = message.getAsker();
 
+        String cached;
+        if (isResponsibleFor(key)) {
+            //do the lookup on this node and answer the asker directly
+            final LookupResponseMessage response;
+            if (message instanceof FindSuccessorMessage) {
+                response = new SuccessorFoundMessage(self, key, message.getRequestId(), rangeStart());
+            } else {
+                String value = app.getKey(key);
+                boolean hot = values.isEnabled() && value != null && hotKeys.read(key);
+                ownerReads.incrementAndGet();
+                response = new LookupResponseMessage(self, key, value, message.getRequestId(), rangeStart(), hot);
+
+                Node forwarder = message.getSender();
+                if (hot && !forwarder.getId().equals(asker.getId()) && !forwarder.getId().equals(self.getId())) {
+                    //The node before us on the path sees the next reads of the key first, let it answer them
+                    send(forwarder, new LookupResponseMessage(self, key, value, PUSHED, null, true)).exceptionally(e -> null);
+                }
+            }
+            send(asker, response).exceptionally(e -> {
+                System.out.println("Could not answer lookup of " + asker.getPort() + ": " + e.getMessage());
+                return null;
+            });
+        } else if (!(message instanceof FindSuccessorMessage) && (cached = values.get(key)) != null) {
+            //A hot key we have seen lately, the owner doesn't need to hear about this read
+            send(asker, new LookupResponseMessage(self, key, cached, message.getRequestId(), null, true)).exceptionally(e -> {
+                System.out.println("Could not answer lookup of " + asker.getPort() + ": " + e.getMessage());
+                return null;
+            });
+        } else if (message instanceof ReplicaLookupMessage && app.getKey(key) != null) {
+            //We keep a copy for the owner, save it the work
+            send(asker, new LookupResponseMessage(self, key, app.getKey(key), message.getRequestId())).exceptionally(e -> {
+                System.out.println("Could not answer lookup of " + asker.getPort() + ": " + e.getMessage());
                 return null;
+            });
+        } else if (message.getHops() >= MAX_LOOKUP_HOPS) {
+            //The fingers are going in circles, let the asker run into its deadline
+            System.out.println("Dropping lookup for " + key + " after " + message.getHops() + " hops");
+        } else if (message instanceof ReplicaLookupMessage) {
+            //We have no copy, maybe the key is missing or newer than our copies. The owner knows.
+            final LookupMessage toOwner = message.forwardedBy(self);
+            send(((ReplicaLookupMessage) message).getOwner(), toOwner).exceptionally(e -> {
+                forwardLookup(toOwner);
+                return null;
+            });
+        } else {
+            forwardLookup(message.forwardedBy(self));
+        }
+    }
+
+    private void forwardLookup(final LookupMessage message) {
+        RingId key = message.getKey();
+        final Node target = successor;
+
+        //If the key is between us and our successor the successor has it, otherwise skip ahead with the fingers
+        final Node next;
+        LookupMessage outgoing = message;
+        if (!key.isBetween(self.getId(), target.getId())) {
+            next = closestPrecedingNode(key);
+        } else if (replicationFactor > 1 && message.getClass() == LookupMessage.class) {
+            //The owner and its replicas are the first nodes of our list, spread the reads over them
+            List<Node> holders = successorList;
+            holders = holders.isEmpty() ? Collections.singletonList(target) : holders.subList(0, Math.min(holders.size(), replicationFactor));
+            next = holders.get(Helper.getHelper().getRandom(0, holders.size()));
+            outgoing = new ReplicaLookupMessage(self, key, message.getAsker(), message.getRequestId(), message.getHops(), holders.get(0));
+        } else {
+            next = target;
+        }
+
+        send(next, outgoing).exceptionally(e -> {
+            if (next == target) {
+                handleUnresponsiveSuccessorNode(target);
+                if (!successor.getId().equals(target.getId()) && message.getHops() < MAX_LOOKUP_HOPS) {
+                    //The next one on our list took over, it or one of the replicas has a copy
+                    forwardLookup(message.forwardedBy(self));
+                }
+            } else {
+                //A stale finger, the successor always gets us closer
+                if (fingers.remove(next)) {
+                    onChurn();
+                }
+                send(successor, message).exceptionally(retryError -> {
+                    handleUnresponsiveSuccessorNode(successor);
+                    return null;
+                });
             }
+            return null;
         });
+    }
 
-        try {
-            socketQueue.sendMessage(successor, message, null);
-        } catch (IOException e) {
-            handleUnresponsiveSuccessorNode(successor);
+    /**
+     * The finger that gets closest to the key without passing it, our successor if no finger does.
+     */
+    private Node closestPrecedingNode(RingId key) {
+        Node next = successor;
+        Node finger = fingers.closestPrecedingNode(key);
+        if (finger != null && !failureDetector.hasFailed(finger) && RingId.compareClockwise(self.getId(), next.getId(), finger.getId()) < 0) {
+            return finger;
         }
+        return next;
     }
 
-    private synchronized void handleUnresponsiveSuccessorNode(Node unresponsive) {
+    private boolean isResponsibleFor(RingId key) {
+        Node pred = predecessor;
+        return pred == null || between(key, pred.getId(), self.getId());
+    }
 
-        boolean isRepsonsive = false;
-        try {
-            successor.getAsSocket();
-            isRepsonsive = true;
-        } catch (IOException e) {
-            isRepsonsive = false;
+    public boolean isThisOurKey(RingId key) {
+        if (predecessor == null) return true;
+        return key.equals(this.getSelf().getId()) || between(key, predecessor.getId(), self.getId());
+    }
+
+    private boolean between(RingId key, RingId from, RingId to) {
+        return key.isBetween(from, to);
+    }
+
+    public Node getSelf() {
+        return self;
+    }
+
+    public FailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    public void deliverLookup(LookupResponseMessage message) {
+        failureDetector.heartbeat(message.getSender());
+        if (message.getRangeStart() != null) {
+            owners.learn(message.getSender(), message.getRangeStart());
+        }
+        if (message.isHot()) {
+            values.put(message.getKey(), message.getValue());
+        }
+        if (message.getRequestId() == PUSHED) {
+            //Nobody asked, the owner wants us to have it
+            return;
+        }
+        if (!pendingLookups.complete(message.getRequestId(), message)) {
+            System.out.println("Late or unknown lookup response for " + message.getKey());
+        }
+    }
+
+
+    synchronized void handleUnresponsiveSuccessorNode(Node unresponsive) {
+        if (!unresponsive.getId().equals(successor.getId())) {
+            //We have already moved past it
+            return;
         }
 
+        boolean isRepsonsive = !failureDetector.isSuspected(unresponsive);
+
         System.out.println("Was responsive:" + isRepsonsive);
 
         if(!isRepsonsive){
             System.out.println(successor.toString() + " is not responding to " + self.toString());
-            if (nextSuccessor != null) {
+            fingers.remove(successor);
+            onChurn();
+
+            //Fail over to the first node on the list we don't suspect, no need to ask anyone who it is
+            List<Node> remaining = new ArrayList<>(successorList);
+            for (int i = 0; i < remaining.size(); i++) {
+                if (remaining.get(i).getId().equals(unresponsive.getId())) {
+                    remaining = remaining.subList(i + 1, remaining.size());
+                    break;
+                }
+            }
+            while (!remaining.isEmpty() && failureDetector.isSuspected(remaining.get(0))) {
+                remaining = remaining.subList(1, remaining.size());
+            }
 
-                unlinkPredecessor(nextSuccessor, successor);
+            if (!remaining.isEmpty()) {
+                Node next = remaining.get(0);
+                unlinkPredecessor(next, successor);
 
-                if(nextSuccessor == null){
-                    System.out.println("was null");
-                }
-                successor = nextSuccessor;
-                nextSuccessor = null;
-                //updateNextSuccessor();
+                successor = next;
+                successorList = Collections.unmodifiableList(remaining);
             } else {
                 successor = self; //TODO drop probe?
+                successorList = Collections.emptyList();
             }
         }
     }
 
     private void unlinkPredecessor(Node nextSuccessor, Node successor) {
 
-        JSONObject message = new JSONObject();
-        message.put("ip", self.getIp());
-        message.put("port", self.getPort());
-        message.put("type", "unlink_predecessor");
-        message.put("predecessor", successor);
+        UnlinkPredecessorMessage message = new UnlinkPredecessorMessage(self, successor);
 
-        try {
-            socketQueue.sendMessage(nextSuccessor, message.toString(), null);
-        } catch (IOException e) {
+        send(nextSuccessor, message).exceptionally(e -> {
             System.out.println("Well, fuck. We are linked out. Find some node in the finger table and stabilize");
-        }
+            return null;
+        });
     }
 
 
@@ -532,15 +1441,9 @@ public class RingHandler {
         predecessor = self;
     }
 
-    public  void fingerProbeResponse(String clientMessage, Node node) {
-        fingers.updateTable(clientMessage);
-    }
-
-    public  void unlinkPredecessor(String clientMessage) {
+    public  void unlinkPredecessor(UnlinkPredecessorMessage message) {
         System.out.println("Unlinking");
-        JSONObject message = new JSONObject(clientMessage);
-        Node newPredecessor = new Node(message.getString("ip"), message.getInt("port"));
-        predecessor = newPredecessor;
+        predecessor = message.getSender();
     }
 
 
@@ -1,35 +1,134 @@
 package se.kth.networking.java.first.ring;
 
+import org.json.JSONObject;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.Message;
 import se.kth.networking.java.first.models.Node;
-import se.kth.networking.java.first.models.OnResponse;
-import se.kth.networking.java.first.network.Client;
+import se.kth.networking.java.first.network.ConnectionPool;
+import se.kth.networking.java.first.network.LaneDispatcher;
+import se.kth.networking.java.first.network.PeerConnection;
+import se.kth.networking.java.first.network.VirtualThreads;
+import se.kth.networking.java.first.network.codec.Codec;
+import se.kth.networking.java.first.network.codec.Codecs;
+import se.kth.networking.java.first.network.codec.Frame;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Created by victoraxelsson on 2016-12-01.
  */
 public class SocketQueue {
 
-    List<Message> messages;
+    private ConnectionPool pool;
+
+    //Connects and runs the reader of every connection
+    private ExecutorService io;
+
+    //Completes the reply futures, so the continuations never run on a reader or on the caller
+    private ExecutorService callbacks;
+
+    private ScheduledExecutorService timer;
+    private boolean traceMessages;
 
     public SocketQueue(){
-        messages = new ArrayList<>();
+        this(new NodeConfig());
+    }
+
+    public SocketQueue(NodeConfig config){
+        traceMessages = config.isTraceMessages();
+        if (config.isVirtualThreads()) {
+            io = VirtualThreads.newPerTaskExecutor();
+            callbacks = VirtualThreads.newPerTaskExecutor();
+        } else {
+            io = Executors.newCachedThreadPool();
+            callbacks = Executors.newFixedThreadPool(config.getCallbackThreads());
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "request-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Codec codec = Codecs.forName(config.getCodec());
+        if (codec == null) {
+            System.err.println("Unknown codec " + config.getCodec() + ", using " + Codecs.JSON.getName());
+            codec = Codecs.JSON;
+        }
+
+        pool = new ConnectionPool(config.getMaxConnectionsPerPeer(), config.getConnectionIdleTimeout(),
+                config.getRequestTimeout(), codec, io, callbacks, timer);
+    }
+
+
+    /**
+     * Sends the message without blocking. The future completes with the reply of the node, null if it only
+     * acknowledged the message, or exceptionally with an IOException if the node could not be reached, did
+     * not answer in time or did not understand the message.
+     */
+    public CompletableFuture<Message> sendMessage(final Node node, Message outgoing) {
+        final JSONObject message = outgoing.toJson();
+        if (traceMessages) {
+            //One line, the senders run on many threads
+            System.out.println("MSG to " + node.getPort() + ": " + message);
+        }
+
+        return pool.acquire(node).thenCompose(connection -> send(connection, node, message, true))
+                .thenApply(reply -> {
+                    try {
+                        return readReply(node, reply);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
     }
 
+    /**
+     * Decodes the reply once, here, the callers get the typed message.
+     */
+    private static Message readReply(Node node, Frame reply) throws IOException {
+        if (!reply.isObject()) {
+            if (LaneDispatcher.ACK.equals(reply.getText())) {
+                return null;
+            }
+            throw new IOException(node.getPort() + " answered " + reply.getText());
+        }
+
+        Message message = Message.fromJson(reply.getJson());
+        if (message == null) {
+            throw new IOException("Unknown reply from " + node.getPort() + ": " + reply.getText());
+        }
+        return message;
+    }
 
-    public void sendMessage(Node node, String message, OnResponse onResponse) throws IOException{
-        System.out.println("----");
-        System.out.println("MSG: " + message);
-        System.out.println("TO:" + node.getPort());
-        System.out.println("----");
+    private CompletableFuture<Frame> send(PeerConnection connection, Node node, JSONObject message, boolean retry) {
+        try {
+            return connection.request(message);
+        } catch (IOException e) {
+            if (!retry) {
+                return failed(e);
+            }
+
+            //The connection died before the request went out, so it is safe to try once more on a fresh one
+            return pool.acquire(node).thenCompose(fresh -> send(fresh, node, message, false));
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
 
-        Client c = null;
-        c = new Client(node.getAsSocket(), message, onResponse);
-        c.start();
+    public void shutdown() {
+        pool.shutdown();
+        timer.shutdownNow();
+        io.shutdownNow();
+        callbacks.shutdown();
     }
 
 
@@ -0,0 +1,89 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values of hot keys we have seen go by, so we can answer reads of them without asking the owner. A value
+ * is kept for ttl ms at most, that is how stale an answer from here can be. At most capacity values are kept,
+ * the least recently used go first. A capacity of 0 turns it off.
+ */
+public class ValueCache {
+
+    private int capacity;
+    private long ttl;
+    private LinkedHashMap<RingId, Cached> entries;
+
+    private long hits;
+    private long misses;
+
+    public ValueCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<RingId, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RingId, Cached> eldest) {
+                return size() > ValueCache.this.capacity;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * The value if we have one that is fresh enough, otherwise null.
+     */
+    public synchronized String get(RingId key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Cached entry = entries.get(key);
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            hits++;
+            return entry.value;
+        }
+        if (entry != null) {
+            entries.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(RingId key, String value) {
+        if (isEnabled() && value != null) {
+            entries.put(key, new Cached(value, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    public synchronized void invalidate(RingId key) {
+        entries.remove(key);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("values=%d hits=%d misses=%d", entries.size(), hits, misses);
+    }
+
+    private static class Cached {
+        final String value;
+        final long expires;
+
+        Cached(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
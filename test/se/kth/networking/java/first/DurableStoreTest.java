@@ -0,0 +1,188 @@
+package se.kth.networking.java.first;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DurableStoreTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("durable-store").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private DurableStore open() throws IOException {
+        return new DurableStore(directory, DurableStore.SyncPolicy.ALWAYS, 100, 60000);
+    }
+
+    @Test
+    public void testRecoversSnapshotAndLogTail() throws IOException {
+        DurableStore store = open();
+        for (int i = 0; i < 1000; i++) {
+            store.storeKey(BigInteger.valueOf(i), "value " + i);
+        }
+        store.snapshot();
+        store.storeKey(BigInteger.valueOf(1), "changed");
+        store.removeKey(BigInteger.valueOf(2));
+        store.storeKey(BigInteger.valueOf(5000), "new");
+        store.close();
+
+        DurableStore recovered = open();
+        assertEquals(1000, recovered.getRecoveredKeys());
+        assertEquals(3, recovered.getRecoveredRecords());
+        assertEquals(1000, recovered.getStore().size());
+        assertEquals("changed", recovered.getKey(BigInteger.valueOf(1)));
+        assertNull(recovered.getKey(BigInteger.valueOf(2)));
+        assertEquals("new", recovered.getKey(BigInteger.valueOf(5000)));
+        assertEquals("value 999", recovered.getKey(BigInteger.valueOf(999)));
+        recovered.close();
+    }
+
+    @Test
+    public void testTornRecordEndsTheLog() throws IOException {
+        DurableStore store = open();
+        store.storeKey(BigInteger.ONE, "one");
+        store.storeKey(BigInteger.TEN, "ten");
+        store.close();
+
+        //A crash in the middle of a write
+        File log = new File(directory, "log-1");
+        Files.write(log.toPath(), new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        DurableStore recovered = open();
+        assertEquals(2, recovered.getStore().size());
+        recovered.storeKey(BigInteger.ZERO, "zero");
+        recovered.close();
+
+        //The changes after the restart are in the next log and still count
+        DurableStore again = open();
+        assertEquals(3, again.getStore().size());
+        assertEquals("zero", again.getKey(BigInteger.ZERO));
+        again.close();
+    }
+
+    @Test
+    public void testRemoveRangeIsLogged() throws IOException {
+        DurableStore store = open();
+        for (int i = 0; i < 100; i++) {
+            store.storeKey(BigInteger.valueOf(i), "value " + i);
+        }
+        store.removeRange(BigInteger.valueOf(9), BigInteger.valueOf(89));
+        assertEquals(20, store.getStore().size());
+        store.close();
+
+        DurableStore recovered = open();
+        assertEquals(20, recovered.getStore().size());
+        assertNull(recovered.getKey(BigInteger.valueOf(50)));
+        assertEquals("value 95", recovered.getKey(BigInteger.valueOf(95)));
+        recovered.close();
+    }
+
+    @Test
+    public void testDamagedMarkerIsNoSnapshot() throws IOException {
+        DurableStore store = open();
+        store.storeKey(BigInteger.ONE, "one");
+        store.snapshot();
+        store.storeKey(BigInteger.TEN, "ten");
+        store.snapshot();
+        store.storeKey(BigInteger.ZERO, "zero");
+        store.close();
+
+        //As if the machine went down before the marker reached the disk
+        Files.write(new File(directory, "snapshot-3").toPath(), new byte[0]);
+
+        DurableStore recovered = open();
+        assertEquals(0, recovered.getRecoveredKeys());
+        assertEquals("zero", recovered.getKey(BigInteger.ZERO));
+        recovered.close();
+    }
+
+    @Test
+    public void testSnapshotWhileWriting() throws Exception {
+        final DurableStore store = open();
+        final int threads = 4;
+        final int keys = 500;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t * keys;
+            writers[t] = new Thread(() -> {
+                for (int i = first; i < first + keys; i++) {
+                    store.storeKey(BigInteger.valueOf(i), "value " + i);
+                }
+            });
+            writers[t].start();
+        }
+
+        //Every snapshot deletes the logs before it, a write it missed has to be in the new log
+        boolean writing = true;
+        while (writing) {
+            store.snapshot();
+            writing = false;
+            for (Thread writer : writers) {
+                writing |= writer.isAlive();
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        store.close();
+
+        DurableStore recovered = open();
+        assertEquals(threads * keys, recovered.getStore().size());
+        for (int i = 0; i < threads * keys; i++) {
+            assertEquals("value " + i, recovered.getKey(BigInteger.valueOf(i)));
+        }
+        recovered.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoChangesAfterClose() throws IOException {
+        DurableStore store = open();
+        store.close();
+        store.storeKey(BigInteger.ONE, "one");
+    }
+
+    @Test
+    public void testSelectedWithNodeConfig() throws IOException {
+        NodeConfig config = new NodeConfig();
+        config.setStorageMode(NodeConfig.StorageMode.DURABLE);
+        config.setSyncPolicy(DurableStore.SyncPolicy.ALWAYS);
+        config.setStorageDirectory(directory.getPath());
+
+        ApplicationDomain app = StoredApplication.open(null, config, 5050);
+        app.storeKey(BigInteger.ONE, "one");
+        assertEquals("one", app.getKey(BigInteger.ONE));
+        ((Closeable) app).close();
+
+        DurableStore store = new DurableStore(new File(directory, "node-5050"));
+        assertEquals("one", store.getKey(BigInteger.ONE));
+        store.close();
+    }
+}
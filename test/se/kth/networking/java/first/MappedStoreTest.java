@@ -0,0 +1,246 @@
+package se.kth.networking.java.first;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedStoreTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("mapped-store").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testReopenReplaysSegments() throws IOException {
+        MappedStore store = new MappedStore(directory, 4096);
+        for (int i = 0; i < 500; i++) {
+            store.storeKey(BigInteger.valueOf(i), "value " + i);
+        }
+        store.storeKey(BigInteger.valueOf(7), "seven");
+        store.removeKey(BigInteger.valueOf(8));
+        store.close();
+
+        MappedStore reopened = new MappedStore(directory, 4096);
+        assertEquals(499, reopened.size());
+        assertEquals("seven", reopened.getKey(BigInteger.valueOf(7)));
+        assertNull(reopened.getKey(BigInteger.valueOf(8)));
+        assertEquals("value 499", reopened.getKey(BigInteger.valueOf(499)));
+        reopened.close();
+    }
+
+    @Test
+    public void testCompactionKeepsLiveValues() throws Exception {
+        MappedStore store = new MappedStore(directory, 4096);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.storeKey(BigInteger.valueOf(i), "round " + round);
+            }
+        }
+        //It runs in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getCompactions() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.getCompactions() > 0);
+        assertEquals(100, store.size());
+        assertEquals("round 19", store.getKey(BigInteger.valueOf(42)));
+        store.close();
+
+        MappedStore reopened = new MappedStore(directory, 4096);
+        assertEquals(100, reopened.size());
+        assertEquals("round 19", reopened.getKey(BigInteger.valueOf(42)));
+        reopened.close();
+    }
+
+    @Test
+    public void testRangeWrapsPastZero() throws IOException {
+        MappedStore store = new MappedStore(directory, 4096);
+        BigInteger top = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        store.storeKey(top, "top");
+        store.storeKey(BigInteger.ZERO, "zero");
+        store.storeKey(BigInteger.TEN, "ten");
+
+        assertEquals(2, store.sizeOfRange(BigInteger.TEN, BigInteger.ZERO));
+        assertEquals("top", store.getRange(BigInteger.TEN, BigInteger.ZERO).get(top));
+
+        store.removeRange(BigInteger.TEN, BigInteger.ZERO);
+        assertEquals(1, store.size());
+        assertEquals("ten", store.getKey(BigInteger.TEN));
+        store.close();
+    }
+
+    @Test
+    public void testRangeInChunks() throws IOException {
+        MappedStore store = new MappedStore(directory, 4096);
+        for (int i = 1; i <= 10; i++) {
+            store.storeKey(BigInteger.valueOf(i), "v" + i);
+        }
+
+        List<BigInteger> keys = new ArrayList<>();
+        BigInteger cursor = BigInteger.valueOf(7);
+        Map<BigInteger, String> chunk;
+        while (!(chunk = store.getRange(cursor, BigInteger.valueOf(7), 3)).isEmpty()) {
+            keys.addAll(chunk.keySet());
+            cursor = keys.get(keys.size() - 1);
+            if (cursor.equals(BigInteger.valueOf(7))) {
+                break;
+            }
+        }
+        assertEquals(Arrays.asList(8, 9, 10, 1, 2, 3, 4, 5, 6, 7).toString(), keys.toString());
+        assertEquals("v3", store.getRange(BigInteger.ZERO, BigInteger.TEN, 3).get(BigInteger.valueOf(3)));
+        store.close();
+    }
+
+    @Test
+    public void testChunksFollowWritesAndRemovals() throws IOException {
+        MappedStore store = new MappedStore(directory, 1 << 20);
+        RingStore expected = new RingStore();
+        Random random = new Random(7);
+        List<BigInteger> keys = new ArrayList<>();
+        //Enough keys for the new ones to be merged into the sorted ids a few times
+        for (int i = 0; i < 5000; i++) {
+            BigInteger key = new BigInteger(RingId.BITS, random);
+            keys.add(key);
+            store.storeKey(key, "v" + i);
+            expected.put(key, "v" + i);
+            if (i % 3 == 0) {
+                BigInteger gone = keys.get(random.nextInt(keys.size()));
+                store.removeKey(gone);
+                expected.remove(gone);
+            }
+        }
+        //Removed and stored again before a merge
+        store.storeKey(keys.get(0), "again");
+        expected.put(keys.get(0), "again");
+
+        for (int i = 0; i < 5; i++) {
+            BigInteger from = keys.get(random.nextInt(keys.size()));
+            BigInteger to = i == 0 ? from : keys.get(random.nextInt(keys.size()));
+            assertEquals(chunks(expected, from, to).toString(), chunks(store, from, to).toString());
+        }
+        store.close();
+
+        MappedStore reopened = new MappedStore(directory, 1 << 20);
+        BigInteger from = keys.get(1);
+        assertEquals(chunks(expected, from, from).toString(), chunks(reopened, from, from).toString());
+        reopened.close();
+    }
+
+    private static List<Map.Entry<BigInteger, String>> chunks(Object store, BigInteger from, BigInteger to) {
+        List<Map.Entry<BigInteger, String>> entries = new ArrayList<>();
+        BigInteger cursor = from;
+        while (true) {
+            Map<BigInteger, String> chunk = store instanceof RingStore ? ((RingStore) store).getRange(cursor, to, 100)
+                    : ((MappedStore) store).getRange(cursor, to, 100);
+            entries.addAll(chunk.entrySet());
+            if (chunk.size() < 100) {
+                return entries;
+            }
+            cursor = entries.get(entries.size() - 1).getKey();
+            if (cursor.equals(to)) {
+                return entries;
+            }
+        }
+    }
+
+    @Test
+    public void testCompactKeepsRemovalsAndLastValues() throws IOException {
+        MappedStore store = new MappedStore(directory, 4096);
+        for (int i = 0; i < 300; i++) {
+            store.storeKey(BigInteger.valueOf(i), "first " + i);
+        }
+        for (int i = 0; i < 300; i += 2) {
+            store.removeKey(BigInteger.valueOf(i));
+        }
+        store.storeKey(BigInteger.ONE, "last");
+        store.compact();
+
+        assertTrue(store.getCompactions() > 0);
+        assertEquals(150, store.size());
+        store.close();
+
+        MappedStore reopened = new MappedStore(directory, 4096);
+        assertEquals(150, reopened.size());
+        assertNull(reopened.getKey(BigInteger.valueOf(4)));
+        assertEquals("last", reopened.getKey(BigInteger.ONE));
+        assertEquals("first 299", reopened.getKey(BigInteger.valueOf(299)));
+        reopened.close();
+    }
+
+    @Test
+    public void testReplayStopsAtADamagedRecord() throws IOException {
+        MappedStore store = new MappedStore(directory, 4096);
+        store.storeKey(BigInteger.ONE, "one");
+        store.storeKey(BigInteger.TEN, "ten");
+        store.close();
+
+        //Change a byte of the second value, records have a header of 25 bytes
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "segment-0"), "rw")) {
+            file.seek(25 + 3 + 25 + 1);
+            file.write('X');
+        }
+
+        MappedStore reopened = new MappedStore(directory, 4096);
+        assertEquals(1, reopened.size());
+        assertEquals("one", reopened.getKey(BigInteger.ONE));
+        assertNull(reopened.getKey(BigInteger.TEN));
+
+        //Writes go on where the log ended
+        reopened.storeKey(BigInteger.valueOf(2), "two");
+        reopened.close();
+        MappedStore again = new MappedStore(directory, 4096);
+        assertEquals(2, again.size());
+        assertEquals("two", again.getKey(BigInteger.valueOf(2)));
+        again.close();
+    }
+
+    @Test
+    public void testSelectedWithNodeConfig() throws IOException {
+        NodeConfig config = new NodeConfig();
+        config.setStorageMode(NodeConfig.StorageMode.MAPPED);
+        config.setStorageDirectory(directory.getPath());
+
+        ApplicationDomain app = StoredApplication.open(null, config, 5050);
+        app.storeKey(BigInteger.ONE, "one");
+        ((Closeable) app).close();
+
+        MappedStore store = new MappedStore(new File(directory, "node-5050"));
+        assertEquals("one", store.getKey(BigInteger.ONE));
+        store.close();
+    }
+}
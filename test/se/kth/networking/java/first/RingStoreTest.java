@@ -0,0 +1,113 @@
+package se.kth.networking.java.first;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingStoreTest {
+
+    private static final BigInteger TOP = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    private RingStore store() {
+        RingStore store = new RingStore();
+        store.put(BigInteger.ZERO, "zero");
+        store.put(BigInteger.valueOf(10), "ten");
+        store.put(BigInteger.valueOf(20), "twenty");
+        store.put(TOP, "top");
+        return store;
+    }
+
+    @Test
+    public void testRangeIsOpenAtTheStart() {
+        Map<BigInteger, String> range = store().getRange(BigInteger.valueOf(10), BigInteger.valueOf(20));
+        assertEquals(1, range.size());
+        assertEquals("twenty", range.get(BigInteger.valueOf(20)));
+    }
+
+    @Test
+    public void testRangeWrapsPastZero() {
+        RingStore store = store();
+        Map<BigInteger, String> range = store.getRange(BigInteger.valueOf(20), BigInteger.valueOf(10));
+        assertEquals(3, range.size());
+        assertTrue(range.containsKey(TOP));
+        assertTrue(range.containsKey(BigInteger.ZERO));
+        assertEquals(3, store.sizeOfRange(BigInteger.valueOf(20), BigInteger.valueOf(10)));
+
+        store.removeRange(BigInteger.valueOf(20), BigInteger.valueOf(10));
+        assertEquals(1, store.size());
+        assertEquals("twenty", store.get(BigInteger.valueOf(20)));
+    }
+
+    @Test
+    public void testSameEndsIsTheWholeRing() {
+        RingStore store = store();
+        assertEquals(4, store.getRange(BigInteger.valueOf(10), BigInteger.valueOf(10)).size());
+        assertEquals(4, store.sizeOfRange(TOP, TOP));
+    }
+
+    @Test
+    public void testDefaultRangeMatchesStore() {
+        ApplicationDomain app = new ApplicationDomain() {
+            RingStore store = store();
+
+            public void storeKey(BigInteger key, String value) {
+                store.put(key, value);
+            }
+
+            public String getKey(BigInteger key) {
+                return store.get(key);
+            }
+
+            public void foundKey(BigInteger key, String value) {
+            }
+
+            public Map<BigInteger, String> getStore() {
+                return store.asMap();
+            }
+        };
+        assertEquals(store().getRange(TOP, BigInteger.valueOf(10)), app.getRange(TOP, BigInteger.valueOf(10)));
+    }
+
+    @Test
+    public void testChunksGoClockwiseFromTheStart() {
+        RingStore store = store();
+        Map<BigInteger, String> chunk = store.getRange(BigInteger.valueOf(10), BigInteger.valueOf(10), 2);
+        assertEquals(Arrays.asList(BigInteger.valueOf(20), TOP), new ArrayList<>(chunk.keySet()));
+
+        chunk = store.getRange(TOP, BigInteger.valueOf(10), 2);
+        assertEquals(Arrays.asList(BigInteger.ZERO, BigInteger.valueOf(10)), new ArrayList<>(chunk.keySet()));
+        assertTrue(store.getRange(BigInteger.ZERO, BigInteger.ZERO, 0).isEmpty());
+    }
+
+    @Test
+    public void testDefaultChunksMatchStore() {
+        ApplicationDomain app = new ApplicationDomain() {
+            RingStore store = store();
+
+            public void storeKey(BigInteger key, String value) {
+                store.put(key, value);
+            }
+
+            public String getKey(BigInteger key) {
+                return store.get(key);
+            }
+
+            public void foundKey(BigInteger key, String value) {
+            }
+
+            public Map<BigInteger, String> getStore() {
+                return store.asMap();
+            }
+        };
+        for (BigInteger from : Arrays.asList(BigInteger.ZERO, BigInteger.valueOf(15), TOP)) {
+            assertEquals(new ArrayList<>(store().getRange(from, from, 3).keySet()),
+                    new ArrayList<>(app.getRange(from, from, 3).keySet()));
+        }
+    }
+}
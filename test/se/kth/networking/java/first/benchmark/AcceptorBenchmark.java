@@ -0,0 +1,125 @@
+package se.kth.networking.java.first.benchmark;
+
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.network.ClientAcceptor;
+import se.kth.networking.java.first.network.MessageDispatcher;
+import se.kth.networking.java.first.network.VirtualThreads;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Compares the old fixed pool of 5 acceptor threads with one virtual thread per connection.
+ * Every peer opens its own connection and sends one message, the handler sleeps to simulate
+ * a slow peer on the other side. Run with gradle benchmark, use a Java 21 runtime to get real
+ * virtual threads.
+ */
+public class AcceptorBenchmark {
+
+    private static final int PEERS = 1000;
+    private static final int HANDLER_DELAY = 20;
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : PEERS;
+        System.err.println("Virtual threads supported: " + VirtualThreads.isSupported());
+
+        PrintStream out = System.out;
+        //The acceptor logs every message, keep that out of the results
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            run("fixed pool of 5", Executors.newFixedThreadPool(5), peers);
+            run("virtual threads", VirtualThreads.newPerTaskExecutor(), peers);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private static void run(String name, ExecutorService executor, int peers) throws Exception {
+        final int port = freePort();
+        //Handled on the connection thread, that is the thread we are comparing
+        ClientAcceptor acceptor = new ClientAcceptor(port, new MessageDispatcher() {
+            @Override
+            public CompletableFuture<Message> dispatch(Message message, Node sender) {
+                try {
+                    Thread.sleep(HANDLER_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+        }, executor, 30000);
+        acceptor.start();
+
+        ExecutorService clients = Executors.newFixedThreadPool(peers);
+        final CountDownLatch ready = new CountDownLatch(peers);
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int i = 0; i < peers; i++) {
+            results.add(clients.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ready.countDown();
+                    go.await();
+
+                    long start = System.nanoTime();
+                    Socket socket = new Socket("127.0.0.1", port);
+                    try {
+                        PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        writer.write("{\"type\":\"benchmark\",\"ip\":\"127.0.0.1\",\"port\":" + port + "}\n");
+                        writer.flush();
+                        reader.readLine();
+                    } finally {
+                        socket.close();
+                    }
+                    latencies.add(System.nanoTime() - start);
+                    return null;
+                }
+            }));
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+
+        int failed = 0;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        long total = System.nanoTime() - start;
+
+        clients.shutdown();
+        acceptor.shutdown();
+
+        Collections.sort(latencies);
+        System.err.println(String.format("%-16s peers=%d total=%dms p50=%dms p99=%dms failed=%d", name, peers,
+                TimeUnit.NANOSECONDS.toMillis(total), percentile(latencies, 50), percentile(latencies, 99), failed));
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = Math.min(sorted.size() - 1, sorted.size() * percentile / 100);
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(index));
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,97 @@
+package se.kth.networking.java.first.benchmark;
+
+import se.kth.networking.java.first.Helper;
+import se.kth.networking.java.first.models.RingId;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Formatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old node id hashing (new MessageDigest, hex string, BigInteger built digit by digit)
+ * with Helper.doHash, both for addresses we keep seeing and for addresses that miss the id cache.
+ * Run with gradle hashBenchmark.
+ */
+public class HashBenchmark {
+
+    private static final int ITERATIONS = 1000000;
+    private static final int ROUNDS = 5;
+
+    //Every message used to construct a Node, so a handful of peers are hashed over and over
+    private static final int KNOWN_PEERS = 16;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : ITERATIONS;
+
+        for (int port = 0; port < 70000; port += 7) {
+            if (!legacyHash("127.0.0.1", port).equals(Helper.doHash("127.0.0.1", port).toBigInteger())) {
+                throw new IllegalStateException("Ids differ for port " + port);
+            }
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            //The first rounds are warm up, only the last one is worth reading
+            System.err.println("Round " + round);
+            report("legacy", iterations, legacy(iterations));
+            report("doHash, new peers", iterations, uncached(iterations));
+            report("doHash, known peers", iterations, cached(iterations));
+        }
+    }
+
+    private static long legacy(int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = legacyHash("127.0.0.1", 5000 + i % KNOWN_PEERS);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long uncached(int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            //Spread over far more addresses than the cache holds
+            sink = Helper.doHash("10.0." + (i & 0xFF) + ".1", i >>> 8);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long cached(int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = Helper.doHash("127.0.0.1", 5000 + i % KNOWN_PEERS);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, int iterations, long nanos) {
+        System.err.println(String.format("  %-20s %6dms %8.1f ns/op", name, TimeUnit.NANOSECONDS.toMillis(nanos),
+                (double) nanos / iterations));
+    }
+
+    /**
+     * Helper.hash as it was before RingId.
+     */
+    private static BigInteger legacyHash(String ip, int port) throws Exception {
+        MessageDigest crypt = MessageDigest.getInstance("MD5");
+        crypt.reset();
+        crypt.update((ip + port).getBytes(StandardCharsets.UTF_8));
+
+        Formatter formatter = new Formatter();
+        for (byte b : crypt.digest()) {
+            formatter.format("%02x", b);
+        }
+        String hex = formatter.toString().toUpperCase();
+        formatter.close();
+
+        String digits = "0123456789ABCDEF";
+        BigInteger val = BigInteger.ZERO;
+        for (int i = 0; i < hex.length(); i++) {
+            val = val.multiply(BigInteger.valueOf(16)).add(BigInteger.valueOf(digits.indexOf(hex.charAt(i))));
+        }
+        return new BigInteger(String.valueOf(val));
+    }
+}
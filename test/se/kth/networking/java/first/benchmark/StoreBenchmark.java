@@ -0,0 +1,117 @@
+package se.kth.networking.java.first.benchmark;
+
+import se.kth.networking.java.first.MappedStore;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Loads the same keys into the HashMap Server.main used and into a MappedStore, then keeps overwriting them,
+ * and compares how much the GC had to do. A thread that sleeps 1ms at a time measures the pauses the way a
+ * stabilize reply would feel them. Run each store in its own JVM, with the same -Xmx, with
+ * gradle storeBenchmark -Pstore=heap|mapped.
+ */
+public class StoreBenchmark {
+
+    private static final int KEYS = 5000000;
+    private static final int OVERWRITES = 10000000;
+
+    private static volatile long maxStall;
+
+    public static void main(String[] args) throws Exception {
+        String which = args.length > 0 ? args[0] : "mapped";
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : KEYS;
+
+        Thread hiccups = new Thread(() -> {
+            while (true) {
+                long start = System.nanoTime();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                maxStall = Math.max(maxStall, (System.nanoTime() - start) / 1000000 - 1);
+            }
+        });
+        hiccups.setDaemon(true);
+        hiccups.start();
+
+        File directory = Files.createTempDirectory("store-benchmark").toFile();
+        Map<BigInteger, String> heap = null;
+        MappedStore mapped = null;
+        if ("heap".equals(which)) {
+            heap = new HashMap<>();
+        } else {
+            mapped = new MappedStore(directory);
+        }
+
+        Random random = new Random(1);
+        BigInteger[] ids = new BigInteger[keys];
+        for (int i = 0; i < keys; i++) {
+            ids[i] = new BigInteger(128, random);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            put(heap, mapped, ids[i], "value " + i);
+        }
+        report(which + " load", keys, start);
+
+        //Only the overwrites count, the ids themselves are on the heap for both
+        maxStall = 0;
+        long[] before = gc();
+        start = System.nanoTime();
+        for (int i = 0; i < OVERWRITES; i++) {
+            put(heap, mapped, ids[random.nextInt(keys)], "value " + i);
+        }
+        report(which + " overwrite", OVERWRITES, start);
+        long[] after = gc();
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.err.println(String.format("  %d collections, %dms in GC, longest stall %dms, heap used %dMB",
+                after[0] - before[0], after[1] - before[1], maxStall,
+                (runtime.totalMemory() - runtime.freeMemory()) / 1024 / 1024));
+
+        if (mapped != null) {
+            System.err.println("  " + mapped.getCompactions() + " compactions");
+            mapped.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void put(Map<BigInteger, String> heap, MappedStore mapped, BigInteger key, String value) {
+        if (heap != null) {
+            heap.put(key, value);
+        } else {
+            mapped.storeKey(key, value);
+        }
+    }
+
+    private static long[] gc() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += bean.getCollectionCount();
+            time += bean.getCollectionTime();
+        }
+        return new long[]{count, time};
+    }
+
+    private static void report(String name, int operations, long start) {
+        long nanos = System.nanoTime() - start;
+        System.err.println(String.format("%-18s %6dms %8.1f ns/op", name, nanos / 1000000, (double) nanos / operations));
+    }
+}
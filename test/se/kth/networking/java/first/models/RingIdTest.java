@@ -0,0 +1,71 @@
+package se.kth.networking.java.first.models;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingIdTest {
+
+    private static final BigInteger RING = BigInteger.ONE.shiftLeft(RingId.BITS);
+
+    @Test
+    public void testBigIntegerRoundTrip() {
+        BigInteger max = RING.subtract(BigInteger.ONE);
+        assertEquals(max, RingId.fromBigInteger(max).toBigInteger());
+        assertEquals(max, RingId.fromBigInteger(BigInteger.ONE.negate()).toBigInteger());
+        assertEquals("22", RingId.parse("22").toString());
+    }
+
+    @Test
+    public void testUnsignedOrder() {
+        RingId small = RingId.parse("1");
+        RingId large = RingId.fromBigInteger(BigInteger.ONE.shiftLeft(127));
+        assertTrue(small.compareTo(large) < 0);
+        assertTrue(large.compareTo(small) > 0);
+    }
+
+    @Test
+    public void testFingerKeysMatchBigInteger() {
+        Random random = new Random(42);
+        for (int n = 0; n < 100; n++) {
+            BigInteger id = new BigInteger(RingId.BITS, random);
+            RingId ringId = RingId.fromBigInteger(id);
+            for (int i = 0; i < RingId.BITS; i++) {
+                BigInteger expected = id.add(BigInteger.ONE.shiftLeft(i)).subtract(BigInteger.ONE).mod(RING);
+                assertEquals(expected, ringId.addPowerOfTwo(i).decrement().toBigInteger());
+            }
+        }
+    }
+
+    @Test
+    public void testBetweenWrapsAround() {
+        RingId from = RingId.fromBigInteger(RING.subtract(BigInteger.TEN));
+        RingId to = RingId.parse("10");
+
+        assertTrue(RingId.ZERO.isBetween(from, to));
+        assertTrue(to.isBetween(from, to));
+        assertFalse(from.isBetween(from, to));
+        assertFalse(RingId.parse("11").isBetween(from, to));
+        assertTrue(RingId.parse("11").isBetween(to, to));
+    }
+
+    @Test
+    public void testCompareClockwiseMatchesBigInteger() {
+        Random random = new Random(7);
+        for (int n = 0; n < 1000; n++) {
+            BigInteger origin = new BigInteger(RingId.BITS, random);
+            BigInteger a = new BigInteger(RingId.BITS, random);
+            BigInteger b = new BigInteger(RingId.BITS, random);
+            int expected = a.subtract(origin).mod(RING).compareTo(b.subtract(origin).mod(RING));
+
+            int actual = RingId.compareClockwise(RingId.fromBigInteger(origin), RingId.fromBigInteger(a),
+                    RingId.fromBigInteger(b));
+            assertEquals(Integer.signum(expected), Integer.signum(actual));
+        }
+    }
+}
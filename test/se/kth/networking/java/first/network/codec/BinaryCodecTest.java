@@ -0,0 +1,70 @@
+package se.kth.networking.java.first.network.codec;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.messages.RequestReplyMessage;
+import se.kth.networking.java.first.models.Node;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryCodecTest {
+
+    private Codec codec = Codecs.BINARY;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        BigInteger id = BigInteger.ONE.shiftLeft(127).add(BigInteger.TEN);
+        String message = "{\"type\":\"add\",\"key\":" + id + ",\"value\":\"two\\nlines\",\"port\":5050,\"ip\":\"127.0.0.1\"}";
+
+        Frame frame = codec.decode(ByteBuffer.wrap(codec.encode(42, message)));
+        JSONObject json = frame.getJson();
+
+        assertEquals(42, frame.getCorrelationId());
+        assertEquals("add", json.getString("type"));
+        assertEquals(id, json.getBigInteger("key"));
+        assertEquals("two\nlines", json.getString("value"));
+        assertEquals(5050, json.getInt("port"));
+    }
+
+    @Test
+    public void testPlainText() throws IOException {
+        Frame frame = codec.decode(ByteBuffer.wrap(codec.encode(Frame.UNCORRELATED, "Bad request")));
+
+        assertEquals("Bad request", frame.getText());
+    }
+
+    @Test
+    public void testPartialFrame() throws IOException {
+        byte[] bytes = codec.encode(7, "{\"type\":\"probe\"}");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+
+        assertNull(codec.decode(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testMessageObject() throws IOException {
+        Node a = new Node("127.0.0.1", 5050);
+        Node b = new Node("127.0.0.1", 6060);
+        JSONObject json = new RequestReplyMessage(a, b, b, Arrays.asList(b, a)).toJson();
+
+        byte[] bytes = codec.encode(9, json);
+        Frame frame = codec.decode(ByteBuffer.wrap(bytes));
+        RequestReplyMessage reply = (RequestReplyMessage) Message.fromJson(frame.getJson());
+
+        assertEquals(9, frame.getCorrelationId());
+        assertEquals(b.getId(), reply.getPredecessor().getId());
+        assertEquals(a.getId(), reply.getSuccessors().get(1).getId());
+        //Ids as 16 bytes and ports as varints, not as text
+        assertEquals(BigInteger.class, frame.getJson().getJSONObject("successor").get("id").getClass());
+        assertTrue(bytes.length < json.toString().length() / 2);
+    }
+}
@@ -0,0 +1,36 @@
+package se.kth.networking.java.first.network.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JsonCodecTest {
+
+    @Test
+    public void testLineComesInPieces() throws IOException {
+        Codec.Decoder decoder = Codecs.JSON.newDecoder();
+        byte[] bytes = "#3 {\"type\":\"probe\"}\nnext".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+
+        //Fed a few bytes at a time, like FrameReader does
+        Frame frame = null;
+        for (int i = 0; i < bytes.length && frame == null; i++) {
+            buffer.put(bytes[i]);
+            buffer.flip();
+            frame = decoder.decode(buffer);
+            buffer.compact();
+        }
+
+        assertEquals(3, frame.getCorrelationId());
+        assertEquals("probe", frame.getJson().getString("type"));
+
+        buffer.flip();
+        assertNull(decoder.decode(buffer));
+        assertEquals(0, buffer.position());
+    }
+}
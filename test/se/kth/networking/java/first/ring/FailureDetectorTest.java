@@ -0,0 +1,51 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.Test;
+import se.kth.networking.java.first.models.Node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FailureDetectorTest {
+
+    private Node node = new Node("127.0.0.1", 5050);
+
+    @Test
+    public void testFailedExchangeIsSuspected() {
+        FailureDetector detector = new FailureDetector(8, 2, 2000);
+        detector.heartbeat(node);
+
+        detector.failed(node);
+        assertFalse(detector.isSuspected(node));
+
+        detector.failed(node);
+        assertTrue(detector.isSuspected(node));
+        assertTrue(detector.hasFailed(node));
+        assertEquals(1, detector.getSuspicions());
+    }
+
+    @Test
+    public void testHeartbeatAfterSuspicionIsFalsePositive() {
+        FailureDetector detector = new FailureDetector(8, 1, 2000);
+        detector.heartbeat(node);
+        detector.failed(node);
+        assertTrue(detector.isSuspected(node));
+
+        detector.heartbeat(node);
+        assertFalse(detector.isSuspected(node));
+        assertEquals(1, detector.getFalsePositives());
+    }
+
+    @Test
+    public void testSilenceRaisesPhi() throws InterruptedException {
+        FailureDetector detector = new FailureDetector(0.01, 100, 10);
+        assertEquals(0, detector.phi(node), 0);
+
+        detector.heartbeat(node);
+        Thread.sleep(50);
+        assertTrue(detector.phi(node) > 1);
+        assertTrue(detector.isSuspected(node));
+        assertFalse(detector.hasFailed(node));
+    }
+}
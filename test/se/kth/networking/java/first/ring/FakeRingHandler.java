@@ -0,0 +1,90 @@
+package se.kth.networking.java.first.ring;
+
+import se.kth.networking.java.first.ApplicationDomain;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.models.Node;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * A ring handler whose messages never leave the JVM, the test decides what every message gets back.
+ * The maintenance tasks are stopped, the test moves the ring along itself.
+ */
+class FakeRingHandler extends RingHandler {
+
+    final List<Node> sentTo = Collections.synchronizedList(new ArrayList<Node>());
+    final List<Message> sent = Collections.synchronizedList(new ArrayList<Message>());
+
+    //Acknowledges everything unless the test says otherwise
+    BiFunction<Node, Message, CompletableFuture<Message>> replies = (node, message) -> CompletableFuture.completedFuture(null);
+
+    FakeRingHandler(int port, NodeConfig config) {
+        super("127.0.0.1", port, new MapDomain(), config);
+        stabilizeTask.cancel();
+        fingerTask.cancel();
+    }
+
+    @Override
+    CompletableFuture<Message> send(Node node, Message message) {
+        sentTo.add(node);
+        sent.add(message);
+        return replies.apply(node, message);
+    }
+
+    /**
+     * The messages of the type that were sent to the port.
+     */
+    int count(Class<? extends Message> type, int port) {
+        int count = 0;
+        synchronized (sent) {
+            for (int i = 0; i < sent.size(); i++) {
+                if (type.isInstance(sent.get(i)) && sentTo.get(i).getPort() == port) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    void close() {
+        pendingLookups.shutdown();
+        socketQueue.shutdown();
+    }
+
+    private static class MapDomain implements ApplicationDomain {
+
+        private Map<BigInteger, String> store = new HashMap<>();
+
+        @Override
+        public synchronized void storeKey(BigInteger key, String value) {
+            store.put(key, value);
+        }
+
+        @Override
+        public synchronized String getKey(BigInteger key) {
+            return store.get(key);
+        }
+
+        @Override
+        public void foundKey(BigInteger key, String value) {
+        }
+
+        @Override
+        public synchronized Map<BigInteger, String> getStore() {
+            return new HashMap<>(store);
+        }
+
+        @Override
+        public synchronized void removeKey(BigInteger key) {
+            store.remove(key);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.Test;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FingerTableTest {
+
+    private Node self = at(0);
+    private Node a = at(10);
+    private Node b = at(20);
+    private Node c = at(40);
+
+    private static Node at(long position) {
+        final RingId id = new RingId(0, position);
+        return new Node("127.0.0.1", 5000 + (int) position) {
+            @Override
+            public RingId getId() {
+                return id;
+            }
+        };
+    }
+
+    @Test
+    public void testSetFingerFillsTheFingersTheOwnerCovers() {
+        FingerTable table = new FingerTable(self);
+
+        //Fingers 0 to 3 have the keys 0, 1, 3 and 7, finger 4 has 15
+        assertTrue(table.setFinger(0, a));
+        assertEquals(4, table.getNextToFix());
+        assertEquals(Arrays.asList(a), table.getTable());
+
+        assertFalse(table.setFinger(0, a));
+    }
+
+    @Test
+    public void testTableIsSortedWithoutDuplicatesOrSelf() {
+        FingerTable table = new FingerTable(self);
+        table.setFinger(5, c);
+        table.setFinger(4, b);
+        table.setFinger(0, a);
+        table.setFinger(6, self);
+
+        assertEquals(Arrays.asList(a, b, c), table.getTable());
+    }
+
+    @Test
+    public void testClosestPrecedingNode() {
+        FingerTable table = new FingerTable(self);
+        table.setFinger(0, a);
+        table.setFinger(4, b);
+        table.setFinger(5, c);
+
+        assertNull(table.closestPrecedingNode(new RingId(0, 5)));
+        assertEquals(a, table.closestPrecedingNode(new RingId(0, 20)));
+        assertEquals(b, table.closestPrecedingNode(new RingId(0, 30)));
+        assertEquals(c, table.closestPrecedingNode(new RingId(0, 41)));
+        assertEquals(c, table.closestPrecedingNode(new RingId(-1, -1)));
+    }
+
+    @Test
+    public void testRemoveDropsEveryFingerOfTheNode() {
+        FingerTable table = new FingerTable(self);
+        table.setFinger(0, a);
+        table.setFinger(4, b);
+
+        assertTrue(table.remove(a));
+        assertEquals(Arrays.asList(b), table.getTable());
+        assertFalse(table.remove(a));
+
+        //The fingers a had are empty again, setting them is a change
+        assertTrue(table.setFinger(0, a));
+    }
+}
@@ -0,0 +1,167 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.FindSuccessorMessage;
+import se.kth.networking.java.first.messages.GetBatchMessage;
+import se.kth.networking.java.first.messages.GetBatchReplyMessage;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.messages.SuccessorFoundMessage;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GetAllTest {
+
+    private FakeRingHandler ring;
+    private RingId base;
+
+    //Owners by port, with the keys they have and the keys they own
+    private Map<Integer, Map<RingId, String>> stores = new HashMap<>();
+    private Map<Integer, List<RingId>> owned = new HashMap<>();
+    //Who answers a lookup of a key
+    private Map<RingId, Integer> lookups = new HashMap<>();
+
+    private Node a;
+    private Node b;
+
+    @Before
+    public void setUp() {
+        NodeConfig config = new NodeConfig();
+        config.setBatchSize(2);
+        ring = new FakeRingHandler(7100, config);
+        base = ring.getSelf().getId();
+
+        //We own everything from 2^120 after us round to us, a and b the ranges right after us
+        a = at(base.addPowerOfTwo(100), 7101);
+        b = at(base.addPowerOfTwo(110), 7102);
+        ring.predecessor = at(base.addPowerOfTwo(120), 7109);
+        ring.successor = a;
+        ring.getOwnerCache().learn(b, a.getId());
+
+        ring.replies = (node, message) -> {
+            if (message instanceof FindSuccessorMessage) {
+                FindSuccessorMessage lookup = (FindSuccessorMessage) message;
+                int port = lookups.get(lookup.getKey());
+                ring.deliverLookup(new SuccessorFoundMessage(new Node("127.0.0.1", port), lookup.getKey(), lookup.getRequestId(), null));
+                return CompletableFuture.completedFuture(null);
+            }
+            if (message instanceof GetBatchMessage && stores.containsKey(node.getPort())) {
+                return CompletableFuture.completedFuture(answer(node, (GetBatchMessage) message));
+            }
+            CompletableFuture<Message> down = new CompletableFuture<>();
+            down.completeExceptionally(new IOException(node.getPort() + " is down"));
+            return down;
+        };
+    }
+
+    @After
+    public void tearDown() {
+        ring.close();
+    }
+
+    private static Node at(final RingId id, int port) {
+        return new Node("127.0.0.1", port) {
+            @Override
+            public RingId getId() {
+                return id;
+            }
+        };
+    }
+
+    private RingId key(int power) {
+        return base.addPowerOfTwo(power);
+    }
+
+    private void owner(int port, RingId key, String value) {
+        if (!stores.containsKey(port)) {
+            stores.put(port, new HashMap<RingId, String>());
+            owned.put(port, new ArrayList<RingId>());
+        }
+        if (value != null) {
+            stores.get(port).put(key, value);
+        }
+        owned.get(port).add(key);
+    }
+
+    private Message answer(Node node, GetBatchMessage message) {
+        List<RingId> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<RingId> rejected = new ArrayList<>();
+        for (RingId key : message.getKeys()) {
+            if (owned.get(node.getPort()).contains(key)) {
+                keys.add(key);
+                values.add(stores.get(node.getPort()).get(key));
+            } else {
+                rejected.add(key);
+            }
+        }
+        return new GetBatchReplyMessage(node, keys, values, rejected);
+    }
+
+    @Test
+    public void testOneLookupPerOwnerAndBatchesOfBatchSize() throws Exception {
+        ring.app.storeKey(base, "local");
+        owner(a.getPort(), key(90), "a0");
+        owner(a.getPort(), key(91), "a1");
+        owner(a.getPort(), key(92), null);
+        owner(b.getPort(), key(105), "b0");
+
+        Map<RingId, String> values = ring.getAll(Arrays.asList(base, key(90), key(91), key(92), key(105)))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(5, values.size());
+        assertEquals("local", values.get(base));
+        assertEquals("a1", values.get(key(91)));
+        assertTrue(values.containsKey(key(92)));
+        assertNull(values.get(key(92)));
+        assertEquals("b0", values.get(key(105)));
+
+        //Three keys for a in batches of two, the owners came from the successor and the cache
+        assertEquals(2, ring.count(GetBatchMessage.class, a.getPort()));
+        assertEquals(1, ring.count(GetBatchMessage.class, b.getPort()));
+        assertEquals(0, ring.sent.stream().filter(m -> m instanceof FindSuccessorMessage).count());
+    }
+
+    @Test
+    public void testRejectedKeysAreLookedUpAgain() throws Exception {
+        owner(b.getPort(), key(105), "b0");
+        owner(7103, key(106), "c0");
+        lookups.put(key(106), 7103);
+
+        Map<RingId, String> values = ring.getAll(Arrays.asList(key(105), key(106))).get(5, TimeUnit.SECONDS);
+
+        assertEquals("b0", values.get(key(105)));
+        assertEquals("c0", values.get(key(106)));
+        assertEquals(1, ring.count(GetBatchMessage.class, 7103));
+    }
+
+    @Test
+    public void testKeysOfAnOwnerThatIsDownAreLeftOut() throws Exception {
+        owner(a.getPort(), key(90), "a0");
+        lookups.put(key(105), b.getPort());
+        stores.remove(b.getPort());
+
+        Map<RingId, String> values = ring.getAll(Arrays.asList(key(90), key(105))).get(5, TimeUnit.SECONDS);
+
+        assertEquals("a0", values.get(key(90)));
+        assertFalse(values.containsKey(key(105)));
+        //The first try and one for every retry
+        assertEquals(3, ring.count(GetBatchMessage.class, b.getPort()));
+    }
+}
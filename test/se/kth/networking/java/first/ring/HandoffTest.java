@@ -0,0 +1,227 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.HandoffMessage;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.messages.PutBatchMessage;
+import se.kth.networking.java.first.messages.PutBatchReplyMessage;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class HandoffTest {
+
+    private Node a = new Node("127.0.0.1", 7201);
+    private Node b = new Node("127.0.0.1", 7202);
+
+    private FakeRingHandler ring;
+
+    @Before
+    public void setUp() {
+        ring = new FakeRingHandler(7200, new NodeConfig());
+        ring.successor = a;
+        ring.setSuccessorList(a, Arrays.asList(b));
+        for (int i = 0; i < 10; i++) {
+            ring.app.storeKey(RingId.ZERO.addPowerOfTwo(i), "value " + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ring.close();
+    }
+
+    private static CompletableFuture<Message> failed(Node node) {
+        CompletableFuture<Message> down = new CompletableFuture<>();
+        down.completeExceptionally(new IOException(node.getPort() + " is down"));
+        return down;
+    }
+
+    @Test
+    public void testChunksAreAckedAndRemoved() throws Exception {
+        Handoff handoff = new Handoff(ring, ring.getSelf().getId(), ring.getSelf().getId(), 3, 2);
+        handoff.start().get(5, TimeUnit.SECONDS);
+
+        assertEquals(10, handoff.getKeysAcked());
+        assertEquals(4, ring.count(HandoffMessage.class, a.getPort()));
+        assertEquals(0, ring.app.getStore().size());
+    }
+
+    @Test
+    public void testRetryGoesPastTheNodeThatFailed() throws Exception {
+        ring.replies = (node, message) -> node.getPort() == a.getPort() ? failed(node)
+                : CompletableFuture.<Message>completedFuture(null);
+
+        Handoff handoff = new Handoff(ring, ring.getSelf().getId(), ring.getSelf().getId(), 3, 2);
+        handoff.start().get(5, TimeUnit.SECONDS);
+
+        //Every chunk tries a once and then goes on to b
+        assertEquals(10, handoff.getKeysAcked());
+        assertEquals(4, ring.count(HandoffMessage.class, a.getPort()));
+        assertEquals(4, ring.count(HandoffMessage.class, b.getPort()));
+    }
+
+    @Test
+    public void testChunksNobodyTakesAreKept() throws Exception {
+        ring.replies = (node, message) -> failed(node);
+
+        Handoff handoff = new Handoff(ring, ring.getSelf().getId(), ring.getSelf().getId(), 3, 2);
+        handoff.start().get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, handoff.getKeysAcked());
+        assertEquals(10, ring.app.getStore().size());
+    }
+
+    @Test
+    public void testDrainFinishesWhenTheStoreThrows() throws Exception {
+        final RingDomain store = ring.app;
+        ring.app = new ApplicationDomainAdapter(null) {
+            @Override
+            public Map<RingId, String> getRange(RingId from, RingId to, int limit) {
+                return store.getRange(from, to, limit);
+            }
+
+            @Override
+            public void removeKey(RingId key) {
+                throw new IllegalStateException("read only");
+            }
+        };
+
+        Handoff handoff = new Handoff(ring, ring.getSelf().getId(), ring.getSelf().getId(), 3, 2);
+        handoff.start().get(5, TimeUnit.SECONDS);
+
+        assertEquals(10, handoff.getKeysAcked());
+        assertEquals(10, store.getStore().size());
+    }
+
+    /**
+     * A node that takes over (self, 2^4], the keys 2^0 to 2^4 of the ten.
+     */
+    private Node newPredecessor() {
+        final RingId id = RingId.ZERO.addPowerOfTwo(4);
+        return new Node("127.0.0.1", 7203) {
+            @Override
+            public RingId getId() {
+                return id;
+            }
+        };
+    }
+
+    private void awaitStoreSize(int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ring.app.getStore().size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, ring.app.getStore().size());
+    }
+
+    @Test
+    public void testNewPredecessorGetsItsRange() throws Exception {
+        final List<RingId> received = Collections.synchronizedList(new ArrayList<RingId>());
+        ring.batchSize = 2;
+        ring.replies = (node, message) -> {
+            received.addAll(((PutBatchMessage) message).getKeys());
+            return CompletableFuture.<Message>completedFuture(new PutBatchReplyMessage(node, Collections.<RingId>emptyList()));
+        };
+
+        Node owner = newPredecessor();
+        ring.notifyPredecessor(owner);
+
+        awaitStoreSize(5);
+        assertEquals(5, received.size());
+        assertEquals(3, ring.count(PutBatchMessage.class, owner.getPort()));
+        for (int i = 0; i < 10; i++) {
+            RingId key = RingId.ZERO.addPowerOfTwo(i);
+            assertEquals(i <= 4, received.contains(key));
+            assertEquals(i <= 4, ring.app.getKey(key) == null);
+        }
+    }
+
+    @Test
+    public void testRejectedKeysAreKept() throws Exception {
+        final RingId rejected = RingId.ZERO.addPowerOfTwo(2);
+        ring.replies = (node, message) -> {
+            List<RingId> keys = ((PutBatchMessage) message).getKeys();
+            return CompletableFuture.<Message>completedFuture(new PutBatchReplyMessage(node,
+                    keys.contains(rejected) ? Collections.singletonList(rejected) : Collections.<RingId>emptyList()));
+        };
+
+        ring.notifyPredecessor(newPredecessor());
+
+        awaitStoreSize(6);
+        assertNotNull(ring.app.getKey(rejected));
+        assertNull(ring.app.getKey(RingId.ZERO.addPowerOfTwo(3)));
+    }
+
+    /**
+     * Replies that the test gives itself, so it knows the handoff is done with one once it returns.
+     */
+    private BlockingQueue<CompletableFuture<Message>> heldReplies() {
+        final BlockingQueue<CompletableFuture<Message>> held = new LinkedBlockingQueue<>();
+        ring.replies = (node, message) -> {
+            CompletableFuture<Message> reply = new CompletableFuture<>();
+            held.add(reply);
+            return reply;
+        };
+        return held;
+    }
+
+    private static CompletableFuture<Message> next(BlockingQueue<CompletableFuture<Message>> held) throws InterruptedException {
+        CompletableFuture<Message> reply = held.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        return reply;
+    }
+
+    @Test
+    public void testNothingIsRemovedWhenTheTransferFails() throws Exception {
+        ring.batchSize = 2;
+        BlockingQueue<CompletableFuture<Message>> held = heldReplies();
+
+        Node owner = newPredecessor();
+        ring.notifyPredecessor(owner);
+
+        //Every one of the three chunks tries the owner three times, and only the owner
+        for (int i = 0; i < 9; i++) {
+            next(held).completeExceptionally(new IOException("down"));
+        }
+        assertEquals(9, ring.count(PutBatchMessage.class, owner.getPort()));
+        assertEquals(0, ring.count(PutBatchMessage.class, a.getPort()));
+        assertEquals(10, ring.app.getStore().size());
+    }
+
+    @Test
+    public void testReplicaKeepsTheRangeItHandedOver() throws Exception {
+        ring.replicationFactor = 2;
+        BlockingQueue<CompletableFuture<Message>> held = heldReplies();
+
+        Node owner = newPredecessor();
+        ring.notifyPredecessor(owner);
+
+        next(held).complete(new PutBatchReplyMessage(owner, Collections.<RingId>emptyList()));
+        assertEquals(1, ring.count(PutBatchMessage.class, owner.getPort()));
+        assertEquals(10, ring.app.getStore().size());
+    }
+
+    @Test
+    public void testBytesAreCountedInUtf8() {
+        assertEquals(RingId.BYTES + 3, RingHandler.entryBytes("abc"));
+        assertEquals(RingId.BYTES + 2 + 3 + 4, RingHandler.entryBytes("\u00e9\u20ac\ud83d\ude00"));
+    }
+}
@@ -0,0 +1,70 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MaintenanceSchedulerTest {
+
+    private MaintenanceScheduler scheduler = new MaintenanceScheduler(1);
+
+    private Runnable nothing = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testStableRoundsBackOff() {
+        MaintenanceScheduler.Task task = scheduler.schedule("test", nothing, 100, 100, 300, 60000);
+
+        task.stable();
+        task.stable();
+        assertEquals(100, task.getInterval());
+
+        task.stable();
+        assertEquals(150, task.getInterval());
+        task.stable();
+        assertEquals(225, task.getInterval());
+        task.stable();
+        assertEquals(300, task.getInterval());
+    }
+
+    @Test
+    public void testChangeMovesTheNextRunUp() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+        MaintenanceScheduler.Task task = scheduler.schedule("test", new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 10, 1000, 4000, 60000);
+        for (int i = 0; i < 5; i++) {
+            task.stable();
+        }
+
+        task.changed();
+        assertEquals(10, task.getInterval());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testChangeAfterShutdownIsIgnored() {
+        scheduler.shutdown();
+        MaintenanceScheduler.Task task = scheduler.schedule("test", nothing, 10, 100, 400, 60000);
+
+        //The first run was never scheduled
+        task.changed();
+        task.cancel();
+    }
+}
@@ -0,0 +1,58 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.Test;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OwnerCacheTest {
+
+    private Node a = new Node("127.0.0.1", 5050);
+    private Node b = new Node("127.0.0.1", 6060);
+
+    @Test
+    public void testKeysInALearnedRangeHit() {
+        OwnerCache cache = new OwnerCache(16);
+        cache.learn(a, b.getId());
+
+        //b's own id is not in (b, a], one past it is
+        assertNull(cache.get(b.getId()));
+        assertEquals(a, cache.get(a.getId()));
+        assertEquals(a, cache.get(b.getId().addPowerOfTwo(0)));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testRangeWrapsPastZero() {
+        OwnerCache cache = new OwnerCache(16);
+        RingId low = new RingId(0, 10);
+        RingId high = new RingId(-1, 0);
+        Node owner = new Node("127.0.0.1", 7070) {
+            @Override
+            public RingId getId() {
+                return low;
+            }
+        };
+        cache.learn(owner, high);
+
+        assertEquals(owner, cache.get(RingId.ZERO));
+        assertEquals(owner, cache.get(new RingId(-1, -1)));
+        assertNull(cache.get(new RingId(0, 11)));
+    }
+
+    @Test
+    public void testInvalidateAndEviction() {
+        OwnerCache cache = new OwnerCache(1);
+        cache.learn(a, b.getId());
+        cache.invalidate(a);
+        assertNull(cache.get(a.getId()));
+
+        cache.learn(a, b.getId());
+        cache.learn(b, a.getId());
+        assertEquals(1, cache.size());
+        assertEquals(b, cache.get(b.getId()));
+    }
+}
@@ -0,0 +1,158 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.LookupMessage;
+import se.kth.networking.java.first.messages.LookupResponseMessage;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PendingLookupsTest {
+
+    private static final int TIMEOUT = 200;
+
+    private MaintenanceScheduler scheduler = new MaintenanceScheduler(1);
+    private FakeRingHandler ring;
+    private Node a;
+
+    @Before
+    public void setUp() {
+        NodeConfig config = new NodeConfig();
+        config.setLookupTimeout(TIMEOUT);
+        ring = new FakeRingHandler(7500, config);
+
+        //a owns the range right after us, every lookup goes out to it and waits for the test to answer
+        final RingId id = ring.getSelf().getId().addPowerOfTwo(100);
+        a = new Node("127.0.0.1", 7501) {
+            @Override
+            public RingId getId() {
+                return id;
+            }
+        };
+        ring.predecessor = a;
+        ring.successor = a;
+    }
+
+    @After
+    public void tearDown() {
+        ring.close();
+        scheduler.shutdown();
+    }
+
+    private RingId key(int power) {
+        return ring.getSelf().getId().addPowerOfTwo(power);
+    }
+
+    /**
+     * The request ids of the lookups that went out, in the order they were sent.
+     */
+    private List<Long> requestIds() {
+        List<Long> ids = new ArrayList<>();
+        synchronized (ring.sent) {
+            for (Message message : ring.sent) {
+                if (message instanceof LookupMessage) {
+                    ids.add(((LookupMessage) message).getRequestId());
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static void assertTimedOut(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The lookup should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testResponsesAreMatchedByRequestId() throws Exception {
+        CompletableFuture<String> first = ring.get(key(90));
+        CompletableFuture<String> second = ring.get(key(91));
+        List<Long> ids = requestIds();
+        assertEquals(2, ids.size());
+
+        //Answered the other way round
+        ring.deliverLookup(new LookupResponseMessage(a, key(91), "second", ids.get(1)));
+        assertFalse(first.isDone());
+        ring.deliverLookup(new LookupResponseMessage(a, key(90), "first", ids.get(0)));
+
+        assertEquals("first", first.get(1, TimeUnit.SECONDS));
+        assertEquals("second", second.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnknownRequestIdIsIgnored() throws Exception {
+        CompletableFuture<String> value = ring.get(key(90));
+        long id = requestIds().get(0);
+
+        ring.deliverLookup(new LookupResponseMessage(a, key(90), "stranger", id + 1000));
+        assertFalse(value.isDone());
+
+        ring.deliverLookup(new LookupResponseMessage(a, key(90), "value", id));
+        assertEquals("value", value.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLookupFailsAtTheDeadline() throws Exception {
+        long start = System.nanoTime();
+        assertTimedOut(ring.get(key(90)));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Timed out after " + waited + "ms", waited >= TIMEOUT - 20);
+    }
+
+    @Test
+    public void testLateResponseIsDropped() throws Exception {
+        CompletableFuture<String> value = ring.get(key(90));
+        long id = requestIds().get(0);
+        assertTimedOut(value);
+
+        //Too late to change the outcome, and the next lookup still gets its own answer
+        ring.deliverLookup(new LookupResponseMessage(a, key(90), "late", id));
+        assertTrue(value.isCompletedExceptionally());
+
+        CompletableFuture<String> next = ring.get(key(91));
+        ring.deliverLookup(new LookupResponseMessage(a, key(91), "next", requestIds().get(1)));
+        assertEquals("next", next.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCompleteAfterDeadline() throws Exception {
+        PendingLookups pending = new PendingLookups(50, scheduler);
+        long id = pending.nextId();
+        CompletableFuture<LookupResponseMessage> response = pending.register(id);
+
+        assertTimedOut(response);
+        assertFalse(pending.complete(id, new LookupResponseMessage(a, key(90), "late", id)));
+        assertFalse(pending.complete(id + 1, new LookupResponseMessage(a, key(90), "unknown", id + 1)));
+    }
+
+    @Test
+    public void testAnsweredLookupDoesNotTimeOut() throws Exception {
+        PendingLookups pending = new PendingLookups(50, scheduler);
+        long id = pending.nextId();
+        CompletableFuture<LookupResponseMessage> response = pending.register(id);
+
+        assertTrue(pending.complete(id, new LookupResponseMessage(a, key(90), "value", id)));
+        assertFalse(pending.complete(id, new LookupResponseMessage(a, key(90), "again", id)));
+        Thread.sleep(100);
+        assertEquals("value", response.get().getValue());
+    }
+}
@@ -0,0 +1,206 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.FindSuccessorMessage;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.messages.PutBatchMessage;
+import se.kth.networking.java.first.messages.PutBatchReplyMessage;
+import se.kth.networking.java.first.messages.SuccessorFoundMessage;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PutAllTest {
+
+    private FakeRingHandler ring;
+    private RingId base;
+
+    //Owners by port, with the keys they own and the keys they were sent
+    private Map<Integer, List<RingId>> owned = new HashMap<>();
+    private Map<Integer, Map<RingId, String>> stores = new HashMap<>();
+    //Who answers a lookup of a key
+    private Map<RingId, Integer> lookups = new HashMap<>();
+
+    private Node a;
+    private Node b;
+
+    @Before
+    public void setUp() {
+        NodeConfig config = new NodeConfig();
+        config.setBatchSize(2);
+        ring = new FakeRingHandler(7400, config);
+        base = ring.getSelf().getId();
+
+        //We own everything from 2^120 after us round to us, a and b the ranges right after us
+        a = at(base.addPowerOfTwo(100), 7401);
+        b = at(base.addPowerOfTwo(110), 7402);
+        ring.predecessor = at(base.addPowerOfTwo(120), 7409);
+        ring.successor = a;
+        ring.getOwnerCache().learn(b, a.getId());
+
+        ring.replies = (node, message) -> {
+            if (message instanceof FindSuccessorMessage) {
+                FindSuccessorMessage lookup = (FindSuccessorMessage) message;
+                int port = lookups.get(lookup.getKey());
+                ring.deliverLookup(new SuccessorFoundMessage(new Node("127.0.0.1", port), lookup.getKey(), lookup.getRequestId(), null));
+                return CompletableFuture.completedFuture(null);
+            }
+            if (message instanceof PutBatchMessage && owned.containsKey(node.getPort())) {
+                return CompletableFuture.completedFuture(answer(node, (PutBatchMessage) message));
+            }
+            CompletableFuture<Message> down = new CompletableFuture<>();
+            down.completeExceptionally(new IOException(node.getPort() + " is down"));
+            return down;
+        };
+    }
+
+    @After
+    public void tearDown() {
+        ring.close();
+    }
+
+    private static Node at(final RingId id, int port) {
+        return new Node("127.0.0.1", port) {
+            @Override
+            public RingId getId() {
+                return id;
+            }
+        };
+    }
+
+    private RingId key(int power) {
+        return base.addPowerOfTwo(power);
+    }
+
+    private void owner(int port, RingId... keys) {
+        if (!owned.containsKey(port)) {
+            owned.put(port, new ArrayList<RingId>());
+            stores.put(port, new HashMap<RingId, String>());
+        }
+        Collections.addAll(owned.get(port), keys);
+    }
+
+    private Message answer(Node node, PutBatchMessage message) {
+        List<RingId> rejected = new ArrayList<>();
+        for (int i = 0; i < message.getKeys().size(); i++) {
+            RingId key = message.getKeys().get(i);
+            if (owned.get(node.getPort()).contains(key)) {
+                stores.get(node.getPort()).put(key, message.getValues().get(i));
+            } else {
+                rejected.add(key);
+            }
+        }
+        return new PutBatchReplyMessage(node, rejected);
+    }
+
+    private static Map<RingId, String> entries(RingId... keys) {
+        Map<RingId, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            entries.put(keys[i], "v" + i);
+        }
+        return entries;
+    }
+
+    @Test
+    public void testEveryKeyIsAcknowledged() throws Exception {
+        owner(a.getPort(), key(90), key(91), key(92));
+        owner(b.getPort(), key(105));
+
+        Map<RingId, Boolean> acks = ring.putAll(entries(base, key(90), key(91), key(92), key(105)))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(5, acks.size());
+        for (Boolean ack : acks.values()) {
+            assertTrue(ack);
+        }
+        assertEquals("v0", ring.app.getKey(base));
+        assertEquals("v3", stores.get(a.getPort()).get(key(92)));
+        assertEquals("v4", stores.get(b.getPort()).get(key(105)));
+
+        //Three keys for a in batches of two, the owners came from the successor and the cache
+        assertEquals(2, ring.count(PutBatchMessage.class, a.getPort()));
+        assertEquals(1, ring.count(PutBatchMessage.class, b.getPort()));
+        assertEquals(0, ring.sent.stream().filter(m -> m instanceof FindSuccessorMessage).count());
+    }
+
+    @Test
+    public void testRejectedKeysAreLookedUpAgain() throws Exception {
+        //b no longer owns 106, c joined and took it
+        owner(b.getPort(), key(105));
+        owner(7403, key(106));
+        lookups.put(key(106), 7403);
+
+        Map<RingId, Boolean> acks = ring.putAll(entries(key(105), key(106))).get(5, TimeUnit.SECONDS);
+
+        assertTrue(acks.get(key(105)));
+        assertTrue(acks.get(key(106)));
+        assertEquals("v1", stores.get(7403).get(key(106)));
+        assertEquals(1, ring.count(PutBatchMessage.class, 7403));
+        assertEquals(1, ring.sent.stream().filter(m -> m instanceof FindSuccessorMessage).count());
+    }
+
+    @Test
+    public void testKeysOfAnOwnerThatIsDownAreNotAcknowledged() throws Exception {
+        owner(a.getPort(), key(90));
+        lookups.put(key(105), b.getPort());
+
+        Map<RingId, Boolean> acks = ring.putAll(entries(key(90), key(105))).get(5, TimeUnit.SECONDS);
+
+        assertTrue(acks.get(key(90)));
+        assertFalse(acks.get(key(105)));
+        //The first try and one for every retry
+        assertEquals(3, ring.count(PutBatchMessage.class, b.getPort()));
+    }
+
+    @Test
+    public void testBatchesWaitForTheBytesInFlight() throws Exception {
+        final BlockingQueue<CompletableFuture<Message>> held = new LinkedBlockingQueue<>();
+        ring.replies = (node, message) -> {
+            CompletableFuture<Message> reply = new CompletableFuture<>();
+            held.add(reply);
+            return reply;
+        };
+        //Room for two batches of two keys
+        long batchBytes = 2 * RingHandler.entryBytes("v0");
+        ring.batchBytes = new InFlightLimiter(2 * batchBytes);
+
+        CompletableFuture<Map<RingId, Boolean>> acks = ring.putAll(entries(key(90), key(91), key(92), key(93), key(94), key(95)));
+
+        assertEquals(2, ring.count(PutBatchMessage.class, a.getPort()));
+        assertEquals(2 * batchBytes, ring.batchBytes.getInFlight());
+
+        //Every answer lets the next batch go
+        next(held).complete(new PutBatchReplyMessage(a, Collections.<RingId>emptyList()));
+        assertEquals(3, ring.count(PutBatchMessage.class, a.getPort()));
+        next(held).complete(new PutBatchReplyMessage(a, Collections.<RingId>emptyList()));
+        next(held).complete(new PutBatchReplyMessage(a, Collections.<RingId>emptyList()));
+
+        assertEquals(6, acks.get(5, TimeUnit.SECONDS).size());
+        assertEquals(0, ring.batchBytes.getInFlight());
+    }
+
+    private static CompletableFuture<Message> next(BlockingQueue<CompletableFuture<Message>> held) throws InterruptedException {
+        CompletableFuture<Message> reply = held.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        return reply;
+    }
+}
@@ -0,0 +1,247 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.DropReplicaMessage;
+import se.kth.networking.java.first.messages.LookupMessage;
+import se.kth.networking.java.first.messages.LookupResponseMessage;
+import se.kth.networking.java.first.messages.Message;
+import se.kth.networking.java.first.messages.ReplicaLookupMessage;
+import se.kth.networking.java.first.messages.ReplicateMessage;
+import se.kth.networking.java.first.models.Node;
+import se.kth.networking.java.first.models.RingId;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicationTest {
+
+    private NodeConfig config;
+    private FakeRingHandler ring;
+    private RingId base;
+
+    private Node a;
+    private Node b;
+
+    //The ports that don't answer, and the copies the replicas keep
+    private Set<Integer> down = new HashSet<>();
+    private Map<Integer, Map<RingId, String>> copies = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        config = new NodeConfig();
+        config.setReplicationFactor(3);
+        config.setSuspectAfterFailures(1);
+        ring = new FakeRingHandler(7300, config);
+        base = ring.getSelf().getId();
+
+        //We own everything from 2^120 after us round to us, a owns the range right after us and b the next
+        a = at(base.addPowerOfTwo(100), 7301);
+        b = at(base.addPowerOfTwo(110), 7302);
+        ring.predecessor = at(base.addPowerOfTwo(120), 7309);
+        ring.successor = a;
+        ring.setSuccessorList(a, Collections.singletonList(b));
+
+        ring.replies = (node, message) -> {
+            if (down.contains(node.getPort())) {
+                //What the real send tells the detector
+                ring.getFailureDetector().failed(node);
+                CompletableFuture<Message> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException(node.getPort() + " is down"));
+                return failed;
+            }
+            Map<RingId, String> kept = copies.get(node.getPort());
+            if (message instanceof ReplicaLookupMessage && kept != null) {
+                LookupMessage lookup = (LookupMessage) message;
+                ring.deliverLookup(new LookupResponseMessage(node, lookup.getKey(), kept.get(lookup.getKey()), lookup.getRequestId()));
+            }
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+
+    @After
+    public void tearDown() {
+        ring.close();
+    }
+
+    private static Node at(final RingId id, int port) {
+        return new Node("127.0.0.1", port) {
+            @Override
+            public RingId getId() {
+                return id;
+            }
+        };
+    }
+
+    private boolean put(NodeConfig.WriteAck writeAck, Integer... failing) throws Exception {
+        ring.writeAck = writeAck;
+        down.clear();
+        down.addAll(Arrays.asList(failing));
+        return ring.put(base, "value").get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testWriteAckOneOnlyNeedsOurCopy() throws Exception {
+        assertTrue(put(NodeConfig.WriteAck.ONE, 7301, 7302));
+        assertEquals("value", ring.app.getKey(base));
+    }
+
+    @Test
+    public void testWriteAckQuorumNeedsOneReplica() throws Exception {
+        assertTrue(put(NodeConfig.WriteAck.QUORUM, 7302));
+        assertFalse(put(NodeConfig.WriteAck.QUORUM, 7301, 7302));
+    }
+
+    @Test
+    public void testWriteAckAllNeedsEveryReplica() throws Exception {
+        assertFalse(put(NodeConfig.WriteAck.ALL, 7302));
+        assertTrue(put(NodeConfig.WriteAck.ALL));
+        assertEquals(2, ring.count(ReplicateMessage.class, 7301));
+        assertEquals(2, ring.count(ReplicateMessage.class, 7302));
+    }
+
+    @Test
+    public void testReadFailsOverToReplica() throws Exception {
+        //a owns the key and is gone, b still has a copy
+        RingId key = base.addPowerOfTwo(90);
+        down.add(7301);
+        copies.put(7302, Collections.singletonMap(key, "copy"));
+
+        //Which holder the read goes to is random, the owner or the replica has to answer either way
+        for (int i = 0; i < 10; i++) {
+            ring.getFailureDetector().forget(a);
+            ring.successor = a;
+            ring.setSuccessorList(a, Collections.singletonList(b));
+
+            assertEquals("copy", ring.get(key).get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testReplicatedGetOfMissingKey() throws Exception {
+        //A real replica after the owner, with no copy of the key
+        final FakeRingHandler replica = new FakeRingHandler(7303, config);
+        try {
+            final Node owner = at(base.addPowerOfTwo(10), 7301);
+            final RingId key = base.addPowerOfTwo(5);
+            replica.predecessor = owner;
+            replica.successor = ring.getSelf();
+            ring.successor = owner;
+            ring.setSuccessorList(owner, Collections.singletonList(replica.getSelf()));
+
+            //The owner has never heard of it. It doesn't say where its range starts, every read is routed.
+            BiFunction<Node, Message, CompletableFuture<Message>> network = (node, message) -> {
+                if (node.getPort() == replica.getSelf().getPort()) {
+                    replica.lookup((LookupMessage) message);
+                } else if (node.getPort() == ring.getSelf().getPort() && message instanceof LookupMessage) {
+                    ring.lookup((LookupMessage) message);
+                } else if (node.getPort() == ring.getSelf().getPort()) {
+                    ring.deliverLookup((LookupResponseMessage) message);
+                } else if (node.getPort() == owner.getPort()) {
+                    LookupMessage lookup = (LookupMessage) message;
+                    ring.deliverLookup(new LookupResponseMessage(owner, key, null, lookup.getRequestId()));
+                }
+                return CompletableFuture.completedFuture(null);
+            };
+            ring.replies = network;
+            replica.replies = network;
+
+            for (int i = 0; i < 20; i++) {
+                assertNull(ring.get(key).get(1, TimeUnit.SECONDS));
+            }
+
+            //The replica asked the owner once per read it got, and never sent the read round the ring
+            int asked = ring.count(ReplicaLookupMessage.class, 7303);
+            assertTrue(asked > 0);
+            assertEquals(asked, replica.count(LookupMessage.class, 7301));
+            assertEquals(0, replica.count(LookupMessage.class, 7300));
+            synchronized (replica.sent) {
+                for (Message message : replica.sent) {
+                    assertSame(LookupMessage.class, message.getClass());
+                    assertEquals(1, ((LookupMessage) message).getHops());
+                }
+            }
+        } finally {
+            replica.close();
+        }
+    }
+
+    @Test
+    public void testDropReplicaKeepsOurOwnRange() {
+        RingId copy = base.addPowerOfTwo(90);
+        ring.app.storeKey(copy, "copy");
+        ring.app.storeKey(base, "ours");
+
+        //Reaches back into our range, nothing goes
+        ring.dropReplica(new DropReplicaMessage(a, ring.predecessor.getId(), a.getId()));
+        assertEquals("copy", ring.app.getKey(copy));
+        assertEquals("ours", ring.app.getKey(base));
+
+        ring.dropReplica(new DropReplicaMessage(a, base, a.getId()));
+        assertNull(ring.app.getKey(copy));
+        assertEquals("ours", ring.app.getKey(base));
+    }
+
+    @Test
+    public void testReplicaThatDropsOutIsToldToDropItsCopies() {
+        ring.app.storeKey(base, "ours");
+        ring.syncReplicas();
+        assertEquals(0, ring.count(DropReplicaMessage.class, 7302));
+
+        //c joins between a and b and takes b's place as a replica
+        Node c = at(base.addPowerOfTwo(105), 7304);
+        ring.setSuccessorList(a, Arrays.asList(c, b));
+        ring.syncReplicas();
+
+        assertEquals(1, ring.count(DropReplicaMessage.class, 7302));
+        assertEquals(0, ring.count(DropReplicaMessage.class, 7301));
+        assertEquals(1, ring.count(ReplicateMessage.class, 7304));
+    }
+
+    @Test
+    public void testRangeIsCopiedInBatches() {
+        RingId key = base;
+        for (int i = 0; i < 5; i++) {
+            ring.app.storeKey(key, "value " + i);
+            key = key.decrement();
+        }
+        //The whole range must never be read at once
+        final RingDomain store = ring.app;
+        ring.app = new ApplicationDomainAdapter(null) {
+            @Override
+            public Map<RingId, String> getRange(RingId from, RingId to) {
+                throw new AssertionError("read the whole range");
+            }
+
+            @Override
+            public Map<RingId, String> getRange(RingId from, RingId to, int limit) {
+                return store.getRange(from, to, limit);
+            }
+        };
+        ring.batchSize = 2;
+        down.add(7302);
+
+        ring.syncReplicas();
+
+        //b gets no more batches once one failed, and is tried again next round
+        assertEquals(3, ring.count(ReplicateMessage.class, 7301));
+        assertEquals(1, ring.count(ReplicateMessage.class, 7302));
+        assertEquals(Collections.singleton(a.getId()), ring.replicatedTo);
+    }
+}
@@ -0,0 +1,101 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.After;
+import org.junit.Test;
+import se.kth.networking.java.first.NodeConfig;
+import se.kth.networking.java.first.messages.UnlinkPredecessorMessage;
+import se.kth.networking.java.first.models.Node;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SuccessorListTest {
+
+    private Node a = new Node("127.0.0.1", 7001);
+    private Node b = new Node("127.0.0.1", 7002);
+    private Node c = new Node("127.0.0.1", 7003);
+    private Node d = new Node("127.0.0.1", 7004);
+
+    private FakeRingHandler ring;
+
+    private FakeRingHandler ring(int length) {
+        NodeConfig config = new NodeConfig();
+        config.setSuccessorListLength(length);
+        config.setSuspectAfterFailures(1);
+        ring = new FakeRingHandler(7000, config);
+        ring.successor = a;
+        return ring;
+    }
+
+    @After
+    public void tearDown() {
+        ring.close();
+    }
+
+    @Test
+    public void testListStopsAtSelfAndSkipsDuplicates() {
+        ring(4);
+
+        assertTrue(ring.setSuccessorList(a, Arrays.asList(b, b, c, ring.getSelf(), d)));
+        assertEquals(Arrays.asList(a, b, c), ring.getSuccessorList());
+    }
+
+    @Test
+    public void testListIsCutAtItsLength() {
+        ring(3);
+
+        ring.setSuccessorList(a, Arrays.asList(b, c, d));
+        assertEquals(Arrays.asList(a, b, c), ring.getSuccessorList());
+        assertFalse(ring.setSuccessorList(a, Arrays.asList(b, c)));
+    }
+
+    @Test
+    public void testListOfAFormerSuccessorIsIgnored() {
+        ring(3);
+        ring.setSuccessorList(a, Arrays.asList(b, c));
+
+        assertFalse(ring.setSuccessorList(b, Arrays.asList(c, d)));
+        assertEquals(Arrays.asList(a, b, c), ring.getSuccessorList());
+    }
+
+    @Test
+    public void testFailoverSkipsSuspectedNodes() {
+        ring(4);
+        ring.setSuccessorList(a, Arrays.asList(b, c, d));
+        ring.getFailureDetector().failed(a);
+        ring.getFailureDetector().failed(b);
+
+        ring.handleUnresponsiveSuccessorNode(a);
+
+        assertEquals(c, ring.successor);
+        assertEquals(Arrays.asList(c, d), ring.getSuccessorList());
+        //c is told to drop a as its predecessor
+        assertEquals(1, ring.count(UnlinkPredecessorMessage.class, c.getPort()));
+    }
+
+    @Test
+    public void testLiveSuccessorSkipsSuspectedSuccessor() {
+        ring(4);
+        ring.setSuccessorList(a, Arrays.asList(b, c));
+        ring.getFailureDetector().failed(a);
+
+        assertEquals(b, ring.liveSuccessor());
+    }
+
+    @Test
+    public void testNobodyLeftAfterFailover() {
+        ring(4);
+        ring.setSuccessorList(a, Collections.singletonList(b));
+        ring.getFailureDetector().failed(a);
+        ring.getFailureDetector().failed(b);
+
+        ring.handleUnresponsiveSuccessorNode(a);
+
+        assertEquals(ring.getSelf(), ring.successor);
+        assertTrue(ring.getSuccessorList().isEmpty());
+    }
+}
@@ -0,0 +1,49 @@
+package se.kth.networking.java.first.ring;
+
+import org.junit.Test;
+import se.kth.networking.java.first.models.RingId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ValueCacheTest {
+
+    private RingId a = new RingId(0, 1);
+    private RingId b = new RingId(0, 2);
+    private RingId c = new RingId(0, 3);
+
+    @Test
+    public void testLeastRecentlyUsedGoesFirst() {
+        ValueCache cache = new ValueCache(2, 60000);
+        cache.put(a, "a");
+        cache.put(b, "b");
+        assertEquals("a", cache.get(a));
+        cache.put(c, "c");
+
+        assertNull(cache.get(b));
+        assertEquals("a", cache.get(a));
+        assertEquals("c", cache.get(c));
+    }
+
+    @Test
+    public void testStaleValuesAreNotUsed() throws InterruptedException {
+        ValueCache cache = new ValueCache(2, 20);
+        cache.put(a, "a");
+        Thread.sleep(40);
+
+        assertNull(cache.get(a));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testHotAfterThresholdReads() {
+        HotKeys hot = new HotKeys(3);
+        assertFalse(hot.read(a));
+        assertFalse(hot.read(a));
+        assertTrue(hot.read(a));
+        assertFalse(hot.read(b));
+    }
+}